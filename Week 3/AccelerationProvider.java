@@ -0,0 +1,21 @@
+/**
+ * Gives the acceleration of particles from their positions and velocities at a time, for example the Lorentz
+ * acceleration in the field of a cyclotron. An Integrator asks for it once for every stage of a step.
+ * Implementations must only touch particles in the range they are given, so that separate ranges can be worked on by
+ * separate threads at the same time.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public interface AccelerationProvider {
+
+    /**
+     * Set the acceleration (ParticleStore.AX to AZ) of particles from (inclusive) to to (exclusive) from the positions
+     * and velocities held in the store
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param time the time at which to take the field
+     */
+    void accelerate(ParticleStore store, int from, int to, double time);
+}
@@ -0,0 +1,63 @@
+/**
+ * Particle store that keeps every column in a double[] array on the heap.
+ * The arrays can be read directly through column() by batched kernels such as LorentzKernel.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class ArrayParticleStore extends ParticleStore {
+
+    private static final int defaultCapacity = 16;
+
+    private double[][] columns = new double[nComponents][]; // one array per component, indexed by ParticleStore.X etc.
+
+    /**
+     * Default constructor, creates an empty store
+     */
+    public ArrayParticleStore() {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Constructor that reserves room for a given number of particles
+     * @param capacity the number of particles to reserve room for
+     */
+    public ArrayParticleStore(int capacity) {
+        grow(Math.max(capacity, 1));
+    }
+
+    /**
+     * Return the array holding one component of every particle. Only the first size() entries are in use.
+     * @param component the column, e.g. ParticleStore.X
+     * @return the array backing that column
+     */
+    public double[] column(int component) {
+        return columns[component];
+    }
+
+    @Override
+    public double get(int component, int i) {
+        return columns[component][i];
+    }
+
+    @Override
+    public void set(int component, int i, double value) {
+        columns[component][i] = value;
+    }
+
+    @Override
+    public int capacity() {
+        return columns[X].length;
+    }
+
+    @Override
+    protected void grow(int capacity) {
+        for (int c = 0; c < nComponents; c++) {
+            double[] bigger = new double[capacity];
+            if (columns[c] != null) {
+                System.arraycopy(columns[c], 0, bigger, 0, Math.min(columns[c].length, capacity));
+            }
+            columns[c] = bigger;
+        }
+    }
+}
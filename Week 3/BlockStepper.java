@@ -0,0 +1,70 @@
+/**
+ * Something that advances a whole bunch by blocks of time steps and reports, for each block, the moments of the bunch
+ * after its last step and the sums of the particle positions after each of its steps. A block can be cut short after
+ * it has been stepped, with rewind, once those sums show it should have ended sooner.
+ * ParallelStepper does this for a bunch held in this JVM, DistributedStepper for a bunch shared out between worker JVMs.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public interface BlockStepper {
+
+    /**
+     * Advance every particle by nSteps time steps, time being advanced as time+=timeStep before each step
+     * @param time the time before the first step
+     * @param timeStep the length of each step
+     * @param nSteps the number of steps
+     * @return the time after the last step
+     */
+    double step(double time, double timeStep, int nSteps);
+
+    /**
+     * Keep the state of the bunch at the start of each block from now on, so that rewind can be used
+     */
+    void keepBlockStart();
+
+    /**
+     * Put the bunch back to where it was after step k of the last block, as if the block had been k+1 steps long.
+     * getMoments and getTrackSum then describe that shorter block. keepBlockStart must have been called before the
+     * block was stepped.
+     * @param k the step within the last block, from 0 to nSteps-1
+     * @return the time after step k
+     */
+    double rewind(int k);
+
+    /**
+     * Return the moments of the whole bunch after the last call to step or rewind
+     * @return the merged moments
+     */
+    BunchMoments getMoments();
+
+    /**
+     * Return the sum over the bunch of x, y or z after step k of the last call to step or rewind
+     * @param k the step within the block, from 0 to nSteps-1
+     * @param q ParticleStore.X, Y or Z
+     * @return the sum
+     */
+    double getTrackSum(int k, int q);
+
+    /**
+     * Return the number of particles in the bunch
+     * @return number of particles
+     */
+    long size();
+
+    /**
+     * Return the centroid of the bunch after step k of the last call to step
+     * @param k the step within the block, from 0 to nSteps-1
+     * @return the average position of the bunch after that step
+     */
+    default PhysicsVector getCentroid(int k) {
+        double inverse = 1.0 / size();
+        return new PhysicsVector(getTrackSum(k, ParticleStore.X) * inverse, getTrackSum(k, ParticleStore.Y) * inverse,
+            getTrackSum(k, ParticleStore.Z) * inverse);
+    }
+
+    /**
+     * Stop any threads or processes doing the work
+     */
+    void shutdown();
+}
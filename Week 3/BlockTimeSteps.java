@@ -0,0 +1,195 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives each particle its own time step, a power of two fraction of the simulation time step, and advances it with
+ * another (fixed step) integrator. The simulation time step is then only how often the particles are brought back
+ * together, for output and diagnostics, and most of them can take it in a few large steps while the few that need it
+ * take many small ones.
+ *
+ * A particle at level k takes steps of timeStep / 2^k, from 0 (one step) to the number of levels given. The level is
+ * chosen afresh after each of its steps: the coarsest whose step turns the velocity by no more than maxAngle
+ * (h |a| / |v|), and, in a PiecewiseUniformField, too short to reach the plane x = 0 where the field jumps, unless it is
+ * already the finest. A particle can only move to a coarser level at a time that is a whole step of that level, and
+ * only one level at a time, so that the particles at each level keep in step with each other. The particles are kept
+ * in lists by the time they are next due, and at each time those due are gathered by level into a store owned by the
+ * thread and pushed together, so the integrator still works over arrays; if every particle of the range is due with
+ * the same level they are pushed in place.
+ *
+ * Changing the step of a particle is only accurate to second order for a time-symmetric integrator, such as
+ * leapfrog or yoshida4 (see Yoshida); with Boris or Euler, whose velocities belong between or at the ends of steps,
+ * the change adds an error of the order of the step.
+ *
+ * The field is asked for the acceleration of every particle at the start of the step, to choose the first levels.
+ * The particles of each range are stepped the same however the bunch is shared between threads.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class BlockTimeSteps implements Integrator {
+
+    private final Integrator integrator;
+    private final int levels;
+    private final double maxAngle;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    private final AtomicLong particleSteps = new AtomicLong(), finestSteps = new AtomicLong();
+
+    /**
+     * The levels of the particles of a range, lists of the particles due at each time, and the store their batches
+     * are pushed in
+     */
+    private static class Scratch {
+        int[] level = new int[0], link = new int[0], batch = new int[0], head = new int[0], count = new int[0];
+        final ArrayParticleStore store = new ArrayParticleStore();
+
+        void ensureCapacity(int n, int nTicks, int nLevels) {
+            if (level.length < n) {
+                level = new int[n];
+                link = new int[n];
+                batch = new int[n];
+            }
+            if (head.length < nTicks + 1) {
+                head = new int[nTicks + 1];
+            }
+            if (count.length < nLevels + 1) {
+                count = new int[nLevels + 1];
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param integratorIn the integrator that takes each step, one with a fixed step
+     * @param levelsIn the number of times the time step may be halved
+     * @param maxAngleIn the largest angle in radians the velocity of a particle may turn in a step
+     * @throws IllegalArgumentException if the integrator chooses its own steps, or levels or maxAngle are out of range
+     */
+    public BlockTimeSteps(Integrator integratorIn, int levelsIn, double maxAngleIn) {
+        if (integratorIn instanceof DormandPrince || integratorIn instanceof BlockTimeSteps
+            || integratorIn instanceof GuidingCentre) {
+            throw new IllegalArgumentException("block time steps need an integrator with a fixed step");
+        }
+        if (levelsIn < 0 || levelsIn > 24 || !(maxAngleIn > 0)) {
+            throw new IllegalArgumentException("bad block time steps levels=" + levelsIn + " maxAngle=" + maxAngleIn);
+        }
+        integrator = integratorIn;
+        levels = levelsIn;
+        maxAngle = maxAngleIn;
+    }
+
+    @Override
+    public void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field) {
+        int n = to - from;
+        int nTicks = 1 << levels;
+        Scratch s = scratch.get();
+        s.ensureCapacity(n, nTicks, levels);
+        int[] level = s.level, link = s.link, batch = s.batch, head = s.head, count = s.count;
+        double tick = timeStep / nTicks;
+        double start = time - timeStep;
+        PiecewiseUniformField plane = (field instanceof PiecewiseUniformField) ? (PiecewiseUniformField) field : null;
+
+        // every particle is due at the start; head[t] and link make a list of the particles due at tick t
+        Arrays.fill(head, 0, nTicks + 1, -1);
+        field.accelerate(store, from, to, start);
+        for (int j = n - 1; j >= 0; j--) {
+            level[j] = chooseLevel(store, from + j, timeStep, 0, plane);
+            link[j] = head[0];
+            head[0] = j;
+        }
+        long nSteps = 0;
+        for (int now = 0; now < nTicks; now++) {
+            if (head[now] < 0) {
+                continue;
+            }
+            // put the particles due now in order of level, with count[k] the end of those at level k
+            Arrays.fill(count, 0, levels + 1, 0);
+            int due = 0;
+            for (int j = head[now]; j >= 0; j = link[j]) {
+                count[level[j]]++;
+                due++;
+            }
+            for (int k = 1; k <= levels; k++) {
+                count[k] += count[k - 1];
+            }
+            for (int j = head[now]; j >= 0; j = link[j]) {
+                batch[--count[level[j]]] = j; // count[k] is left at the start of those at level k
+            }
+            for (int k = 0; k <= levels; k++) {
+                int first = count[k], last = (k < levels) ? count[k + 1] : due;
+                int m = last - first;
+                if (m == 0) {
+                    continue;
+                }
+                int span = nTicks >> k;
+                int after = now + span;
+                double end = (after == nTicks) ? time : start + after * tick;
+                double h = timeStep / (1 << k);
+                if (m == n) {
+                    integrator.step(store, from, to, end, h, field); // the whole range together, in place
+                }
+                else {
+                    ArrayParticleStore batchStore = s.store;
+                    batchStore.resize(m);
+                    for (int b = 0; b < m; b++) {
+                        for (int c = 0; c < ParticleStore.nComponents; c++) {
+                            batchStore.set(c, b, store.get(c, from + batch[first + b]));
+                        }
+                    }
+                    integrator.step(batchStore, 0, m, end, h, field);
+                    for (int b = 0; b < m; b++) {
+                        for (int c = ParticleStore.X; c <= ParticleStore.AZ; c++) {
+                            store.set(c, from + batch[first + b], batchStore.get(c, b));
+                        }
+                    }
+                }
+                nSteps += m;
+                if (after < nTicks) {
+                    for (int b = first; b < last; b++) {
+                        int j = batch[b];
+                        int newLevel = chooseLevel(store, from + j, timeStep, Math.max(k - 1, 0), plane);
+                        while ((after & ((nTicks >> newLevel) - 1)) != 0) {
+                            newLevel++; // not at a whole step of that level
+                        }
+                        level[j] = newLevel;
+                        link[j] = head[after];
+                        head[after] = j;
+                    }
+                }
+            }
+        }
+        particleSteps.addAndGet(nSteps);
+        finestSteps.addAndGet((long) n << levels);
+    }
+
+    /**
+     * Return the coarsest level, no coarser than coarsest, at which particle i may step
+     */
+    private int chooseLevel(ParticleStore store, int i, double timeStep, int coarsest, PiecewiseUniformField plane) {
+        double vx = store.get(ParticleStore.VX, i), vy = store.get(ParticleStore.VY, i);
+        double vz = store.get(ParticleStore.VZ, i);
+        double speed = Math.sqrt(vx * vx + vy * vy + vz * vz);
+        double ax = store.get(ParticleStore.AX, i), ay = store.get(ParticleStore.AY, i);
+        double az = store.get(ParticleStore.AZ, i);
+        double a = Math.sqrt(ax * ax + ay * ay + az * az);
+        double longest = (a > 0) ? maxAngle * speed / a : Double.POSITIVE_INFINITY;
+        if (plane != null && speed > 0) {
+            longest = Math.min(longest, Math.abs(store.getX(i)) / speed);
+        }
+        int k = coarsest;
+        while (k < levels && timeStep / (1 << k) > longest) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Return the number of steps taken by particles, and the number they would have taken all at the finest level
+     * @return particleSteps and finestSteps
+     */
+    @Override
+    public SimRecord getStats() {
+        return new SimRecord()
+            .set("particleSteps", particleSteps.get())
+            .set("finestSteps", finestSteps.get());
+    }
+}
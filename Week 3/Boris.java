@@ -0,0 +1,147 @@
+/**
+ * The Boris pusher. The velocity is given half the kick of the electric field, rotated about the magnetic field and
+ * given the other half of the kick, then the particle is moved with its new velocity, as in Euler-Cromer. The
+ * rotation is exact in length, so in a magnetic field alone |v| (and so the energy) does not change at all, whatever
+ * the time step, where Euler spirals outwards; only the phase of the gyration is slowed, by the factor
+ * 2 atan(w dt / 2) / (w dt) for a gyrofrequency w. It takes the field once a step, at the end of the step as Euler
+ * does, and needs a FieldProvider for it.
+ *
+ * The push is done as straight loops over the columns of an ArrayParticleStore, as LorentzKernel does; particles in
+ * other stores are copied into arrays owned by the thread and back, with the same arithmetic, so every store gives
+ * the same results. EMField.pushBoris does the same for a single ChargedParticle. The acceleration left in the store
+ * is the mean over the step, the change in velocity over the time step.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class Boris implements Integrator {
+
+    private final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[0][0]);
+
+    @Override
+    public void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field) {
+        FieldProvider provider = fieldProvider(field);
+        int n = to - from;
+        double[][] s = scratch(scratch, n);
+        double[][] e = {s[0], s[1], s[2]}, b = {s[3], s[4], s[5]};
+        provider.fields(store, from, to, time, e, b);
+        double[][] columns = columns(store, from, to, s);
+        int base = base(store, from);
+        kick(columns, base, base + n, base, e, b, timeStep);
+        drift(columns, base, base + n, timeStep);
+        copyBack(store, from, to, columns, ParticleStore.X, ParticleStore.AZ);
+    }
+
+    /**
+     * Return the field as a FieldProvider
+     * @throws IllegalArgumentException if it only gives the acceleration
+     */
+    static FieldProvider fieldProvider(AccelerationProvider field) {
+        if (!(field instanceof FieldProvider)) {
+            throw new IllegalArgumentException("the Boris pusher needs the fields themselves, from a FieldProvider");
+        }
+        return (FieldProvider) field;
+    }
+
+    /**
+     * Return the scratch arrays of this thread, with room for the fields (the first six) and a copy of every column
+     * (the rest) of n particles
+     */
+    static double[][] scratch(ThreadLocal<double[][]> local, int n) {
+        double[][] s = local.get();
+        if (s.length == 0 || s[0].length < n) {
+            s = new double[6 + ParticleStore.nComponents][n];
+            local.set(s);
+        }
+        return s;
+    }
+
+    /**
+     * Return the columns of particles from (inclusive) to to (exclusive): those of the store itself for an
+     * ArrayParticleStore, indexed as in the store, otherwise copies in s indexed from 0, see base
+     */
+    static double[][] columns(ParticleStore store, int from, int to, double[][] s) {
+        double[][] columns = new double[ParticleStore.nComponents][];
+        if (store instanceof ArrayParticleStore) {
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = ((ArrayParticleStore) store).column(c);
+            }
+        }
+        else {
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = s[6 + c];
+                for (int i = from; i < to; i++) {
+                    columns[c][i - from] = store.get(c, i);
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Return the index in the arrays given by columns of particle from of the store
+     */
+    static int base(ParticleStore store, int from) {
+        return (store instanceof ArrayParticleStore) ? from : 0;
+    }
+
+    /**
+     * Put columns first to last of the copies made by columns back into the store; nothing to do if they are the
+     * store's own
+     */
+    static void copyBack(ParticleStore store, int from, int to, double[][] columns, int first, int last) {
+        if (!(store instanceof ArrayParticleStore)) {
+            for (int c = first; c <= last; c++) {
+                for (int i = from; i < to; i++) {
+                    store.set(c, i, columns[c][i - from]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Change the velocities of particles from (inclusive) to to (exclusive) held in columns, indexed as a
+     * ParticleStore, by the Boris kick and rotation for a time dt in the fields in e and b, which hold the field of
+     * particle i at i - offset. The acceleration is set to the change in velocity over dt.
+     */
+    static void kick(double[][] columns, int from, int to, int offset, double[][] e, double[][] b, double dt) {
+        double[] vx = columns[ParticleStore.VX], vy = columns[ParticleStore.VY], vz = columns[ParticleStore.VZ];
+        double[] ax = columns[ParticleStore.AX], ay = columns[ParticleStore.AY], az = columns[ParticleStore.AZ];
+        double[] q = columns[ParticleStore.CHARGE], m = columns[ParticleStore.MASS];
+        double[] ex = e[0], ey = e[1], ez = e[2], bx = b[0], by = b[1], bz = b[2];
+        double perDt = 1.0 / dt;
+        for (int i = from; i < to; i++) {
+            int k = i - offset;
+            double h = 0.5 * dt * q[i] / m[i];
+            double ux = vx[i] + h * ex[k], uy = vy[i] + h * ey[k], uz = vz[i] + h * ez[k]; // half the electric kick
+            double tx = h * bx[k], ty = h * by[k], tz = h * bz[k];
+            double f = 2.0 / (1.0 + (tx * tx + ty * ty + tz * tz));
+            double px = ux + (uy * tz - uz * ty), py = uy + (uz * tx - ux * tz), pz = uz + (ux * ty - uy * tx);
+            ux += f * (py * tz - pz * ty); // the rotation about B
+            uy += f * (pz * tx - px * tz);
+            uz += f * (px * ty - py * tx);
+            ux += h * ex[k]; // the other half of the electric kick
+            uy += h * ey[k];
+            uz += h * ez[k];
+            ax[i] = (ux - vx[i]) * perDt;
+            ay[i] = (uy - vy[i]) * perDt;
+            az[i] = (uz - vz[i]) * perDt;
+            vx[i] = ux;
+            vy[i] = uy;
+            vz[i] = uz;
+        }
+    }
+
+    /**
+     * Move particles from (inclusive) to to (exclusive) held in columns with their velocities for a time dt
+     */
+    static void drift(double[][] columns, int from, int to, double dt) {
+        double[] x = columns[ParticleStore.X], y = columns[ParticleStore.Y], z = columns[ParticleStore.Z];
+        double[] vx = columns[ParticleStore.VX], vy = columns[ParticleStore.VY], vz = columns[ParticleStore.VZ];
+        for (int i = from; i < to; i++) {
+            x[i] += dt * vx[i];
+            y[i] += dt * vy[i];
+            z[i] += dt * vz[i];
+        }
+    }
+}
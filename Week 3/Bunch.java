@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.function.Supplier;
 /**
 * A Class to represent a bunch of particles.
 * This is a generic class of Particle objects
@@ -10,7 +11,11 @@ public  class Bunch <T extends Particle> implements Iterable{
 	
 	
 	private ArrayList<T> particles; // the class of particles in the bunch
+	private ParticleStore store=null; // structure-of-arrays copy of the particle states, null unless the bunch is packed
+	private boolean storeOnly=false; // true if the particles exist only in the store, with no particle objects
+	private Supplier<T> view=null; // makes the particle objects handed out by the iterator of a store-only bunch
 	private char rDist='U'; // the random distribution to use for generating random vectors, etc
+	private Random random=new Random(); // the source of the random numbers
 	
 	/**
 	* Constructor for the Bunch of Particles
@@ -21,24 +26,157 @@ public  class Bunch <T extends Particle> implements Iterable{
 		
 	}
 	
+	/**
+	* Constructor for a Bunch whose particles are held only in the given store, for example an
+	* OffHeapParticleStore. No particle objects are kept; the iterator hands out a copy of each particle
+	* made from the store, and changes made to the copies are not written back.
+	* @param storeIn the store holding (or to hold) the particles
+	* @param viewIn makes an empty particle for the iterator to copy a particle into, e.g. Proton::new
+	*/
+	public Bunch(ParticleStore storeIn, Supplier<T> viewIn){
+		this();
+		store=storeIn;
+		storeOnly=true;
+		view=viewIn;
+	}
+	
 	/**
 	* add a particle to the bunch of particles
 	* @param particle the particle to add to the bunch
 	* 
 	*/
 	public void addParticle(T particle){
-		particles.add(particle);
+		if (!storeOnly){
+			particles.add(particle);
+		}
+		if (store!=null){
+			store.add(particle);
+		}
 		
 	}
 	
 	/**
-     * Returns the iterator for the collection of particles
+     * Returns the iterator for the collection of particles.
+     * If the bunch is packed it stays packed: each particle object is brought up to date from the store as it is
+     * handed out, and written back to the store when the next one is asked for or the iteration reaches the end,
+     * so changes made through the iterator are kept. A loop that stops early should call unpack, or the changes to
+     * the last particle handed out are not written back. A bunch held only in a store has no particle objects,
+     * the iterator reads a copy of each particle from the store instead.
      * @return iterator of the bunch
      */
     @Override
     public Iterator<T> iterator() {
+        if (storeOnly){
+            return new Iterator<T>(){
+                private int i=0;
+                
+                public boolean hasNext(){
+                    return i<store.size();
+                }
+                
+                public T next(){
+                    if (!hasNext()){
+                        throw new NoSuchElementException();
+                    }
+                    T aParticle=view.get();
+                    aParticle.setMass(store.getMass(i));
+                    if (aParticle instanceof ChargedParticle){
+                        ((ChargedParticle) aParticle).setCharge(store.getCharge(i));
+                    }
+                    store.copyTo(i++,aParticle);
+                    return aParticle;
+                }
+            };
+        }
+        if (store!=null){
+            return new Iterator<T>(){
+                private int i=0;
+                private final ParticleStore packed=store; // the store at the start, written back to throughout
+                
+                public boolean hasNext(){
+                    if (i<particles.size()){
+                        return true;
+                    }
+                    writeBack();
+                    return false;
+                }
+                
+                public T next(){
+                    if (!hasNext()){
+                        throw new NoSuchElementException();
+                    }
+                    writeBack();
+                    T aParticle=particles.get(i);
+                    packed.copyTo(i++,aParticle);
+                    return aParticle;
+                }
+                
+                private void writeBack(){
+                    if (i>0 && packed==store){ // not if the bunch was unpacked during the loop
+                        packed.copyFrom(i-1,particles.get(i-1));
+                    }
+                }
+            };
+        }
         return particles.iterator();
     }
+	
+	/**
+	* Copy the state of every particle into a structure-of-arrays store. From then on the store holds the 
+	* state of the bunch, the statistics are calculated from it, and the particle objects are only views 
+	* that are refreshed when the bunch is unpacked.
+	*/
+	public void pack(){
+		if (store==null){
+			store=new ArrayParticleStore(particles.size());
+			for (T aParticle : this.particles){
+				store.add(aParticle);
+			}
+		}
+	}
+	
+	/**
+	* Write the state held in the store back into the particle objects and drop the store.
+	* This is never done as a side effect, so a stepper working on the store keeps it until this is called.
+	* Does nothing for a bunch held only in a store, which has no particle objects to write to.
+	*/
+	public void unpack(){
+		if (storeOnly){
+			return;
+		}
+		if (store!=null){
+			for (int i=0; i<particles.size(); i++){
+				store.copyTo(i,particles.get(i));
+			}
+			store=null;
+		}
+	}
+	
+	/**
+	* Return true if the state of the bunch is held in a structure-of-arrays store
+	* @return true if the bunch is packed
+	*/
+	public boolean isPacked(){
+		return store!=null;
+	}
+	
+	/**
+	* Return the structure-of-arrays store holding the state of the bunch, packing the bunch if needed.
+	* @return the particle store
+	*/
+	public ParticleStore getStore(){
+		pack();
+		return store;
+	}
+	
+	/**
+	* Return the number of particles in the bunch
+	* @return number of particles
+	*/
+	public int size(){
+		if (storeOnly) return store.size();
+		return particles.size();
+	}
 
 	
 	/**
@@ -57,12 +195,26 @@ public  class Bunch <T extends Particle> implements Iterable{
 		return this.rDist;
 	}
 	
+	/**
+	* seed the random numbers, so that the same bunch is made every time
+	* @param seed the seed to use
+	*/
+	public void setSeed(long seed){
+		this.random=new Random(seed);
+	}
+	
 	/**
 	* setPosition
 	* @param positionIn the nominal position of the bunch
 	* @param spreadIn the spread around the nominal position of the bunch
 	*/
 	public void setPosition(PhysicsVector positionIn, PhysicsVector spreadIn){
+		if (store!=null){
+			for (int i=0; i<store.size(); i++){
+				store.setPosition(i,randomVector3D(positionIn,spreadIn,rDist));
+			}
+			return;
+		}
 		for (T aParticle : this.particles){
 			aParticle.setPosition(randomVector3D(positionIn,spreadIn,rDist));
 		}
@@ -77,7 +229,13 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @param energySpread the absolute spread in the energy
 	*/
 	public void setVelocity(PhysicsVector velocityIn, PhysicsVector spreadIn, double energy, double energySpread){
-		
+		if (store!=null){
+			for (int i=0; i<store.size(); i++){
+				double speed = Math.sqrt(2.0*randomScalar(energy,energySpread,rDist)/store.getMass(i));
+				store.setVelocity(i,PhysicsVector.scale(speed,randomVector3D((velocityIn.getUnitVector()),spreadIn,rDist)));
+			}
+			return;
+		}
 		for (T aParticle : this.particles){
 			double speed = Math.sqrt(2.0*randomScalar(energy,energySpread,rDist)/aParticle.getMass());
 			PhysicsVector velocity = PhysicsVector.scale(speed,randomVector3D((velocityIn.getUnitVector()),spreadIn,rDist));
@@ -150,7 +308,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the random scalar.
 	*/
 	private double randomScalar(double average, double spread){
-		return average+(2*Math.random()-1.0)*spread;
+		return average+(2*random.nextDouble()-1.0)*spread;
 	}
 	
 	/** 
@@ -161,8 +319,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the random scalar.
 	*/
 	private double randomGScalar(double average, double sd){
-		Random aRandom = new Random();
-		return average+aRandom.nextGaussian()*sd;
+		return average+random.nextGaussian()*sd;
 		
 	}
 	
@@ -191,6 +348,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the average position of particles in the bunch.
 	*/
 	public PhysicsVector getPosition(){
+		if (store!=null) return store.getPosition();
 		PhysicsVector position = new PhysicsVector();
 		for (T aParticle : this.particles){
 			position.increaseBy(aParticle.getPosition());
@@ -204,6 +362,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the average velocity of particles in the bunch.
 	*/
 	public PhysicsVector getVelocity(){
+		if (store!=null) return store.getVelocity();
 		PhysicsVector velocity = new PhysicsVector();
 		for (T aParticle : this.particles){
 			velocity.increaseBy(aParticle.getVelocity());
@@ -216,6 +375,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the standard deviation in x, y and z.
 	*/
 	public PhysicsVector getSpreadSD(){
+		if (store!=null) return store.getSpreadSD();
 		PhysicsVector average = new PhysicsVector(); 
 	 	PhysicsVector sqAverage = new PhysicsVector();
 	 	for (T aParticle: this.particles){
@@ -238,6 +398,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the maximum spread in x, y and z.
 	*/
 	public PhysicsVector getFullSpread(){
+		if (store!=null) return store.getFullSpread();
 		PhysicsVector av = this.getPosition();
 		PhysicsVector max = new PhysicsVector(av);
 		PhysicsVector min = new PhysicsVector(av);
@@ -261,6 +422,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the maximum spread in x, y and z.
 	*/
 	public PhysicsVector getSpreadMax(){
+		if (store!=null) return store.getSpreadMax();
 		PhysicsVector average = this.getPosition();
 		PhysicsVector max = new PhysicsVector();
 		for (T aParticle: this.particles){
@@ -281,6 +443,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the maximum spread in v_x, v_y and v_z.
 	*/
 	public PhysicsVector getVSpreadMax(){
+		if (store!=null) return store.getVSpreadMax();
 		PhysicsVector average = this.getVelocity();
 		PhysicsVector max = new PhysicsVector();
 		for (T aParticle: this.particles){
@@ -299,6 +462,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 	* @return the position in y of the particle furthest from the y axis.
 	*/
 	public double getSpreadY(){
+		if (store!=null) return store.getSpreadY();
 		TreeSet<T> myTree = new TreeSet<T>(this.particles);
 		
 		return( ((myTree.last()).getPosition()).getY());
@@ -321,7 +485,7 @@ public  class Bunch <T extends Particle> implements Iterable{
 			"Bunch spread (full in m):           %s\n"+
 			"Bunch spread (y from TreeSet in m): %10.6f\n"+
 			"Bunch v spread (max in m/s):        %s\n",
-			this.particles.size(),
+			size(),
 			(getPosition().formatString()),
 			(getVelocity().formatString()),
 			(getSpreadSD().formatString()),
@@ -0,0 +1,208 @@
+/**
+ * The centroid and covariance (sigma) matrix of a bunch in the six coordinates x, y, z, v_x, v_y, v_z, moved on
+ * together under the field linearised about the centroid, instead of by moving every particle.
+ *
+ * Each step the centroid is moved as a single particle, and with it a pair of probe particles for each coordinate,
+ * set off from the centroid by a small fraction (eps) of the sd either way in that coordinate. The differences
+ * between the pairs after the step give the columns of the transfer matrix M of the step, and sigma is moved on as
+ * M sigma M^T. The pusher is the one of a BunchSimulation with the same parameters, so the probes are
+ * stepped by the same integrator through the same field, and a step costs what a step of 13 particles does.
+ *
+ * This is exact while the bunch is moved by a linear map, as in a uniform B field. It stops being so once the bunch
+ * is wide enough that its particles see different fields at the same time, as when some of them cross the jump in B
+ * at x=0 and others do not; the centroid is then no longer moved as a particle is. EnvelopeSimulation.main compares
+ * the two with the tracking of a whole Bunch.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class BunchEnvelope {
+
+    public static final int nCoordinates = BunchMoments.nQuantities; // x, y, z, v_x, v_y, v_z
+    private static final int nProbes = 2 * nCoordinates + 1;
+
+    private final double[] centroid = new double[nCoordinates];
+    private final double[][] sigma = new double[nCoordinates][nCoordinates];
+    private final BunchPusher pusher;
+    private final double eps;
+    private final ArrayParticleStore probes = new ArrayParticleStore(nProbes);
+    private final double[][] transfer = new double[nCoordinates][nCoordinates];
+    private final double[][] product = new double[nCoordinates][nCoordinates];
+
+    /**
+     * Constructor
+     * @param centroidIn the mean of x, y, z, v_x, v_y and v_z
+     * @param sigmaIn their covariance matrix
+     * @param pusherIn moves the probe particles through each step
+     * @param epsIn how far the probes are set off from the centroid, as a fraction of the sd
+     */
+    public BunchEnvelope(double[] centroidIn, double[][] sigmaIn, BunchPusher pusherIn, double epsIn) {
+        if (!(epsIn > 0)) {
+            throw new IllegalArgumentException("bad envelope eps=" + epsIn);
+        }
+        for (int j = 0; j < nCoordinates; j++) {
+            centroid[j] = centroidIn[j];
+            for (int k = 0; k < nCoordinates; k++) {
+                sigma[j][k] = sigmaIn[j][k];
+            }
+        }
+        pusher = pusherIn;
+        eps = epsIn;
+        Proton aProton = new Proton();
+        for (int i = 0; i < nProbes; i++) {
+            probes.add(aProton);
+        }
+    }
+
+    /**
+     * Return the envelope of particles from (inclusive) to to (exclusive) of a store, to be moved in the field given by
+     * the parameters, as BunchSimulation (bMag, bErr, integrator and the parameters it takes, and envelopeEps=1e-4)
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param parameters the parameters of the simulation
+     * @return the envelope
+     */
+    public static BunchEnvelope of(ParticleStore store, int from, int to, SimRecord parameters) {
+        int n = to - from;
+        double[] mean = new double[nCoordinates];
+        double[][] covariance = new double[nCoordinates][nCoordinates];
+        for (int j = 0; j < nCoordinates; j++) {
+            double sum = 0.0;
+            for (int i = from; i < to; i++) {
+                sum += store.get(j, i);
+            }
+            mean[j] = sum / n;
+        }
+        for (int j = 0; j < nCoordinates; j++) {
+            for (int k = 0; k <= j; k++) {
+                double sum = 0.0;
+                for (int i = from; i < to; i++) {
+                    sum += (store.get(j, i) - mean[j]) * (store.get(k, i) - mean[k]);
+                }
+                covariance[j][k] = sum / n;
+                covariance[k][j] = sum / n;
+            }
+        }
+        return new BunchEnvelope(mean, covariance, makePusher(parameters), parameters.getDouble("envelopeEps", 1e-4));
+    }
+
+    /**
+     * Return the envelope of the bunch BunchSimulation.makeBunch would make from the parameters, without making it:
+     * the spread in x of pSpreadX, and in speed from the spread in energy pESpread. The moments are those of the
+     * distribution the particles are drawn from, exact for rDist=U; for rDist=G the mean speed is taken to second
+     * order in pESpread.
+     * @param parameters the parameters of the simulation, as for of
+     * @return the envelope
+     */
+    public static BunchEnvelope fromParameters(SimRecord parameters) {
+        char rDist = parameters.getChar("rDist", 'U');
+        double pSpeed = parameters.getDouble("pSpeed", 0.1);
+        double spreadX = parameters.getDouble("pSpreadX", 0.1);
+        double a = parameters.getDouble("pESpread", 0); // the spread in energy relative to the average
+        double[] mean = new double[nCoordinates];
+        double[][] covariance = new double[nCoordinates][nCoordinates];
+        if (rDist == 'U') {
+            covariance[ParticleStore.X][ParticleStore.X] = spreadX * spreadX / 3;
+            // the speed is pSpeed sqrt(1 + e) with e uniform in +/- a, and the mean of its square is pSpeed^2
+            mean[ParticleStore.VY] = (a > 0)
+                ? pSpeed * (Math.pow(1 + a, 1.5) - Math.pow(Math.max(1 - a, 0), 1.5)) / (3 * a) : pSpeed;
+        }
+        else if (rDist == 'G') {
+            covariance[ParticleStore.X][ParticleStore.X] = spreadX * spreadX;
+            mean[ParticleStore.VY] = pSpeed * (1 - a * a / 8);
+        }
+        // any other distribution puts every particle at rest at the origin, as Bunch does
+        covariance[ParticleStore.VY][ParticleStore.VY] = (rDist == 'U' || rDist == 'G')
+            ? Math.max(pSpeed * pSpeed - mean[ParticleStore.VY] * mean[ParticleStore.VY], 0.0) : 0.0;
+        return new BunchEnvelope(mean, covariance, makePusher(parameters), parameters.getDouble("envelopeEps", 1e-4));
+    }
+
+    private static BunchPusher makePusher(SimRecord parameters) {
+        return new BunchSim.CyclotronPusher(parameters.getDouble("bMag", 1.0e-7), parameters.getDouble("bErr", 1.0e-1),
+            nProbes, Integrator.fromParameters(parameters));
+    }
+
+    /**
+     * Move the envelope on by a time step
+     * @param time the time at the end of the step
+     * @param timeStep the time step
+     */
+    public void step(double time, double timeStep) {
+        double[] offset = new double[nCoordinates];
+        for (int i = 0; i < nProbes; i++) {
+            for (int j = 0; j < nCoordinates; j++) {
+                probes.set(j, i, centroid[j]);
+            }
+        }
+        for (int k = 0; k < nCoordinates; k++) {
+            offset[k] = eps * Math.sqrt(sigma[k][k]);
+            probes.set(k, 2 * k + 1, centroid[k] + offset[k]);
+            probes.set(k, 2 * k + 2, centroid[k] - offset[k]);
+        }
+        pusher.push(probes, 0, nProbes, time, timeStep);
+
+        // a coordinate with no spread has no covariance with any other, so its column of M is not needed
+        for (int k = 0; k < nCoordinates; k++) {
+            for (int j = 0; j < nCoordinates; j++) {
+                transfer[j][k] = (offset[k] > 0)
+                    ? (probes.get(j, 2 * k + 1) - probes.get(j, 2 * k + 2)) / (2 * offset[k]) : 0.0;
+            }
+        }
+        for (int j = 0; j < nCoordinates; j++) {
+            centroid[j] = probes.get(j, 0);
+            for (int k = 0; k < nCoordinates; k++) {
+                double sum = 0.0;
+                for (int m = 0; m < nCoordinates; m++) {
+                    sum += transfer[j][m] * sigma[m][k];
+                }
+                product[j][k] = sum;
+            }
+        }
+        for (int j = 0; j < nCoordinates; j++) {
+            for (int k = 0; k <= j; k++) {
+                double sum = 0.0;
+                for (int m = 0; m < nCoordinates; m++) {
+                    sum += product[j][m] * transfer[k][m];
+                }
+                sigma[j][k] = sum;
+                sigma[k][j] = sum;
+            }
+        }
+    }
+
+    /**
+     * Find the average position of the particles, as Bunch.getPosition
+     * @return the average position
+     */
+    public PhysicsVector getPosition() {
+        return new PhysicsVector(centroid[ParticleStore.X], centroid[ParticleStore.Y], centroid[ParticleStore.Z]);
+    }
+
+    /**
+     * Find the average velocity of the particles, as Bunch.getVelocity
+     * @return the average velocity
+     */
+    public PhysicsVector getVelocity() {
+        return new PhysicsVector(centroid[ParticleStore.VX], centroid[ParticleStore.VY], centroid[ParticleStore.VZ]);
+    }
+
+    /**
+     * Find the standard deviation of the particle positions in x, y and z, as Bunch.getSpreadSD
+     * @return the standard deviation in x, y and z
+     */
+    public PhysicsVector getSpreadSD() {
+        return new PhysicsVector(Math.sqrt(sigma[ParticleStore.X][ParticleStore.X]),
+            Math.sqrt(sigma[ParticleStore.Y][ParticleStore.Y]), Math.sqrt(sigma[ParticleStore.Z][ParticleStore.Z]));
+    }
+
+    /**
+     * Return the covariance of two of the coordinates
+     * @param j the first, e.g. ParticleStore.X
+     * @param k the second
+     * @return the covariance
+     */
+    public double getSigma(int j, int k) {
+        return sigma[j][k];
+    }
+}
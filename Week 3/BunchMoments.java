@@ -0,0 +1,243 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Partial sums describing part of a bunch: the number of particles and, for each of x, y, z, v_x, v_y and v_z,
+ * the sum, the sum of squares, the minimum and the maximum.
+ * Moments of separate ranges of particles can be merged, and every statistic reported by Bunch
+ * (average position and velocity, sd spread, maximum and full spread, maximum velocity spread)
+ * can be worked out from them.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class BunchMoments {
+
+    public static final int nQuantities = 6; // x, y, z, v_x, v_y, v_z (the first six columns of a ParticleStore)
+
+    private long count = 0;
+    private final double[] sum = new double[nQuantities];
+    private final double[] sumSq = new double[nQuantities];
+    private final double[] min = new double[nQuantities];
+    private final double[] max = new double[nQuantities];
+
+    /**
+     * Default constructor, the moments of no particles
+     */
+    public BunchMoments() {
+        for (int q = 0; q < nQuantities; q++) {
+            min[q] = Double.POSITIVE_INFINITY;
+            max[q] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Work out the moments of particles from (inclusive) to to (exclusive) of a store
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @return the moments of those particles
+     */
+    public static BunchMoments of(ParticleStore store, int from, int to) {
+        BunchMoments moments = new BunchMoments();
+        moments.accumulate(store, from, to);
+        return moments;
+    }
+
+    /**
+     * Add the particles from (inclusive) to to (exclusive) of a store to these moments
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     */
+    public void accumulate(ParticleStore store, int from, int to) {
+        for (int q = 0; q < nQuantities; q++) {
+            double s = 0.0, s2 = 0.0, lo = min[q], hi = max[q];
+            for (int i = from; i < to; i++) {
+                double a = store.get(q, i);
+                s += a;
+                s2 += a * a;
+                if (a < lo) lo = a;
+                if (a > hi) hi = a;
+            }
+            sum[q] += s;
+            sumSq[q] += s2;
+            min[q] = lo;
+            max[q] = hi;
+        }
+        count += to - from;
+    }
+
+    /**
+     * Add the value of each quantity for a single particle
+     * @param values x, y, z, v_x, v_y and v_z of the particle
+     */
+    public void accumulate(double[] values) {
+        for (int q = 0; q < nQuantities; q++) {
+            double a = values[q];
+            sum[q] += a;
+            sumSq[q] += a * a;
+            if (a < min[q]) min[q] = a;
+            if (a > max[q]) max[q] = a;
+        }
+        count++;
+    }
+
+    /**
+     * Merge the moments of another, separate, set of particles into these ones.
+     * Sums are added in the order merge is called, so merging the same parts in the same order
+     * always gives the same answer.
+     * @param other the moments to merge
+     */
+    public void add(BunchMoments other) {
+        for (int q = 0; q < nQuantities; q++) {
+            sum[q] += other.sum[q];
+            sumSq[q] += other.sumSq[q];
+            if (other.min[q] < min[q]) min[q] = other.min[q];
+            if (other.max[q] > max[q]) max[q] = other.max[q];
+        }
+        count += other.count;
+    }
+
+    /**
+     * Return the number of particles
+     * @return number of particles
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum(int q) {
+        return sum[q];
+    }
+
+    public double getSumSq(int q) {
+        return sumSq[q];
+    }
+
+    public double getMin(int q) {
+        return min[q];
+    }
+
+    public double getMax(int q) {
+        return max[q];
+    }
+
+    /**
+     * Set all the sums for one quantity, used when moments are read back from elsewhere
+     * @param q the quantity, e.g. ParticleStore.X
+     * @param sumIn sum of the quantity
+     * @param sumSqIn sum of its squares
+     * @param minIn its minimum
+     * @param maxIn its maximum
+     */
+    public void set(int q, double sumIn, double sumSqIn, double minIn, double maxIn) {
+        sum[q] = sumIn;
+        sumSq[q] = sumSqIn;
+        min[q] = minIn;
+        max[q] = maxIn;
+    }
+
+    /**
+     * Set the number of particles, used when moments are read back from elsewhere
+     * @param countIn number of particles
+     */
+    public void setCount(long countIn) {
+        count = countIn;
+    }
+
+    /**
+     * Write the moments in binary, for example to send them to another JVM
+     * @param out where to write them
+     * @throws IOException if they cannot be written
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(count);
+        for (int q = 0; q < nQuantities; q++) {
+            out.writeDouble(sum[q]);
+            out.writeDouble(sumSq[q]);
+            out.writeDouble(min[q]);
+            out.writeDouble(max[q]);
+        }
+    }
+
+    /**
+     * Read moments written by write
+     * @param in where to read them from
+     * @return the moments
+     * @throws IOException if they cannot be read
+     */
+    public static BunchMoments read(DataInput in) throws IOException {
+        BunchMoments moments = new BunchMoments();
+        moments.setCount(in.readLong());
+        for (int q = 0; q < nQuantities; q++) {
+            moments.set(q, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        }
+        return moments;
+    }
+
+    private double mean(int q) {
+        return sum[q] * (1.0 / count);
+    }
+
+    private double sd(int q) {
+        double average = mean(q);
+        return Math.sqrt(sumSq[q] * (1.0 / count) - average * average);
+    }
+
+    private double maxDeviation(int q) {
+        double average = mean(q);
+        return Math.max(max[q] - average, average - min[q]);
+    }
+
+    /**
+     * Find the average position of the particles
+     * @return the average position
+     */
+    public PhysicsVector getPosition() {
+        return new PhysicsVector(mean(ParticleStore.X), mean(ParticleStore.Y), mean(ParticleStore.Z));
+    }
+
+    /**
+     * Find the average velocity of the particles
+     * @return the average velocity
+     */
+    public PhysicsVector getVelocity() {
+        return new PhysicsVector(mean(ParticleStore.VX), mean(ParticleStore.VY), mean(ParticleStore.VZ));
+    }
+
+    /**
+     * Find the standard deviation of the particle positions in x, y and z
+     * @return the standard deviation in x, y and z
+     */
+    public PhysicsVector getSpreadSD() {
+        return new PhysicsVector(sd(ParticleStore.X), sd(ParticleStore.Y), sd(ParticleStore.Z));
+    }
+
+    /**
+     * Find the difference between the largest and smallest position in x, y and z
+     * @return the full spread in x, y and z
+     */
+    public PhysicsVector getFullSpread() {
+        return new PhysicsVector(max[ParticleStore.X] - min[ParticleStore.X],
+            max[ParticleStore.Y] - min[ParticleStore.Y],
+            max[ParticleStore.Z] - min[ParticleStore.Z]);
+    }
+
+    /**
+     * Find the furthest deviation of any particle from the average position in x, y and z
+     * @return the maximum spread in x, y and z
+     */
+    public PhysicsVector getSpreadMax() {
+        return new PhysicsVector(maxDeviation(ParticleStore.X), maxDeviation(ParticleStore.Y), maxDeviation(ParticleStore.Z));
+    }
+
+    /**
+     * Find the furthest deviation of any particle from the average velocity in v_x, v_y and v_z
+     * @return the maximum spread in v_x, v_y and v_z
+     */
+    public PhysicsVector getVSpreadMax() {
+        return new PhysicsVector(maxDeviation(ParticleStore.VX), maxDeviation(ParticleStore.VY), maxDeviation(ParticleStore.VZ));
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Something that can advance a range of the particles in a ParticleStore by one time step.
+ * Implementations must only touch particles in the range they are given, so that separate
+ * ranges can be pushed by separate threads at the same time.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public interface BunchPusher {
+
+    /**
+     * Advance particles from (inclusive) to to (exclusive) by one time step
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param time the time at the end of the step
+     * @param timeStep the length of the step
+     */
+    void push(ParticleStore store, int from, int to, double time, double timeStep);
+
+    /**
+     * Return whether the pusher keeps state of its own for each particle between steps, as an Integrator may (see
+     * Integrator.keepsParticleState)
+     * @return true if it keeps any
+     */
+    default boolean keepsParticleState() {
+        return false;
+    }
+
+    /**
+     * Return the state the pusher keeps for a particle of a store
+     * @param store the particles
+     * @param i index of the particle
+     * @return the state, 0 if none is kept
+     */
+    default double getParticleState(ParticleStore store, int i) {
+        return 0.0;
+    }
+
+    /**
+     * Set the state the pusher keeps for a particle of a store, as given by getParticleState
+     * @param store the particles
+     * @param i index of the particle
+     * @param value the state
+     */
+    default void setParticleState(ParticleStore store, int i, double value) {
+    }
+}
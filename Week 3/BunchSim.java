@@ -30,30 +30,63 @@ public class BunchSim {
    	 	int pStep=1000; // print output on every pStep time steps
    	 	boolean checkSpread=true; // whether to check for spreadX == spreadY
    	 	double spreadTol=0.1; // the tolerance to use in checking for the spreads to be equal
+   	 	char storage='H'; // where to hold the bunch: H => heap arrays, O => off-heap memory, M => memory-mapped file
+   	 	int nThreads=Runtime.getRuntime().availableProcessors(); // number of threads pushing the bunch (results do not depend on it)
+   	 	int blockSteps=64; // steps each cache-sized tile of the bunch is advanced before moving on (1 => whole bunch every step)
+   	 	String checkpointDir="checkpoints"; // where to save checkpoints to restart an unfinished run from
+   	 	double checkpointInterval=300; // seconds between checkpoints
+   	 	boolean restart=false; // carry on from the last checkpoint of an unfinished run with the same parameters, rather than starting afresh
+   	 	String integrator="euler"; // the integration method, see Integrator.forName
    	 	
    	 	// E and B parameters
    	 	double bMag=1.0e-7; // magnetic flux density in Tesla
    	 	double bErr=1.0e-1; // fractional difference in magnetic flux density between positive and negative x regions
-		EMField theField = new EMField(); 
    	 	
 		// Bunch parameters 
    	 	int nProtons = 100;
    	 	double pSpeed=0.1; // initial average speed in ms^-1
-   	 	double pEnergy = 0.5*Proton.pMass*(pSpeed)*(pSpeed); // initial average energy of particles in bunch (non-relativistic)
-   	 	double pESpread= 0.00*pEnergy; // absolute spread in energy of particles in the bunch
-   	 	double frequency=(Proton.pCharge*bMag/(2*Math.PI*Proton.pMass)); // expected frequency of bunch orbit
-		double radius=Proton.pMass*pSpeed/(Proton.pCharge*bMag); // expected radius of bunch orbit
+   	 	double pESpread= 0.00; // spread in energy of particles in the bunch, relative to the average energy
+   	 	double pSpreadX= 0.1; // absolute spread in x position of particles in bunch
    	 	
-   	 	PhysicsVector pDirn = new PhysicsVector(0,1,0); // direction of bunch at start of simulation
-   	 	PhysicsVector pDirnSpread=new PhysicsVector(0,0,0); // relative spread in the direction of the bunch at the start of the simulation
-   	 	PhysicsVector pOrigin= new PhysicsVector(); // nominal average position of bunch at start of simulation
-   	 	PhysicsVector pSpread = new PhysicsVector(0.1, 0*radius/100, 0); // absolute spread in position of particles in bunch
+   	 	// Collect the parameters, see BunchSimulation for how each one is used
+   	 	SimRecord parameters = new SimRecord()
+   	 		.set("timeStep",timeStep).set("maxTime",maxTime).set("maxRev",maxRev)
+   	 		.set("outFileName",outFileName).set("rDist",rDist)
+   	 		.set("checkSpread",checkSpread).set("spreadTol",spreadTol)
+   	 		.set("storage",storage).set("nThreads",nThreads).set("blockSteps",blockSteps)
+   	 		.set("integrator",integrator)
+   	 		.set("checkpointDir",checkpointDir).set("checkpointInterval",checkpointInterval)
+   	 		.set("bMag",bMag).set("bErr",bErr)
+   	 		.set("nProtons",nProtons).set("pSpeed",pSpeed).set("pESpread",pESpread).set("pSpreadX",pSpreadX);
    	 	
-   	 	// Open a file to save the bunch positions in
+   	 	//Make a bunch of protons, or carry on from the last checkpoint of an unfinished run if asked to
+   	 	BunchSimulation simulation = null;
+   	 	boolean restarted = false;
+   	 	try{
+   	 		simulation = new BunchSimulation(parameters);
+   	 		Checkpointer checkpointer = Checkpointer.fromParameters(parameters);
+   	 		simulation.setCheckpointer(checkpointer);
+   	 		if (restart){
+   	 			restarted = simulation.restart();
+   	 		}
+   	 		else if (checkpointer != null && checkpointer.discard()){
+   	 			System.out.println("Discarded the checkpoints of an unfinished run with these parameters (set restart to carry on from them)");
+   	 		}
+   	 	}
+   	 	catch (IOException e){
+   	 		System.out.println("Exception making bunch: " + e.getMessage());
+   	 		System.exit(4);
+   	 	}
+   	 	
+   	 	// Open a file to save the bunch positions in, keeping those written before the checkpoint on a restart
    	 	final PrintWriter outFile;
    	 	PrintWriter tryFile=null;
    	 	try{
-   	 		tryFile = new PrintWriter(outFileName);
+   	 		if (restarted){
+   	 			Checkpointer.truncateLines(new File(outFileName), simulation.getTrackLines());
+   	 			System.out.println("Restarting from checkpoint at time " + simulation.getTime() + " s, revolution " + simulation.getRevolutions());
+   	 		}
+   	 		tryFile = new PrintWriter(new FileWriter(outFileName, restarted));
    	 	}
    	 	catch (IOException e){
    	 		System.out.println("Exception opening file: " + e.getMessage());
@@ -62,83 +95,182 @@ public class BunchSim {
    	 	finally{
    	 		outFile=tryFile;
    	 	}
+   	 	System.out.println(simulation.getBunch());
    	 	
-   	 	//Make a bunch of protons 
-   	 	Proton aProton = new Proton();
-   	 	Bunch<Proton> pBunch = new Bunch<Proton>();
-   	 	
-   	 	for (int i=1; i<=nProtons; i++){
-   	 		pBunch.addParticle(new Proton(aProton));
-   	 	}
-   	 		
-   	 	
-   	 	pBunch.setDist(rDist);
-   	 	pBunch.setPosition(pOrigin,pSpread);
-   	 	pBunch.setVelocity(pDirn,pDirnSpread,pEnergy,pESpread);
-   	 	System.out.println(pBunch);
-   	 	
-   	 	// Set up the simulation
-		double time=0.0; 
-		int nRev=0; // number of orbits the proton bunch completes
-		double lastTime=0.0; // The time at which the last 'turn' ended
-		double spreadX=0.0;
-		double spreadY=0.0;
-		OrbitTracker<Proton> bunchOrbit = new OrbitTracker<Proton>(pOrigin); // Start tracking the orbit of the bunch
-	
-		
-		while(nRev<maxRev && time < maxTime){// Loop over time
-			time+=timeStep;
-			
-			 //Move all particles in the bunch 
-			 Iterator<Proton> bunchIt = pBunch.iterator();
-			 while(bunchIt.hasNext()){
-			 	Proton proton=bunchIt.next();
-				theField.setElectric(new PhysicsVector()); // Set up the cyclotron fields
-				theField.setMagnetic(cyclotronBField(proton.getPosition(),time,bMag,bMag*(1.0-bErr)));
-				
-				proton.update(timeStep, theField.getAcceleration(proton));
-			 }
-				
-				
-			
-			
-			if (((int)(time/timeStep))%pStep==1){ // Write out the bunch position at intervals
-				outFile.println((pBunch.getPosition()).returnSimpleString());
-			}
-			
-			if (bunchOrbit.hasOrbited(pBunch)){
-				// bunch has completed an orbit
-				nRev+=1;
-				System.out.printf("Revolution number %3d at time %10.6f s\n", nRev, time);
-				System.out.printf("Period of this revolution is  %10.6f s\n",(time-lastTime)); 
-				System.out.println(pBunch);
-				System.out.println();
-				lastTime=time;
-				PhysicsVector spread= pBunch.getSpreadMax();
-				spreadX=spread.getX();
-				spreadY=spread.getY();
-				if (checkSpread && spreadTest(spreadX, spreadY,spreadTol)){ // Check the spreads and quit if they are equal within tolerance.
-					break;
-				}
-			}
-		}                          
+   	 	// Run the simulation, printing revolutions on another thread
+		SnapshotPublisher publisher = new SnapshotPublisher(2, BunchSim::printRevolution);
+		simulation.setTrackOutput(outFile, pStep);
+		simulation.setPublisher(publisher);
+		SimRecord results = simulation.run();
+		publisher.close(); // wait for the last revolutions to be printed
 		
 		// After simulation, calculate the average periodic orbit 
-		double calcPeriod=1/frequency;
-		double simPeriod=time/nRev;
-		double radius2=Proton.pMass*(pBunch.getVelocity()).magnitude()/(Proton.pCharge*bMag);
+		double calcPeriod=results.getDouble("calcPeriod",0);
+		double simPeriod=results.getDouble("simPeriod",0);
 		System.out.println("\n\n");
 		System.out.println("Magnetic flux density " + bMag + " Tesla ");
 		System.out.println("Calculated period of orbit " + calcPeriod + " s");
 		System.out.println("Simulated period of orbit " + simPeriod + " s");  
-		System.out.println("Fractional difference " + (calcPeriod-simPeriod)/calcPeriod + "\n");
-		System.out.println("Initial radius of orbit (calculated) " + radius + " m");
-		System.out.println("Final radius of orbit (calculated) " + radius2 + " m\n\n");
+		System.out.println("Fractional difference " + results.getDouble("periodError",0) + "\n");
+		System.out.println("Initial radius of orbit (calculated) " + results.getDouble("radius",0) + " m");
+		System.out.println("Final radius of orbit (calculated) " + results.getDouble("finalRadius",0) + " m\n\n");
 		
+		try{
+			simulation.close();
+		}
+		catch (IOException e){
+			System.out.println("Exception closing bunch file: " + e.getMessage());
+		}
 		outFile.close(); 
 		System.exit(0); // Exit (stopping the timer thread that would otherwise keep the process running)
 	}
 	
+	/**
+	* Print the report for a completed revolution of the bunch
+	*
+	* @param snapshot	the state of the bunch when the revolution was completed
+	*/
+	public static void printRevolution(BunchSnapshot snapshot)
+	{
+		System.out.printf("Revolution number %3d at time %10.6f s\n", snapshot.getRevolution(), snapshot.getTime());
+		System.out.printf("Period of this revolution is  %10.6f s\n", snapshot.getPeriod()); 
+		System.out.println(snapshot.getBunch());
+		System.out.println();
+	}
+	
+	/**
+	* Pushes a range of protons by one step of an Integrator (Euler unless another is given) in the 
+	* cyclotron field of cyclotronBField, which it also provides to the integrator.
+	* The field of array stores is found with the batched LorentzKernel unless it has been switched off,
+	* that of other stores one particle at a time.
+	*/
+	public static class CyclotronPusher implements BunchPusher, PiecewiseUniformField
+	{
+		private final double b1, b2; // field in the regions x>0 and x=<0
+		private final PhysicsVector bPositive, bNegative, electric;
+		private final ThreadLocal<LorentzKernel> kernels; // one per thread, each with room for the ranges its thread pushes
+		private final Integrator integrator;
+		
+		/**
+		* Constructor for Euler steps
+		* @param bMag 	magnetic flux density in the region x>0
+		* @param bErr 	fractional difference in magnetic flux density between positive and negative x regions
+		* @param nParticles 	the number of particles that will be pushed
+		*/
+		public CyclotronPusher(double bMag, double bErr, int nParticles)
+		{
+			this(bMag, bErr, nParticles, Integrator.euler);
+		}
+		
+		/**
+		* Constructor
+		* @param bMag 	magnetic flux density in the region x>0
+		* @param bErr 	fractional difference in magnetic flux density between positive and negative x regions
+		* @param nParticles 	the number of particles that will be pushed
+		* @param integratorIn 	the integrator to step with
+		*/
+		public CyclotronPusher(double bMag, double bErr, int nParticles, Integrator integratorIn)
+		{
+			b1=bMag;
+			b2=bMag*(1.0-bErr);
+			bPositive=new PhysicsVector(0,0,b1);
+			bNegative=new PhysicsVector(0,0,b2);
+			electric=new PhysicsVector();
+			kernels=ThreadLocal.withInitial(() -> new LorentzKernel(Math.min(nParticles, ParallelStepper.defaultChunkSize)));
+			integrator=integratorIn;
+		}
+		
+		@Override
+		public void push(ParticleStore store, int from, int to, double time, double timeStep)
+		{
+			integrator.step(store, from, to, time, timeStep, this);
+		}
+		
+		@Override
+		public boolean keepsParticleState()
+		{
+			return integrator.keepsParticleState();
+		}
+		
+		@Override
+		public double getParticleState(ParticleStore store, int i)
+		{
+			return integrator.getParticleState(store, i);
+		}
+		
+		@Override
+		public void setParticleState(ParticleStore store, int i, double value)
+		{
+			integrator.setParticleState(store, i, value);
+		}
+		
+		@Override
+		public void accelerate(ParticleStore store, int from, int to, double time)
+		{
+			if (LorentzKernel.isEnabled() && store instanceof ArrayParticleStore){
+				ArrayParticleStore arrays = (ArrayParticleStore) store;
+				LorentzKernel kernel = kernels.get();
+				kernel.piecewiseField(arrays, from, to, bPositive, bNegative);
+				kernel.accelerate(arrays, from, to, electric);
+			}
+			else{
+				EMField theField = new EMField(); // one per call, so that threads never share a field
+				for (int i=from; i<to; i++){
+					theField.setMagnetic(0,0,cyclotronBField(store.getX(i),time,b1,b2));
+					theField.setAcceleration(store, i);
+				}
+			}
+		}
+		
+		@Override
+		public void fields(ParticleStore store, int from, int to, double time, double[][] e, double[][] b)
+		{
+			for (int i=from; i<to; i++){
+				int k=i-from;
+				e[0][k]=electric.getX();
+				e[1][k]=electric.getY();
+				e[2][k]=electric.getZ();
+				b[0][k]=0;
+				b[1][k]=0;
+				b[2][k]=cyclotronBField(store.getX(i),time,b1,b2);
+			}
+		}
+		
+		@Override
+		public double regionB(boolean positiveX)
+		{
+			return positiveX ? b1 : b2;
+		}
+		
+		@Override
+		public boolean isMagnetostatic()
+		{
+			return true;
+		}
+	}
+	
+	/**
+	* Method to make an empty bunch of protons held in the requested storage
+	*
+	* @param storage	H => particle objects packed into heap arrays, O => off-heap memory, M => memory-mapped file
+	* @param nProtons	the number of protons the bunch will hold
+	* @param outFileName	the output file name, used to name the mapped file
+	* @return the empty bunch
+	* @throws IOException if the mapped file cannot be created
+	*/
+	public static Bunch<Proton> makeBunch(char storage, int nProtons, String outFileName) throws IOException
+	{
+		if (storage=='O'){
+			return new Bunch<Proton>(new OffHeapParticleStore(nProtons), Proton::new);
+		}
+		else if (storage=='M'){
+			return new Bunch<Proton>(new OffHeapParticleStore(nProtons, new File(outFileName+".bunch")), Proton::new);
+		}
+		else{
+			return new Bunch<Proton>();
+		}
+	}
+	
 	/**
 	* Method to test whether spreads in X and Y are equal within tolerance
 	*
@@ -166,15 +298,25 @@ public class BunchSim {
 	*
 	*/
 	public static PhysicsVector cyclotronBField(PhysicsVector position,  double time, double b1, double b2){
-	 	PhysicsVector bField = new PhysicsVector(0,0,1);
-	 	
-	 	if (position.getX()>0){
-	 	 	bField.scale(b1);
+	 	return new PhysicsVector(0,0,cyclotronBField(position.getX(),time,b1,b2)); 
+	}	
+	
+	/**
+	* Method for calculating the z component of the cyclotron B field at a given x position, without creating a vector.
+	* We assume the field has value b1 in region x>0 and value b2 in region x=<0
+	* @param x the x position of the particle 
+	* @param time the time at which we're evaluating the field (not used)
+	* @param b1 the amplitude of the B field in the region x>0
+	* @param b2 the amplitude of the B field in the region x=<0
+	* @return the z component of the B field
+	*/
+	public static double cyclotronBField(double x,  double time, double b1, double b2){
+	 	if (x>0){
+	 	 	return b1;
 		}
 		else{
-			bField.scale(b2);
+			return b2;
 		}
-	 	return bField; 
 	}	
 	
 }
@@ -0,0 +1,380 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * The simulation of a bunch of protons in the cyclotron field of BunchSim, set up from a SimRecord of parameters
+ * so that it can be run many times in one JVM (for example by SweepRunner) as well as from BunchSim.main.
+ *
+ * Parameters, with their defaults (those of BunchSim):
+ *   timeStep=0.00001, maxTime=3000, maxRev=1000, bMag=1.0e-7, bErr=0.1, nProtons=100, pSpeed=0.1,
+ *   pESpread=0 (spread in energy relative to the average), pSpreadX=0.1 (spread in start x in m), rDist=U,
+ *   checkSpread=true, spreadTol=0.1, storage=H, nThreads=number of processors, blockSteps=64, integrator=euler,
+ *   atol=1e-12, rtol=1e-9 (tolerances of integrator=rk45), levels=0, maxAngle=0.1 (see BlockTimeSteps),
+ *   fullOrbit=boris, gcTolerance=1e-2, gyroSteps=32 (of integrator=guidingCentre, see GuidingCentre),
+ *   outFileName=week2.data (names the mapped file when storage=M), seed (unseeded if not given),
+ *   nWorkers=0 (if more than 0 the bunch is shared out between that many worker JVMs, see DistributedStepper),
+ *   checkpointDir, checkpointInterval=300, keyframeEvery=8 (see Checkpointer).
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class BunchSimulation implements AutoCloseable {
+
+    private final SimRecord parameters;
+    private final double timeStep, maxTime, bMag, spreadTol, pSpeed;
+    private final int maxRev, blockSteps;
+    private final boolean checkSpread;
+    private final Bunch<Proton> pBunch;
+    private final ParticleStore store;
+    private final Integrator integrator; // null if the bunch is held by the workers
+    private final BlockStepper stepper;
+    private final OrbitTracker<Proton> bunchOrbit;
+
+    private double time = 0.0;
+    private int nRev = 0; // number of orbits the proton bunch completes
+    private double lastTime = 0.0; // the time at which the last 'turn' ended
+    private double spreadX = 0.0, spreadY = 0.0;
+    private boolean spreadsEqual = false;
+    private boolean finished = false;
+
+    private PrintWriter trackOut = null; // where to write the bunch position every pStep steps, if anywhere
+    private int pStep = 1000;
+    private long trackLines = 0; // lines written to trackOut, so a restart can cut off those written after its checkpoint
+    private SnapshotPublisher publisher = null; // who to show the bunch at every revolution, if anyone
+    private Checkpointer checkpointer = null; // where to save the state between blocks, if anywhere
+
+    /**
+     * Constructor, makes the bunch at its start position
+     * @param parametersIn the parameters of the simulation, any not given take their default
+     * @throws IOException if the bunch is to be memory mapped and the file cannot be created
+     */
+    public BunchSimulation(SimRecord parametersIn) throws IOException {
+        parameters = new SimRecord(parametersIn);
+        timeStep = parameters.getDouble("timeStep", 0.00001);
+        maxTime = parameters.getDouble("maxTime", 3000);
+        maxRev = parameters.getInt("maxRev", 1000);
+        checkSpread = parameters.getBoolean("checkSpread", true);
+        spreadTol = parameters.getDouble("spreadTol", 0.1);
+        blockSteps = Math.max(parameters.getInt("blockSteps", 64), 1);
+        bMag = parameters.getDouble("bMag", 1.0e-7);
+        pSpeed = parameters.getDouble("pSpeed", 0.1);
+
+        bunchOrbit = new OrbitTracker<Proton>(new PhysicsVector()); // Start tracking the orbit of the bunch
+        if (parameters.getInt("nWorkers", 0) > 0) {
+            pBunch = null; // the bunch is held by the workers
+            store = null;
+            integrator = null;
+            stepper = new DistributedStepper(parameters);
+        }
+        else {
+            pBunch = makeBunch(parameters);
+            store = pBunch.getStore(); // push the bunch directly over its columns
+            integrator = Integrator.fromParameters(parameters);
+            stepper = makeStepper(parameters, store, integrator);
+        }
+        if (blockSteps > 1) {
+            stepper.keepBlockStart(); // so a block can be cut short at a revolution
+        }
+    }
+
+    /**
+     * Make a bunch of protons at its start position, as given by the parameters
+     * @param parametersIn the parameters of the simulation
+     * @return the bunch
+     * @throws IOException if the bunch is to be memory mapped and the file cannot be created
+     */
+    public static Bunch<Proton> makeBunch(SimRecord parametersIn) throws IOException {
+        int nProtons = parametersIn.getInt("nProtons", 100);
+        double pSpeed = parametersIn.getDouble("pSpeed", 0.1);
+        double pEnergy = 0.5 * Proton.pMass * (pSpeed) * (pSpeed); // initial average energy of particles in bunch
+        double pESpread = parametersIn.getDouble("pESpread", 0) * pEnergy;
+
+        PhysicsVector pDirn = new PhysicsVector(0, 1, 0); // direction of bunch at start of simulation
+        PhysicsVector pDirnSpread = new PhysicsVector(0, 0, 0);
+        PhysicsVector pOrigin = new PhysicsVector(); // nominal average position of bunch at start of simulation
+        PhysicsVector pSpread = new PhysicsVector(parametersIn.getDouble("pSpreadX", 0.1), 0, 0);
+
+        Bunch<Proton> pBunch = BunchSim.makeBunch(parametersIn.getChar("storage", 'H'), nProtons,
+            parametersIn.getString("outFileName", "week2.data"));
+        Proton aProton = new Proton();
+        for (int i = 1; i <= nProtons; i++) {
+            pBunch.addParticle(new Proton(aProton));
+        }
+        if (parametersIn.has("seed")) {
+            pBunch.setSeed(parametersIn.getLong("seed", 0));
+        }
+        pBunch.setDist(parametersIn.getChar("rDist", 'U'));
+        pBunch.setPosition(pOrigin, pSpread);
+        pBunch.setVelocity(pDirn, pDirnSpread, pEnergy, pESpread);
+        return pBunch;
+    }
+
+    /**
+     * Make the stepper that pushes a bunch in this JVM through the cyclotron field given by the parameters, with the
+     * integrator they name
+     * @param parametersIn the parameters of the simulation
+     * @param storeIn the bunch
+     * @return the stepper
+     */
+    public static ParallelStepper makeStepper(SimRecord parametersIn, ParticleStore storeIn) {
+        return makeStepper(parametersIn, storeIn, Integrator.fromParameters(parametersIn));
+    }
+
+    /**
+     * Make the stepper that pushes a bunch in this JVM through the cyclotron field given by the parameters
+     * @param parametersIn the parameters of the simulation
+     * @param storeIn the bunch
+     * @param integrator the integrator to step with
+     * @return the stepper
+     */
+    public static ParallelStepper makeStepper(SimRecord parametersIn, ParticleStore storeIn, Integrator integrator) {
+        return new ParallelStepper(storeIn, new BunchSim.CyclotronPusher(parametersIn.getDouble("bMag", 1.0e-7),
+            parametersIn.getDouble("bErr", 1.0e-1), storeIn.size(), integrator),
+            parametersIn.getInt("nThreads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Write the average position of the bunch to a file at intervals
+     * @param out where to write the positions
+     * @param pStepIn write on every pStep time steps
+     */
+    public void setTrackOutput(PrintWriter out, int pStepIn) {
+        trackOut = out;
+        pStep = pStepIn;
+    }
+
+    /**
+     * Publish the state of the bunch at every completed revolution
+     * @param publisherIn the publisher to use
+     */
+    public void setPublisher(SnapshotPublisher publisherIn) {
+        publisher = publisherIn;
+    }
+
+    /**
+     * Save checkpoints of the simulation between blocks
+     * @param checkpointerIn the checkpointer, or null to save none
+     */
+    public void setCheckpointer(Checkpointer checkpointerIn) {
+        if (checkpointerIn != null && store == null) {
+            throw new UnsupportedOperationException("the bunch is held by worker JVMs and cannot be checkpointed here");
+        }
+        checkpointer = checkpointerIn;
+    }
+
+    /**
+     * Carry on from the latest checkpoint of this run, if there is one
+     * @return true if the simulation was restarted from a checkpoint
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public boolean restart() throws IOException {
+        SimRecord state = (checkpointer != null) ? checkpointer.restore(store, integrator) : null;
+        if (state == null) {
+            return false;
+        }
+        setState(state);
+        return true;
+    }
+
+    /**
+     * Return the scalar state of the simulation between blocks: everything that changes as it runs apart from the
+     * bunch itself
+     * @return the state
+     */
+    public SimRecord getState() {
+        return new SimRecord()
+            .set("time", time).set("nRev", nRev).set("lastTime", lastTime)
+            .set("spreadX", spreadX).set("spreadY", spreadY).set("spreadsEqual", spreadsEqual)
+            .set("converge", bunchOrbit.converge).set("displacement", bunchOrbit.displacement)
+            .set("trackLines", trackLines);
+    }
+
+    /**
+     * Carry on from a state given by getState, with the bunch restored to where it was at the same time
+     * @param state the state
+     */
+    public void setState(SimRecord state) {
+        time = state.getDouble("time", 0.0);
+        nRev = state.getInt("nRev", 0);
+        lastTime = state.getDouble("lastTime", 0.0);
+        spreadX = state.getDouble("spreadX", 0.0);
+        spreadY = state.getDouble("spreadY", 0.0);
+        spreadsEqual = state.getBoolean("spreadsEqual", false);
+        bunchOrbit.converge = state.getBoolean("converge", false);
+        bunchOrbit.displacement = state.getDouble("displacement", 0.0);
+        trackLines = state.getLong("trackLines", 0);
+    }
+
+    /**
+     * Return the number of lines written to the track output
+     * @return the number of lines
+     */
+    public long getTrackLines() {
+        return trackLines;
+    }
+
+    /**
+     * Advance the bunch by one block of blockSteps time steps, or fewer: a block is not taken past maxTime, and ends
+     * at the step of a revolution, so that the bunch is published, checked and (if that was the last revolution) left
+     * as it was at that step, as it is with blockSteps=1
+     * @return true if the simulation has finished
+     */
+    public boolean advance() {
+        //Move all particles in the bunch up to blockSteps steps, the threads meet once the block is done
+        int nSteps = 0;
+        double blockTime = time; // time at the start of the block
+        do {
+            blockTime += timeStep;
+            nSteps++;
+        } while (nSteps < blockSteps && blockTime < maxTime);
+        blockTime = time;
+        stepper.step(time, timeStep, nSteps);
+
+        // Replay the block step by step from the recorded centroids. At a revolution the bunch is put back to
+        // that step, so anything that needs the whole bunch (publishing it, the spread check) sees it then.
+        for (int k = 0; k < nSteps && !finished; k++) {
+            blockTime += timeStep;
+            time = blockTime;
+            PhysicsVector centroid = stepper.getCentroid(k);
+
+            if (trackOut != null && ((int) (time / timeStep)) % pStep == 1) { // Write out the bunch position at intervals
+                trackOut.println(centroid.returnSimpleString());
+                trackLines++;
+            }
+
+            if (bunchOrbit.hasOrbited(centroid)) {
+                // bunch has completed an orbit, the block ends here
+                if (k < nSteps - 1) {
+                    stepper.rewind(k);
+                    nSteps = k + 1;
+                }
+                nRev += 1;
+                if (publisher != null && store != null) {
+                    publisher.publish(store, time, nRev, time - lastTime);
+                }
+                lastTime = time;
+                PhysicsVector spread = stepper.getMoments().getSpreadMax();
+                spreadX = spread.getX();
+                spreadY = spread.getY();
+                if (checkSpread && BunchSim.spreadTest(spreadX, spreadY, spreadTol)) { // Check the spreads and quit if they are equal within tolerance.
+                    spreadsEqual = true;
+                    finished = true;
+                }
+            }
+            finished = finished || nRev >= maxRev || time >= maxTime;
+        }
+        if (!finished) {
+            if (checkpointer != null && checkpointer.isDue()) {
+                if (trackOut != null) {
+                    trackOut.flush(); // so the file holds every line the checkpoint counts
+                }
+                checkpointer.save(getState(), store, integrator);
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Advance the bunch until the simulation is over
+     * @return the results, as given by getResults
+     */
+    public SimRecord run() {
+        while (!advance()) {
+        }
+        return getResults();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Return the results so far: time, nRev, the calculated and simulated period of the orbit and their fractional
+     * difference, the calculated radius of the orbit at the start and from the final average velocity, the last
+     * spreads in x and y and whether they were found to be equal
+     * @return the results
+     */
+    public SimRecord getResults() {
+        double frequency = (Proton.pCharge * bMag / (2 * Math.PI * Proton.pMass)); // expected frequency of bunch orbit
+        double calcPeriod = 1 / frequency;
+        double simPeriod = time / nRev;
+        PhysicsVector finalVelocity = (pBunch != null) ? pBunch.getVelocity() : stepper.getMoments().getVelocity();
+        return new SimRecord()
+            .set("time", time)
+            .set("nRev", nRev)
+            .set("calcPeriod", calcPeriod)
+            .set("simPeriod", simPeriod)
+            .set("periodError", (calcPeriod - simPeriod) / calcPeriod)
+            .set("radius", Proton.pMass * pSpeed / (Proton.pCharge * bMag))
+            .set("finalRadius", Proton.pMass * finalVelocity.magnitude() / (Proton.pCharge * bMag))
+            .set("spreadX", spreadX)
+            .set("spreadY", spreadY)
+            .set("spreadsEqual", spreadsEqual);
+    }
+
+    /**
+     * Return the parameters the simulation was set up with
+     * @return a copy of the parameters
+     */
+    public SimRecord getParameters() {
+        return new SimRecord(parameters);
+    }
+
+    /**
+     * Return the bunch, or null if it is held by worker JVMs
+     * @return the bunch
+     */
+    public Bunch<Proton> getBunch() {
+        return pBunch;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public int getRevolutions() {
+        return nRev;
+    }
+
+    /**
+     * Estimate the memory a simulation with the given parameters holds while it runs
+     * @param parametersIn the parameters
+     * @return the estimate in bytes
+     */
+    public static long memoryEstimate(SimRecord parametersIn) {
+        if (parametersIn.getInt("nWorkers", 0) > 0) {
+            return 64 * 1024; // the bunch is held by the workers
+        }
+        long nProtons = parametersIn.getInt("nProtons", 100);
+        long bytesPerProton = 8L * ParticleStore.nComponents; // the store columns
+        if (parametersIn.getChar("storage", 'H') == 'H') {
+            bytesPerProton += 130; // the particle objects behind a heap store
+        }
+        if (parametersIn.getInt("blockSteps", 64) > 1) { // the copy of the bunch kept at the start of each block
+            boolean keepsState = Integrator.fromParameters(parametersIn).keepsParticleState();
+            bytesPerProton += 8L * (ParticleStore.AZ + 1 + (keepsState ? 1 : 0));
+        }
+        if (parametersIn.has("checkpointDir")) { // the copy being written and the base of the next delta
+            boolean keepsState = Integrator.fromParameters(parametersIn).keepsParticleState();
+            bytesPerProton += 2 * 8L * (ParticleStore.nComponents + (keepsState ? 1 : 0));
+        }
+        int nThreads = parametersIn.getInt("nThreads", Runtime.getRuntime().availableProcessors());
+        long kernelBytes = 8L * 3 * Math.min(nProtons, ParallelStepper.defaultChunkSize); // field scratch of a thread
+        return 64 * 1024 + nProtons * bytesPerProton + Math.max(nThreads, 1) * kernelBytes;
+    }
+
+    /**
+     * Stop the worker threads and release the bunch storage
+     * @throws IOException if a mapped bunch file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (checkpointer != null) {
+            checkpointer.close(finished); // a finished run will not be restarted
+        }
+        stepper.shutdown();
+        if (store instanceof OffHeapParticleStore) {
+            ((OffHeapParticleStore) store).close();
+        }
+    }
+}
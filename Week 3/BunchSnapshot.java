@@ -0,0 +1,73 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A copy of the state of a bunch at one moment, published by the integrator for diagnostics
+ * and output consumers to work on while the bunch itself keeps moving.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class BunchSnapshot {
+
+    private final double time; // simulation time of the snapshot
+    private final int nRev; // number of revolutions completed
+    private final double period; // period of the last revolution
+    private final ArrayParticleStore state; // copy of the particle states
+    private final AtomicInteger pending; // consumers still working on this snapshot
+
+    /**
+     * Constructor
+     * @param timeIn simulation time of the snapshot
+     * @param nRevIn number of revolutions completed
+     * @param periodIn period of the last revolution
+     * @param stateIn copy of the particle states, owned by the snapshot until every consumer is done
+     * @param nConsumers number of consumers that will see the snapshot
+     */
+    BunchSnapshot(double timeIn, int nRevIn, double periodIn, ArrayParticleStore stateIn, int nConsumers) {
+        time = timeIn;
+        nRev = nRevIn;
+        period = periodIn;
+        state = stateIn;
+        pending = new AtomicInteger(nConsumers);
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public int getRevolution() {
+        return nRev;
+    }
+
+    public double getPeriod() {
+        return period;
+    }
+
+    /**
+     * Return the particle states. They must only be read.
+     * @return the particle states
+     */
+    public ParticleStore getState() {
+        return state;
+    }
+
+    /**
+     * Return a bunch backed by the snapshot, so the usual Bunch statistics and toString can be used
+     * @return the bunch
+     */
+    public Bunch<Particle> getBunch() {
+        return new Bunch<Particle>(state, ChargedParticle::new);
+    }
+
+    /**
+     * Mark one consumer as finished with the snapshot
+     * @return true if it was the last consumer
+     */
+    boolean release() {
+        return pending.decrementAndGet() == 0;
+    }
+
+    ArrayParticleStore buffer() {
+        return state;
+    }
+}
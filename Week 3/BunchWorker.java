@@ -0,0 +1,100 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A worker JVM holding one share of a bunch for DistributedStepper. It connects to the coordinator, is told its number
+ * and the parameters of the simulation, makes its share of the bunch and then pushes it a block of steps at a time for
+ * as long as the coordinator asks, sending back only the sums and moments of its share, for a block or for a block
+ * rewound to an earlier step.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class BunchWorker {
+
+    /**
+     * Make the share of the bunch held by one worker: its protons, its seed, its threads and its mapped file
+     * @param parameters the parameters of the whole simulation
+     * @param worker the number of the worker
+     * @param nWorkers the number of workers
+     * @return the parameters for the share of this worker
+     */
+    public static SimRecord share(SimRecord parameters, int worker, int nWorkers) {
+        long nProtons = parameters.getInt("nProtons", 100);
+        SimRecord share = new SimRecord(parameters)
+            .set("nProtons", nProtons * (worker + 1) / nWorkers - nProtons * worker / nWorkers)
+            .set("outFileName", parameters.getString("outFileName", "week2.data") + "." + worker)
+            .set("nWorkers", 0);
+        if (parameters.has("seed")) {
+            share.set("seed", parameters.getLong("seed", 0) + worker);
+        }
+        if (parameters.has("workerThreads")) {
+            share.set("nThreads", parameters.getInt("workerThreads", 1));
+        }
+        return share;
+    }
+
+    /**
+     * Run a worker
+     *
+     * @param args the host and port the coordinator listens on
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java BunchWorker host port");
+            System.exit(4);
+        }
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            int worker = in.readInt();
+            int nWorkers = in.readInt();
+            SimRecord parameters = share(SimRecord.parse(in.readUTF()), worker, nWorkers);
+
+            Bunch<Proton> pBunch = BunchSimulation.makeBunch(parameters);
+            ParticleStore store = pBunch.getStore();
+            ParallelStepper stepper = BunchSimulation.makeStepper(parameters, store);
+            out.writeLong(store.size());
+            out.flush();
+
+            for (byte command = in.readByte(); command != DistributedStepper.quitCommand; command = in.readByte()) {
+                int nSteps;
+                if (command == DistributedStepper.keepCommand) {
+                    stepper.keepBlockStart();
+                    continue;
+                }
+                else if (command == DistributedStepper.rewindCommand) {
+                    int k = in.readInt();
+                    stepper.rewind(k);
+                    nSteps = k + 1;
+                }
+                else {
+                    double time = in.readDouble();
+                    double timeStep = in.readDouble();
+                    nSteps = in.readInt();
+                    stepper.step(time, timeStep, nSteps);
+                }
+                for (int k = 0; k < nSteps; k++) {
+                    for (int q = ParticleStore.X; q <= ParticleStore.Z; q++) {
+                        out.writeDouble(stepper.getTrackSum(k, q));
+                    }
+                }
+                stepper.getMoments().write(out);
+                out.flush();
+            }
+            stepper.shutdown();
+            if (store instanceof OffHeapParticleStore) {
+                ((OffHeapParticleStore) store).close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Bunch worker stopped: " + e.getMessage());
+            System.exit(4);
+        }
+    }
+}
@@ -0,0 +1,564 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes checkpoints of a running simulation, from which it can be restarted bit-identically after the JVM dies, and
+ * reads the latest one back.
+ *
+ * A checkpoint holds the scalar state of the simulation (a SimRecord, whose numbers round-trip exactly) and every
+ * column of its particle store, with one more for the integrator if it keeps state of its own for each particle
+ * (see Integrator.keepsParticleState). Saving copies the raw bits of the store into a buffer kept the same way as the
+ * store (on the heap for an ArrayParticleStore, in native memory or in a mapped file for an OffHeapParticleStore) and
+ * returns; the file is written on a background thread while the simulation carries on. If the last checkpoint is still
+ * being written saving waits for it, so at most one is in flight and two buffers are ever held, the other being the
+ * base of the next delta.
+ *
+ * Every keyframeEvery-th checkpoint is a keyframe holding the store itself; the others are deltas holding the XOR of
+ * its bits with those of the checkpoint before. Either is streamed to a Deflater in chunks of a few thousand values,
+ * each written a byte of every value at a time (the top bytes of all the values, then the next bytes, and so on). Between checkpoints the sign, exponent
+ * and top bits of the mantissa of most values do not change, and columns such as mass and charge do not change at all,
+ * so the leading bytes of a delta are nearly all zero and compress to almost nothing.
+ *
+ * Checkpoints are files NAME-KEY-SEQUENCE.ckpt in the checkpoint directory, where NAME is the checkpointName
+ * parameter (left out with its dash if not set) and KEY the start of the ResultCache.prefixKey of the parameters, so
+ * runs with other parameters writing to the same directory do not meet. They are written under a temporary name and
+ * renamed into place, so a crash while writing leaves the last complete checkpoint to restart from. Once a keyframe is
+ * in place the checkpoints before it are deleted.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class Checkpointer implements AutoCloseable {
+
+    private static final int magic = 0x434b5054; // "CKPT"
+    private static final int version = 2;
+    private static final byte keyframe = 'K', delta = 'D';
+    private static final int bufferSize = 1 << 16;
+    private static final int chunkValues = bufferSize / Long.BYTES; // the byte planes of a chunk fill the buffer
+
+    private final Path directory;
+    private final String name;
+    private final String runKey; // checkpoints of other runs are not restarted from
+    private final long intervalMillis;
+    private final int keyframeEvery;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(ParallelStepper.daemonThreads());
+
+    private Bits spare = null; // filled by save
+    private Bits previous = null; // the store at the last checkpoint written, the base of the next delta
+    private Future<?> inFlight = null;
+    private long sequence = 0; // of the last checkpoint saved
+    private long lastSave = System.currentTimeMillis();
+
+    /**
+     * Constructor, makes the checkpoint directory if it does not exist
+     * @param directoryIn the directory to write checkpoints to
+     * @param parameters the parameters of the run; a checkpoint is only restarted from by a run with the same
+     *                   parameters, apart from larger maxRev or maxTime
+     * @param intervalSeconds the wall-clock time between checkpoints
+     * @param keyframeEveryIn how often a checkpoint is a keyframe rather than a delta
+     * @throws IOException if the directory cannot be made
+     */
+    public Checkpointer(Path directoryIn, SimRecord parameters, double intervalSeconds, int keyframeEveryIn)
+        throws IOException {
+        directory = Files.createDirectories(directoryIn);
+        runKey = ResultCache.prefixKey(parameters);
+        name = (parameters.has("checkpointName") ? parameters.getString("checkpointName", "") + "-" : "")
+            + runKey.substring(0, 16);
+        intervalMillis = (long) (intervalSeconds * 1000);
+        keyframeEvery = Math.max(keyframeEveryIn, 1);
+    }
+
+    /**
+     * Return the checkpointer given by the checkpointDir, checkpointInterval (s, default 300) and keyframeEvery
+     * (default 8) parameters
+     * @param parameters the parameters of the run
+     * @return the checkpointer, or null if checkpointDir is not set
+     * @throws IOException if the directory cannot be made
+     */
+    public static Checkpointer fromParameters(SimRecord parameters) throws IOException {
+        if (!parameters.has("checkpointDir")) {
+            return null;
+        }
+        return new Checkpointer(new File(parameters.getString("checkpointDir", "")).toPath(), parameters,
+            parameters.getDouble("checkpointInterval", 300), parameters.getInt("keyframeEvery", 8));
+    }
+
+    /**
+     * Return whether the checkpoint interval has passed since the last checkpoint
+     * @return true if a checkpoint is due
+     */
+    public boolean isDue() {
+        return System.currentTimeMillis() - lastSave >= intervalMillis;
+    }
+
+    /**
+     * Save a checkpoint. The store is copied before this returns; the file is written in the background.
+     * @param state the scalar state of the simulation
+     * @param store the particles, or null if there are none
+     */
+    public void save(SimRecord state, ParticleStore store) {
+        save(state, store, null);
+    }
+
+    /**
+     * Save a checkpoint, with the state the integrator keeps for each particle
+     * @param state the scalar state of the simulation
+     * @param store the particles, or null if there are none
+     * @param integrator the integrator stepping the particles, or null if it keeps no state for them
+     */
+    public void save(SimRecord state, ParticleStore store, Integrator integrator) {
+        waitForWrite();
+        int nRows = (store == null) ? 0 : store.size();
+        final int nColumns = nColumns(integrator);
+        long length = (long) nRows * nColumns;
+        if (spare == null || !spare.fits(store, length)) {
+            spare = null; // let the old buffer go before making the new one
+            try {
+                spare = new Bits(store, length, directory);
+            }
+            catch (IOException e) {
+                System.out.println("Checkpoint failed: " + e); // as for a failed write, the run carries on
+                return;
+            }
+        }
+        for (int c = 0; c < nColumns; c++) {
+            long j = (long) c * nRows;
+            for (int i = 0; i < nRows; i++) {
+                spare.put(j++, Double.doubleToRawLongBits((c < ParticleStore.nComponents) ? store.get(c, i)
+                    : integrator.getParticleState(store, i)));
+            }
+        }
+        sequence++;
+        final long seq = sequence;
+        final boolean isKeyframe = (seq - 1) % keyframeEvery == 0 || previous == null || previous.length != length;
+        final Bits bits = spare;
+        final Bits base = previous;
+        final String stateText = state.toString();
+        final int rows = nRows;
+        inFlight = writer.submit(() -> {
+            write(seq, isKeyframe, stateText, rows, nColumns, bits, base);
+            return null;
+        });
+        spare = previous; // reused for the next checkpoint once this one is written
+        previous = bits;
+        lastSave = System.currentTimeMillis();
+    }
+
+    private void waitForWrite() {
+        if (inFlight == null) {
+            return;
+        }
+        try {
+            inFlight.get();
+        }
+        catch (ExecutionException e) {
+            // a failed checkpoint does not stop the run; the next keyframe starts a good chain again
+            System.out.println("Checkpoint failed: " + e.getCause());
+            sequence = ((sequence + keyframeEvery - 1) / keyframeEvery) * keyframeEvery; // next save is a keyframe
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        inFlight = null;
+    }
+
+    private static int nColumns(Integrator integrator) {
+        return ParticleStore.nComponents + ((integrator != null && integrator.keepsParticleState()) ? 1 : 0);
+    }
+
+    private void write(long seq, boolean isKeyframe, String stateText, int nRows, int nColumns, Bits bits, Bits base)
+        throws IOException {
+        Path target = file(seq);
+        Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeByte(isKeyframe ? keyframe : delta);
+            out.writeLong(seq);
+            out.writeUTF(runKey);
+            out.writeUTF(stateText);
+            out.writeInt(nRows);
+            out.writeInt(nColumns);
+            out.flush();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DeflaterOutputStream deflated = new DeflaterOutputStream(new NonClosing(out), deflater, bufferSize);
+            writePlanes(deflated, bits, isKeyframe ? null : base);
+            deflated.finish();
+            deflater.end();
+        }
+        move(temp, target);
+        if (isKeyframe) {
+            for (Path old : list()) {
+                if (sequence(old) < seq) {
+                    Files.deleteIfExists(old);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the values (XORed with the base, if there is one) a chunk at a time, each chunk a byte plane at a time with
+     * the top byte of every value first
+     */
+    private static void writePlanes(OutputStream out, Bits bits, Bits base) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long[] x = new long[chunkValues];
+        for (long start = 0; start < bits.length; start += chunkValues) {
+            int n = (int) Math.min(chunkValues, bits.length - start);
+            for (int k = 0; k < n; k++) {
+                x[k] = (base == null) ? bits.get(start + k) : bits.get(start + k) ^ base.get(start + k);
+            }
+            for (int plane = 0; plane < Long.BYTES; plane++) {
+                int shift = 56 - 8 * plane;
+                for (int k = 0, b = plane * n; k < n; k++) {
+                    buffer[b++] = (byte) (x[k] >>> shift);
+                }
+            }
+            out.write(buffer, 0, Long.BYTES * n);
+        }
+    }
+
+    /**
+     * Read values written by writePlanes into bits, replacing them for a keyframe and XORing them in for a delta
+     */
+    private static void readPlanes(InputStream in, Bits bits, boolean isKeyframe) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        for (long start = 0; start < bits.length; start += chunkValues) {
+            int n = (int) Math.min(chunkValues, bits.length - start);
+            if (in.readNBytes(buffer, 0, Long.BYTES * n) != Long.BYTES * n) {
+                throw new IOException("checkpoint is cut short");
+            }
+            for (int k = 0; k < n; k++) {
+                long x = 0;
+                for (int plane = 0, b = k; plane < Long.BYTES; plane++, b += n) {
+                    x |= (buffer[b] & 0xffL) << (56 - 8 * plane);
+                }
+                bits.put(start + k, isKeyframe ? x : bits.get(start + k) ^ x);
+            }
+        }
+    }
+
+    /**
+     * Restore the latest checkpoint of this run
+     * @param store where to put the particles, resized to hold them, or null if there are none
+     * @return the scalar state of the simulation, or null if there is no checkpoint of this run
+     * @throws IOException if a checkpoint cannot be read
+     */
+    public SimRecord restore(ParticleStore store) throws IOException {
+        return restore(store, null);
+    }
+
+    /**
+     * Restore the latest checkpoint of this run, with the state the integrator keeps for each particle
+     * @param store where to put the particles, resized to hold them, or null if there are none
+     * @param integrator the integrator to give its state for the particles, or null if it keeps none
+     * @return the scalar state of the simulation, or null if there is no checkpoint of this run
+     * @throws IOException if a checkpoint cannot be read, or does not hold the columns the integrator needs
+     */
+    public SimRecord restore(ParticleStore store, Integrator integrator) throws IOException {
+        int expected = nColumns(integrator);
+        List<Path> files = list();
+        Collections.sort(files, (a, b) -> Long.compare(sequence(a), sequence(b)));
+        int first = -1; // the keyframe the latest chain starts from
+        for (int f = files.size() - 1; f >= 0 && first < 0; f--) {
+            if (header(files.get(f)) == keyframe) {
+                first = f;
+            }
+        }
+        if (first < 0) {
+            return null;
+        }
+        Bits bits = null;
+        String stateText = null;
+        int nRows = 0;
+        for (int f = first; f < files.size(); f++) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(files.get(f))))) {
+                byte kind = readHeader(in);
+                long seq = in.readLong();
+                if (seq != sequence(files.get(first)) + f - first || !in.readUTF().equals(runKey)) {
+                    break; // a gap in the chain, or a checkpoint of another run
+                }
+                stateText = in.readUTF();
+                nRows = in.readInt();
+                int nColumns = in.readInt();
+                if (nColumns != expected) {
+                    throw new IOException("checkpoint has " + nColumns + " columns, expected " + expected);
+                }
+                long length = (long) nRows * nColumns;
+                if (bits == null || bits.length != length) {
+                    if (kind != keyframe) {
+                        throw new IOException("checkpoint delta has " + length + " values, not as many as its base");
+                    }
+                    bits = null;
+                    bits = new Bits(store, length, directory);
+                }
+                readPlanes(new InflaterInputStream(in), bits, kind == keyframe);
+                sequence = seq;
+            }
+        }
+        if (stateText == null) {
+            return null;
+        }
+        if (store != null) {
+            store.resize(nRows);
+            for (int c = 0; c < expected; c++) {
+                long j = (long) c * nRows;
+                for (int i = 0; i < nRows; i++) {
+                    double value = Double.longBitsToDouble(bits.get(j++));
+                    if (c < ParticleStore.nComponents) {
+                        store.set(c, i, value);
+                    }
+                    else {
+                        integrator.setParticleState(store, i, value);
+                    }
+                }
+            }
+        }
+        previous = bits; // the next checkpoint is a delta on this one
+        lastSave = System.currentTimeMillis();
+        return SimRecord.parse(stateText);
+    }
+
+    /**
+     * Return the kind of a checkpoint of this run, or 0 if it is not one
+     */
+    private byte header(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte kind = readHeader(in);
+            in.readLong();
+            return in.readUTF().equals(runKey) ? kind : 0;
+        }
+    }
+
+    private static byte readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != magic) {
+            throw new IOException("not a checkpoint");
+        }
+        int fileVersion = in.readInt();
+        if (fileVersion != version) {
+            throw new IOException("checkpoint version " + fileVersion + ", expected " + version);
+        }
+        return in.readByte();
+    }
+
+    /**
+     * Wait for the last checkpoint to be written and stop the writer thread
+     * @param finished true if the run is over, in which case its checkpoints are deleted
+     * @throws IOException if the checkpoints cannot be deleted
+     */
+    public void close(boolean finished) throws IOException {
+        waitForWrite();
+        writer.shutdown();
+        if (finished) {
+            for (Path file : list()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Delete the checkpoints of this run, so that it starts afresh rather than restarting from one left by an
+     * earlier run that did not finish
+     * @return true if there were any
+     * @throws IOException if they cannot be deleted
+     */
+    public boolean discard() throws IOException {
+        waitForWrite();
+        List<Path> files = list();
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        previous = null;
+        sequence = 0;
+        return !files.isEmpty();
+    }
+
+    /**
+     * Wait for the last checkpoint to be written and stop the writer thread, keeping the checkpoints
+     * @throws IOException never
+     */
+    @Override
+    public void close() throws IOException {
+        close(false);
+    }
+
+    /**
+     * Cut a text file down to its first nLines lines, so that output written after a checkpoint is not repeated when
+     * the run restarts from it
+     * @param file the file
+     * @param nLines the number of lines to keep
+     * @throws IOException if the file cannot be read or written
+     */
+    public static void truncateLines(File file, long nLines) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long lines = 0;
+            long offset = 0; // of the start of the buffer in the file
+            byte[] buffer = new byte[bufferSize];
+            int n;
+            if (nLines <= 0) {
+                raf.setLength(0);
+                return;
+            }
+            while ((n = raf.read(buffer)) > 0) {
+                for (int k = 0; k < n; k++) {
+                    if (buffer[k] == '\n' && ++lines == nLines) {
+                        raf.setLength(offset + k + 1);
+                        return;
+                    }
+                }
+                offset += n;
+            }
+        }
+    }
+
+    private Path file(long seq) {
+        return directory.resolve(String.format("%s-%06d.ckpt", name, seq));
+    }
+
+    private static long sequence(Path file) {
+        String fileName = file.getFileName().toString();
+        return Long.parseLong(fileName.substring(fileName.lastIndexOf('-') + 1, fileName.length() - 5));
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + "-*.ckpt")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The raw bits of the values of a checkpoint, held the same way as the store they come from: on the heap for an
+     * ArrayParticleStore, and in native memory or in a mapped temporary file (deleted once mapped) for an
+     * OffHeapParticleStore. Values are indexed by a long and split into segments of 2^27 (1 GB), as in
+     * OffHeapParticleStore, so any number of them fit.
+     */
+    private static class Bits {
+        private static final int segmentShift = 27;
+        private static final int segmentMask = (1 << segmentShift) - 1;
+        private static final int onHeap = 0, nativeMemory = 1, mapped = 2;
+
+        final long length;
+        private final int kind;
+        private final LongBuffer[] segments;
+
+        /**
+         * Constructor
+         * @param store the store whose bits are to be held, or null if there is none
+         * @param lengthIn the number of values
+         * @param directory where to put the file of a mapped buffer
+         * @throws IOException if a mapped buffer cannot be made
+         */
+        Bits(ParticleStore store, long lengthIn, Path directory) throws IOException {
+            length = lengthIn;
+            kind = kind(store);
+            segments = new LongBuffer[(int) ((length + segmentMask) >>> segmentShift)];
+            File file = (kind == mapped) ? File.createTempFile(".checkpoint", ".tmp", directory.toFile()) : null;
+            try (RandomAccessFile raf = (file == null) ? null : new RandomAccessFile(file, "rw")) {
+                if (raf != null) {
+                    raf.setLength(length * Long.BYTES);
+                }
+                for (int s = 0; s < segments.length; s++) {
+                    long offset = (long) s << segmentShift;
+                    int values = (int) Math.min(1L << segmentShift, length - offset);
+                    if (kind == onHeap) {
+                        segments[s] = LongBuffer.allocate(values);
+                    }
+                    else {
+                        ByteBuffer bytes = (kind == nativeMemory) ? ByteBuffer.allocateDirect(values * Long.BYTES)
+                            : raf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset * Long.BYTES,
+                                (long) values * Long.BYTES);
+                        segments[s] = bytes.order(ByteOrder.nativeOrder()).asLongBuffer();
+                    }
+                }
+            }
+            finally {
+                if (file != null && !file.delete()) {
+                    file.deleteOnExit(); // cannot be deleted while mapped on some systems
+                }
+            }
+        }
+
+        private static int kind(ParticleStore store) {
+            if (store instanceof OffHeapParticleStore) {
+                return ((OffHeapParticleStore) store).isMapped() ? mapped : nativeMemory;
+            }
+            return onHeap;
+        }
+
+        /**
+         * Return whether this buffer holds as many values as asked for, the same way as the store
+         */
+        boolean fits(ParticleStore store, long lengthIn) {
+            return length == lengthIn && kind == kind(store);
+        }
+
+        long get(long j) {
+            return segments[(int) (j >>> segmentShift)].get((int) (j & segmentMask));
+        }
+
+        void put(long j, long value) {
+            segments[(int) (j >>> segmentShift)].put((int) (j & segmentMask), value);
+        }
+    }
+
+    /**
+     * Lets the deflater finish without closing the file under it
+     */
+    private static class NonClosing extends java.io.FilterOutputStream {
+        NonClosing(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
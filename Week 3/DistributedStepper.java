@@ -0,0 +1,248 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The coordinator of a bunch shared out between worker JVMs (BunchWorker) connected over TCP sockets.
+ *
+ * Each worker makes and pushes its own share of the bunch: worker w of W holds protons N*w/W to N*(w+1)/W-1 and makes
+ * them with the seed plus w, so the share of a worker never leaves it. For every block of steps the coordinator sends the
+ * time, time step and number of steps to all the workers at once, and each sends back only the sums of x, y and z over
+ * its share after each step and the BunchMoments of its share after the last step. These are merged in worker order,
+ * so the centroid and spreads given to OrbitTracker.hasOrbited and the spread check do not depend on which worker
+ * answers first. With one worker the results are bit-identical to running the bunch in this JVM. A block is cut short
+ * by telling every worker to rewind its share to the same step, and they answer as they do for a block.
+ *
+ * The coordinator listens on port (default 0, any free port) of bindAddress (default 127.0.0.1). With
+ * launchWorkers=true (the default) it starts nWorkers local worker JVMs itself; otherwise it waits for workers started
+ * by hand, on this machine or others, with java BunchWorker host port.
+ *
+ * Parameters used here, as well as those of BunchSimulation: nWorkers, port, bindAddress, launchWorkers,
+ * workerThreads (threads per worker, default the number of processors shared between local workers),
+ * workerHeap (e.g. 4g, the -Xmx of launched workers), workerTimeout=60000 (ms to wait for the workers to connect).
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class DistributedStepper implements BlockStepper {
+
+    static final byte stepCommand = 'S';
+    static final byte keepCommand = 'K';
+    static final byte rewindCommand = 'R';
+    static final byte quitCommand = 'Q';
+
+    private final ServerSocket server;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final List<DataInputStream> ins = new ArrayList<DataInputStream>();
+    private final List<DataOutputStream> outs = new ArrayList<DataOutputStream>();
+    private final List<Process> processes = new ArrayList<Process>();
+    private long size = 0;
+    private double[] trackSums = new double[0];
+    private BunchMoments moments = new BunchMoments();
+    private double blockStart, blockTimeStep; // time and time step of the last block
+
+    /**
+     * Constructor, starts (if asked to) and connects to the workers and has them make their shares of the bunch
+     * @param parameters the parameters of the simulation
+     * @throws IOException if the workers cannot be started or connected to
+     */
+    public DistributedStepper(SimRecord parameters) throws IOException {
+        int nWorkers = Math.max(parameters.getInt("nWorkers", 1), 1);
+        server = new ServerSocket(parameters.getInt("port", 0), nWorkers,
+            InetAddress.getByName(parameters.getString("bindAddress", "127.0.0.1")));
+        server.setSoTimeout(parameters.getInt("workerTimeout", 60000));
+        SimRecord workerParameters = new SimRecord(parameters);
+        try {
+            if (parameters.getBoolean("launchWorkers", true)) {
+                if (!workerParameters.has("workerThreads")) {
+                    workerParameters.set("workerThreads", Math.max(Runtime.getRuntime().availableProcessors() / nWorkers, 1));
+                }
+                for (int w = 0; w < nWorkers; w++) {
+                    processes.add(launch(parameters.getString("workerHeap", ""), server.getLocalPort()));
+                }
+            }
+            else {
+                System.out.println("Waiting for " + nWorkers + " workers: java BunchWorker " + server.getInetAddress().getHostAddress()
+                    + " " + server.getLocalPort());
+            }
+            for (int w = 0; w < nWorkers; w++) {
+                Socket socket = server.accept(); // workers are numbered in the order they connect
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(w);
+                out.writeInt(nWorkers);
+                out.writeUTF(workerParameters.toString());
+                out.flush();
+                outs.add(out);
+                ins.add(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            }
+            for (DataInputStream in : ins) {
+                size += in.readLong(); // each worker answers with the size of its share once it is made
+            }
+        }
+        catch (IOException e) {
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Start a worker JVM on this machine, with the same class path as this one
+     */
+    private static Process launch(String heap, int port) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (!heap.isEmpty()) {
+            command.add("-Xmx" + heap);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("BunchWorker");
+        command.add("127.0.0.1");
+        command.add(String.valueOf(port));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    @Override
+    public double step(double time, double timeStep, int nSteps) {
+        try {
+            for (DataOutputStream out : outs) { // every worker starts before any answer is read
+                out.writeByte(stepCommand);
+                out.writeDouble(time);
+                out.writeDouble(timeStep);
+                out.writeInt(nSteps);
+                out.flush();
+            }
+            readBlock(nSteps);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("lost contact with a bunch worker", e);
+        }
+        double t = time;
+        for (int k = 0; k < nSteps; k++) {
+            t += timeStep;
+        }
+        blockStart = time;
+        blockTimeStep = timeStep;
+        return t;
+    }
+
+    @Override
+    public void keepBlockStart() {
+        try {
+            for (DataOutputStream out : outs) {
+                out.writeByte(keepCommand);
+                out.flush();
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("lost contact with a bunch worker", e);
+        }
+    }
+
+    @Override
+    public double rewind(int k) {
+        try {
+            for (DataOutputStream out : outs) {
+                out.writeByte(rewindCommand);
+                out.writeInt(k);
+                out.flush();
+            }
+            readBlock(k + 1);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("lost contact with a bunch worker", e);
+        }
+        double t = blockStart;
+        for (int j = 0; j <= k; j++) {
+            t += blockTimeStep;
+        }
+        return t;
+    }
+
+    /**
+     * Read the answers of the workers to a block of nSteps steps, merging them in worker order
+     */
+    private void readBlock(int nSteps) throws IOException {
+        if (trackSums.length != 3 * nSteps) {
+            trackSums = new double[3 * nSteps];
+        }
+        else {
+            Arrays.fill(trackSums, 0.0);
+        }
+        moments = new BunchMoments();
+        for (DataInputStream in : ins) { // merged in worker order
+            for (int j = 0; j < 3 * nSteps; j++) {
+                trackSums[j] += in.readDouble();
+            }
+            moments.add(BunchMoments.read(in));
+        }
+    }
+
+    @Override
+    public BunchMoments getMoments() {
+        return moments;
+    }
+
+    @Override
+    public double getTrackSum(int k, int q) {
+        return trackSums[3 * k + q];
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Tell the workers to stop and close the connections
+     */
+    @Override
+    public void shutdown() {
+        for (DataOutputStream out : outs) {
+            try {
+                out.writeByte(quitCommand);
+                out.flush();
+            }
+            catch (IOException e) {
+                // the worker has gone already
+            }
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // nothing more to do
+            }
+        }
+        try {
+            server.close();
+        }
+        catch (IOException e) {
+            // nothing more to do
+        }
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroy();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The adaptive Runge-Kutta method of Dormand and Prince, RK5(4). Each particle is taken through the time step in as
+ * many sub-steps as it needs: a fifth order step is compared with an embedded fourth order one made from the same
+ * stages, and the sub-step is rejected and taken again shorter if the difference is over the tolerance, then the
+ * next one is made longer or shorter to match it. The last stage of an accepted sub-step is the first of the next
+ * (first same as last), so each sub-step after the first of a time step costs six field evaluations.
+ *
+ * With this integrator the time step of a simulation is just how often the particles are looked at and written out;
+ * it can be far longer than the steps Euler needs, and the sub-steps are only made short where the field asks for
+ * it, as next to the jump in B at x=0 in BunchSim.cyclotronBField.
+ *
+ * The error of each of the six components of a sub-step is measured against atol + rtol * |value|, so atol is in m for
+ * the positions and m/s for the velocities. The sub-step each particle ended on is kept for its next time step, so
+ * the particles are stepped the same whichever thread has them, and is given as the particle state of the integrator
+ * so that a checkpoint or saved state holds it.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class DormandPrince implements Integrator {
+
+    private static final int nState = 6; // x, y, z, vx, vy, vz: the columns ParticleStore.X to VZ
+    private static final int nStages = 7;
+
+    private static final double[] c = {0, 1.0 / 5, 3.0 / 10, 4.0 / 5, 8.0 / 9, 1, 1};
+    private static final double[][] a = {
+        {},
+        {1.0 / 5},
+        {3.0 / 40, 9.0 / 40},
+        {44.0 / 45, -56.0 / 15, 32.0 / 9},
+        {19372.0 / 6561, -25360.0 / 2187, 64448.0 / 6561, -212.0 / 729},
+        {9017.0 / 3168, -355.0 / 33, 46732.0 / 5247, 49.0 / 176, -5103.0 / 18656},
+        {35.0 / 384, 0, 500.0 / 1113, 125.0 / 192, -2187.0 / 6784, 11.0 / 84}}; // the last row is the fifth order step
+    private static final double[] e = {71.0 / 57600, 0, -71.0 / 16695, 71.0 / 1920, -17253.0 / 339200, 22.0 / 525,
+        -1.0 / 40}; // fifth order less fourth order weights
+
+    private static final double safety = 0.9, minScale = 0.2, maxScale = 5.0;
+
+    private final double atol, rtol;
+    private final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[nStages + 1][nState]);
+    private ParticleStore owner = null; // the store the kept sub-steps are for
+    private double[] subSteps = new double[0]; // the sub-step each particle is to try next, 0 if not known
+
+    private final AtomicLong accepted = new AtomicLong(), rejected = new AtomicLong(), evaluations = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param atolIn absolute tolerance
+     * @param rtolIn relative tolerance
+     */
+    public DormandPrince(double atolIn, double rtolIn) {
+        if (!(atolIn >= 0 && rtolIn >= 0 && atolIn + rtolIn > 0)) {
+            throw new IllegalArgumentException("bad tolerances atol=" + atolIn + " rtol=" + rtolIn);
+        }
+        atol = atolIn;
+        rtol = rtolIn;
+    }
+
+    /**
+     * Constructor, with the default tolerances atol=1e-12, rtol=1e-9
+     */
+    public DormandPrince() {
+        this(1e-12, 1e-9);
+    }
+
+    @Override
+    public void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field) {
+        double[] h = subSteps(store);
+        double[][] s = scratch.get();
+        double start = time - timeStep;
+        long nAccepted = 0, nRejected = 0, nEvaluations = 0;
+
+        for (int i = from; i < to; i++) {
+            double[] y0 = s[nStages];
+            for (int j = 0; j < nState; j++) {
+                y0[j] = store.get(ParticleStore.X + j, i);
+            }
+            field.accelerate(store, i, i + 1, start);
+            nEvaluations++;
+            rates(store, i, s[0]);
+
+            double t = start;
+            double dt = (h[i] > 0) ? h[i] : timeStep;
+            boolean last = false;
+            while (!last) {
+                double tryStep = dt;
+                last = (t + dt >= time);
+                if (last) {
+                    dt = time - t;
+                }
+                for (int k = 1; k < nStages; k++) {
+                    for (int j = 0; j < nState; j++) {
+                        double sum = 0.0;
+                        for (int m = 0; m < k; m++) {
+                            sum += a[k][m] * s[m][j];
+                        }
+                        store.set(ParticleStore.X + j, i, y0[j] + dt * sum);
+                    }
+                    field.accelerate(store, i, i + 1, (c[k] < 1) ? t + c[k] * dt : last ? time : t + dt);
+                    rates(store, i, s[k]);
+                }
+                nEvaluations += nStages - 1;
+
+                double err = 0.0;
+                for (int j = 0; j < nState; j++) {
+                    double diff = 0.0;
+                    for (int k = 0; k < nStages; k++) {
+                        diff += e[k] * s[k][j];
+                    }
+                    double y1 = store.get(ParticleStore.X + j, i);
+                    double scaled = dt * diff / (atol + rtol * Math.max(Math.abs(y0[j]), Math.abs(y1)));
+                    err += scaled * scaled;
+                }
+                err = Math.sqrt(err / nState);
+
+                double scale = (err == 0.0) ? maxScale
+                    : Math.min(maxScale, Math.max(minScale, safety * Math.pow(err, -0.2)));
+                if (err <= 1.0) {
+                    nAccepted++;
+                    t = last ? time : t + dt;
+                    for (int j = 0; j < nState; j++) {
+                        y0[j] = store.get(ParticleStore.X + j, i);
+                    }
+                    double[] first = s[0]; // first same as last
+                    s[0] = s[nStages - 1];
+                    s[nStages - 1] = first;
+                    dt = last ? tryStep * Math.min(1.0, scale) : dt * scale; // a last step cut short says little
+                }
+                else {
+                    nRejected++;
+                    last = false;
+                    dt *= Math.min(1.0, scale);
+                    if (t + dt == t) {
+                        throw new IllegalStateException("step size underflow for particle " + i + " at t=" + t);
+                    }
+                }
+            }
+            h[i] = dt;
+            // the store was left at the last accepted stage, with its acceleration at the end of the step
+        }
+        accepted.addAndGet(nAccepted);
+        rejected.addAndGet(nRejected);
+        evaluations.addAndGet(nEvaluations);
+    }
+
+    /**
+     * Copy the rates of the state of particle i (its velocity and acceleration) out of the store
+     */
+    private static void rates(ParticleStore store, int i, double[] k) {
+        for (int j = 0; j < nState; j++) {
+            k[j] = store.get(RungeKutta4.rateColumn(j), i);
+        }
+    }
+
+    /**
+     * Return the sub-steps kept for the particles of a store, starting afresh if the store is not the last one stepped.
+     * Every thread asks with the whole store, so the array is only ever made once for it.
+     */
+    private synchronized double[] subSteps(ParticleStore store) {
+        if (store != owner || subSteps.length < store.size()) {
+            owner = store;
+            subSteps = new double[store.size()];
+        }
+        return subSteps;
+    }
+
+    @Override
+    public boolean keepsParticleState() {
+        return true;
+    }
+
+    /**
+     * Return the sub-step particle i is to try next, 0 if it has not been stepped yet
+     */
+    @Override
+    public synchronized double getParticleState(ParticleStore store, int i) {
+        return (store == owner && i < subSteps.length) ? subSteps[i] : 0.0;
+    }
+
+    @Override
+    public void setParticleState(ParticleStore store, int i, double value) {
+        subSteps(store)[i] = value;
+    }
+
+    /**
+     * Return the counts of sub-steps accepted and rejected and of field evaluations since the integrator was made
+     * @return accepted, rejected and fieldEvaluations
+     */
+    @Override
+    public SimRecord getStats() {
+        return new SimRecord()
+            .set("accepted", accepted.get())
+            .set("rejected", rejected.get())
+            .set("fieldEvaluations", evaluations.get());
+    }
+}
@@ -48,6 +48,28 @@ public class EMField{
     		magnetic = new PhysicsVector(magneticIn);
     	}
     	
+    	/**
+    	*  Set the electric field strength in place, without creating a new vector
+    	*
+    	* @param x x-component of the electric field strength
+    	* @param y y-component of the electric field strength
+    	* @param z z-component of the electric field strength
+    	*/
+    	public void setElectric(double x, double y, double z){
+    		electric.setVector(x,y,z);
+    	}
+ 	
+    	/**
+    	*  Set the magnetic flux density in place, without creating a new vector
+    	*
+    	* @param x x-component of the magnetic flux density
+    	* @param y y-component of the magnetic flux density
+    	* @param z z-component of the magnetic flux density
+    	*/
+    	public void setMagnetic(double x, double y, double z){
+    		magnetic.setVector(x,y,z);
+    	}
+    	
     	/**
     	*  Return the electric field strength
     	*
@@ -74,13 +96,71 @@ public class EMField{
     	*/
     	public PhysicsVector getAcceleration(ChargedParticle theParticle)
     	{
-    		PhysicsVector lorentz=new PhysicsVector(electric); // E
-    		lorentz.increaseBy(PhysicsVector.cross(theParticle.getVelocity(),magnetic)); //+ v cross B
-    		lorentz.scale(theParticle.getCharge()/theParticle.getMass()); // multiply by charge divided by mass
+    		PhysicsVector lorentz=new PhysicsVector();
+    		getAcceleration(theParticle,lorentz);
     		return lorentz;
 
     		
     	}
+    	
+    	/**
+    	* Calculates the acceleration experienced by a charged particle according to the Lorentz force law (non-relativistic)
+    	* and writes it into a vector owned by the caller, so that no objects are created.
+    	* @param theParticle - the charged particle moving in the field
+    	* @param result - the vector that is set to (qE + vXB / m)
+    	*/
+    	public void getAcceleration(ChargedParticle theParticle, PhysicsVector result)
+    	{
+    		PhysicsVector.cross(theParticle.getVelocityView(),magnetic,result); // v cross B
+    		result.increaseBy(electric); // + E
+    		result.scale(theParticle.getCharge()/theParticle.getMass()); // multiply by charge divided by mass
+    	}
+    	
+    	/**
+    	* Sets the acceleration of particle i in a structure-of-arrays store according to the Lorentz force law
+    	* (non-relativistic). Works directly on the columns of the store.
+    	* @param theStore - the store holding the charged particles moving in the field
+    	* @param i - the index of the particle in the store
+    	*/
+    	public void setAcceleration(ParticleStore theStore, int i)
+    	{
+    		double qOverM=theStore.getCharge(i)/theStore.getMass(i); // charge divided by mass
+    		double vx=theStore.get(ParticleStore.VX,i), vy=theStore.get(ParticleStore.VY,i), vz=theStore.get(ParticleStore.VZ,i);
+    		double bx=magnetic.getX(), by=magnetic.getY(), bz=magnetic.getZ();
+    		theStore.setAcceleration(i,
+    			(electric.getX()+(vy*bz-vz*by))*qOverM, // (E + v cross B) q/m
+    			(electric.getY()+(vz*bx-vx*bz))*qOverM,
+    			(electric.getZ()+(vx*by-vy*bx))*qOverM);
+    	}
+
+    	/**
+    	* Moves a charged particle through the field for a time with the Boris pusher: half the electric kick, a rotation
+    	* of the velocity about the magnetic field, the other half of the kick, then a move with the new velocity.
+    	* In a magnetic field alone the speed is kept exactly. Does the same arithmetic as the Boris integrator.
+    	* The acceleration of the particle is set to its change in velocity over the time.
+    	* @param theParticle - the charged particle moving in the field
+    	* @param deltaTime - the change in time
+    	*/
+    	public void pushBoris(ChargedParticle theParticle, double deltaTime)
+    	{
+    		PhysicsVector v=theParticle.getVelocityView();
+    		double h=0.5*deltaTime*theParticle.getCharge()/theParticle.getMass();
+    		double ux=v.getX()+h*electric.getX(), uy=v.getY()+h*electric.getY(), uz=v.getZ()+h*electric.getZ(); // half the kick
+    		double tx=h*magnetic.getX(), ty=h*magnetic.getY(), tz=h*magnetic.getZ();
+    		double f=2.0/(1.0+(tx*tx+ty*ty+tz*tz));
+    		double px=ux+(uy*tz-uz*ty), py=uy+(uz*tx-ux*tz), pz=uz+(ux*ty-uy*tx);
+    		ux+=f*(py*tz-pz*ty); // rotate about B
+    		uy+=f*(pz*tx-px*tz);
+    		uz+=f*(px*ty-py*tx);
+    		ux+=h*electric.getX(); // the other half of the kick
+    		uy+=h*electric.getY();
+    		uz+=h*electric.getZ();
+    		double perDt=1.0/deltaTime;
+    		theParticle.acceleration.setVector((ux-v.getX())*perDt, (uy-v.getY())*perDt, (uz-v.getZ())*perDt);
+    		v.setVector(ux,uy,uz);
+    		PhysicsVector position=theParticle.getPositionView();
+    		position.setVector(position.getX()+deltaTime*ux, position.getY()+deltaTime*uy, position.getZ()+deltaTime*uz);
+    	}
 
 
     	
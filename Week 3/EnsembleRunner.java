@@ -0,0 +1,192 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs an ensemble of independent single proton simulations (OrbitSimulation) on a fixed pool of threads.
+ * Each member starts from the base parameters with its start position, speed and field error drawn at
+ * random. Every member has its own random number generator, seeded from the ensemble seed and the member
+ * number only, so a member gets the same start conditions (and the same results) whichever thread runs it
+ * and however many threads there are. Members share nothing while they run, so throughput grows with the
+ * number of cores.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class EnsembleRunner {
+
+    /** Columns of the summary table, after the member number and seed */
+    public static final String[] columns = {"x0", "y0", "pSpeed", "bErr", "nRev", "meanPeriod", "periodSD",
+        "lastPeriod", "startRadius", "radiusDrift", "x", "y", "z", "vx", "vy", "vz"};
+
+    private final SimRecord base;
+    private final long seed;
+    private final double positionSpread, speedSpread, bErrSpread;
+
+    /**
+     * Constructor
+     * @param baseIn the parameters shared by every member (see OrbitSimulation)
+     * @param seedIn the seed of the ensemble
+     * @param positionSpreadIn absolute spread in the start x and y of the members in m (uniform)
+     * @param speedSpreadIn relative spread in the start speed of the members (uniform)
+     * @param bErrSpreadIn spread in the field error bErr of the members (uniform, added to the base bErr)
+     */
+    public EnsembleRunner(SimRecord baseIn, long seedIn, double positionSpreadIn, double speedSpreadIn, double bErrSpreadIn) {
+        base = new SimRecord(baseIn);
+        seed = seedIn;
+        positionSpread = positionSpreadIn;
+        speedSpread = speedSpreadIn;
+        bErrSpread = bErrSpreadIn;
+    }
+
+    /**
+     * Return the seed of one member, which depends only on the ensemble seed and the member number
+     * @param member the member number
+     * @return the seed of its random number generator
+     */
+    public long memberSeed(int member) {
+        long z = seed + (member + 1) * 0x9E3779B97F4A7C15L; // splitmix64, so neighbouring members get unrelated seeds
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Return the parameters of one member
+     * @param member the member number
+     * @return the base parameters with the start conditions of this member
+     */
+    public SimRecord memberParameters(int member) {
+        Random random = new Random(memberSeed(member));
+        SimRecord parameters = new SimRecord(base);
+        parameters.set("x0", base.getDouble("x0", 0) + positionSpread * (2 * random.nextDouble() - 1));
+        parameters.set("y0", base.getDouble("y0", 0) + positionSpread * (2 * random.nextDouble() - 1));
+        parameters.set("pSpeed", base.getDouble("pSpeed", 0.1) * (1 + speedSpread * (2 * random.nextDouble() - 1)));
+        parameters.set("bErr", base.getDouble("bErr", 0) + bErrSpread * (2 * random.nextDouble() - 1));
+        return parameters;
+    }
+
+    /**
+     * Run one member to the end
+     * @param member the member number
+     * @return its parameters and results in one record, with the member number and seed
+     */
+    public SimRecord runMember(int member) {
+        SimRecord parameters = memberParameters(member);
+        return new SimRecord(parameters)
+            .setAll(new OrbitSimulation(parameters).run())
+            .set("member", member)
+            .set("seed", memberSeed(member));
+    }
+
+    /**
+     * Run members 0 to nMembers-1 on a pool of threads
+     * @param nMembers the number of members
+     * @param nThreads the number of threads
+     * @return the record of each member, in member order
+     */
+    public List<SimRecord> run(int nMembers, int nThreads) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(nThreads, 1), ParallelStepper.daemonThreads());
+        try {
+            List<Callable<SimRecord>> tasks = new ArrayList<Callable<SimRecord>>(nMembers);
+            for (int m = 0; m < nMembers; m++) {
+                final int member = m;
+                tasks.add(() -> runMember(member));
+            }
+            List<SimRecord> records = new ArrayList<SimRecord>(nMembers);
+            for (Future<SimRecord> done : pool.invokeAll(tasks)) {
+                records.add(done.get());
+            }
+            return records;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while running the ensemble", e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("error while running the ensemble", e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Write the summary table: a header line then one line per member, followed by the mean and sd over
+     * the ensemble of every column
+     * @param records the member records, as returned by run
+     * @param out where to write the table
+     */
+    public static void writeTable(List<SimRecord> records, PrintWriter out) {
+        out.print("# member seed");
+        for (String column : columns) {
+            out.print(" " + column);
+        }
+        out.println();
+        double[] sum = new double[columns.length];
+        double[] sumSq = new double[columns.length];
+        for (SimRecord record : records) {
+            out.print(record.getInt("member", 0) + " " + record.getLong("seed", 0));
+            for (int c = 0; c < columns.length; c++) {
+                double value = record.getDouble(columns[c], 0);
+                sum[c] += value;
+                sumSq[c] += value * value;
+                out.print(" " + record.getString(columns[c], "0"));
+            }
+            out.println();
+        }
+        int n = Math.max(records.size(), 1);
+        out.print("# mean -");
+        for (int c = 0; c < columns.length; c++) {
+            out.print(" " + sum[c] / n);
+        }
+        out.println();
+        out.print("# sd -");
+        for (int c = 0; c < columns.length; c++) {
+            double mean = sum[c] / n;
+            out.print(" " + Math.sqrt(Math.max(sumSq[c] / n - mean * mean, 0.0)));
+        }
+        out.println();
+    }
+
+    /**
+     * Run an ensemble and write its summary table
+     *
+     * @param args optional number of members (default 1000), number of threads (default: available processors),
+     *             seed (default 1) and output file name (default ensemble.data)
+     */
+    public static void main(String[] args) {
+        int nMembers = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int nThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1;
+        String outFileName = (args.length > 3) ? args[3] : "ensemble.data";
+
+        SimRecord base = new SimRecord()
+            .set("maxRev", 10)
+            .set("pSpeed", 0.1)
+            .set("bMag", 1.0e-7)
+            .set("method", 'C');
+        EnsembleRunner ensemble = new EnsembleRunner(base, seed, 0.001, 0.05, 0.1);
+
+        long start = System.nanoTime();
+        List<SimRecord> records = ensemble.run(nMembers, nThreads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        try (PrintWriter out = new PrintWriter(outFileName)) {
+            writeTable(records, out);
+        }
+        catch (FileNotFoundException e) {
+            System.out.println("Exception opening file: " + e.getMessage());
+            System.exit(4);
+        }
+        System.out.printf("%d members on %d threads in %.2f s (%.1f members/s), summary in %s%n",
+            nMembers, nThreads, seconds, nMembers / seconds, outFileName);
+    }
+}
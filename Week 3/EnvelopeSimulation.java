@@ -0,0 +1,176 @@
+import java.io.IOException;
+
+/**
+ * The simulation of a bunch of protons in the cyclotron field of BunchSim by its envelope (see BunchEnvelope): its
+ * centroid and sigma matrix are moved on instead of every particle, which takes as long as following 13 particles.
+ * It takes the parameters of BunchSimulation, counts revolutions of the centroid in the same way and gives the same
+ * results, with the spreads spreadX and spreadY, which BunchSimulation gives as the furthest any particle is from the
+ * centroid, given as the sd (the furthest is not known from the moments). It also gives the centroid and sd spread,
+ * as x, y, z, vx, vy, vz and sdX, sdY, sdZ, and takes envelopeEps=1e-4 (see BunchEnvelope).
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class EnvelopeSimulation {
+
+    private final SimRecord parameters;
+    private final double timeStep, maxTime, bMag, spreadTol, pSpeed;
+    private final int maxRev;
+    private final boolean checkSpread;
+    private final BunchEnvelope envelope;
+    private final OrbitTracker<Proton> bunchOrbit = new OrbitTracker<Proton>(new PhysicsVector());
+
+    private double time = 0.0;
+    private int nRev = 0; // number of orbits the centroid completes
+    private double spreadX = 0.0, spreadY = 0.0;
+    private boolean spreadsEqual = false;
+
+    /**
+     * Constructor, with the envelope of the bunch BunchSimulation would make from the parameters
+     * @param parametersIn the parameters of the simulation, any not given take their default
+     */
+    public EnvelopeSimulation(SimRecord parametersIn) {
+        this(parametersIn, BunchEnvelope.fromParameters(parametersIn));
+    }
+
+    /**
+     * Constructor
+     * @param parametersIn the parameters of the simulation, any not given take their default
+     * @param envelopeIn the envelope of the bunch at the start, e.g. from BunchEnvelope.of a bunch
+     */
+    public EnvelopeSimulation(SimRecord parametersIn, BunchEnvelope envelopeIn) {
+        parameters = new SimRecord(parametersIn);
+        timeStep = parameters.getDouble("timeStep", 0.00001);
+        maxTime = parameters.getDouble("maxTime", 3000);
+        maxRev = parameters.getInt("maxRev", 1000);
+        checkSpread = parameters.getBoolean("checkSpread", true);
+        spreadTol = parameters.getDouble("spreadTol", 0.1);
+        bMag = parameters.getDouble("bMag", 1.0e-7);
+        pSpeed = parameters.getDouble("pSpeed", 0.1);
+        envelope = envelopeIn;
+    }
+
+    /**
+     * Advance the envelope by one time step
+     * @return true if the simulation has finished
+     */
+    public boolean step() {
+        time += timeStep;
+        envelope.step(time, timeStep);
+        if (bunchOrbit.hasOrbited(envelope.getPosition())) {
+            nRev += 1;
+            PhysicsVector spread = envelope.getSpreadSD();
+            spreadX = spread.getX();
+            spreadY = spread.getY();
+            if (checkSpread && BunchSim.spreadTest(spreadX, spreadY, spreadTol)) {
+                spreadsEqual = true;
+                return true;
+            }
+        }
+        return nRev >= maxRev || time >= maxTime;
+    }
+
+    /**
+     * Advance the envelope until the simulation is over
+     * @return the results, as given by getResults
+     */
+    public SimRecord run() {
+        while (!step()) {
+        }
+        return getResults();
+    }
+
+    /**
+     * Return the results so far, those of BunchSimulation.getResults and the centroid and sd spread
+     * @return the results
+     */
+    public SimRecord getResults() {
+        double frequency = (Proton.pCharge * bMag / (2 * Math.PI * Proton.pMass)); // expected frequency of bunch orbit
+        double calcPeriod = 1 / frequency;
+        double simPeriod = time / nRev;
+        PhysicsVector position = envelope.getPosition();
+        PhysicsVector velocity = envelope.getVelocity();
+        PhysicsVector sd = envelope.getSpreadSD();
+        return new SimRecord()
+            .set("time", time)
+            .set("nRev", nRev)
+            .set("calcPeriod", calcPeriod)
+            .set("simPeriod", simPeriod)
+            .set("periodError", (calcPeriod - simPeriod) / calcPeriod)
+            .set("radius", Proton.pMass * pSpeed / (Proton.pCharge * bMag))
+            .set("finalRadius", Proton.pMass * velocity.magnitude() / (Proton.pCharge * bMag))
+            .set("spreadX", spreadX)
+            .set("spreadY", spreadY)
+            .set("spreadsEqual", spreadsEqual)
+            .set("x", position.getX()).set("y", position.getY()).set("z", position.getZ())
+            .set("vx", velocity.getX()).set("vy", velocity.getY()).set("vz", velocity.getZ())
+            .set("sdX", sd.getX()).set("sdY", sd.getY()).set("sdZ", sd.getZ());
+    }
+
+    public BunchEnvelope getEnvelope() {
+        return envelope;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public int getRevolutions() {
+        return nRev;
+    }
+
+    /**
+     * Compare the envelope with the tracking of a whole bunch, from the same start, for bunches of different widths in
+     * the uniform field and in the field with the error bErr=0.1, over a number of revolutions and a quarter. Each
+     * line gives how far the centroid of the envelope ends from that of the bunch, over the radius of the orbit, and
+     * the differences in its sd spread in x and y, over the size of the sd spread of the bunch, and the times each
+     * took. In the uniform field the envelope is exact; with bErr the orbit of the centroid, which starts at x=0,
+     * just touches the jump at every revolution, so the particles either side of it move differently and the
+     * envelope is not to be used.
+     *
+     * @param args optional number of protons (default 10000), number of revolutions (default 20) and integrator
+     *             (default helix, with a quarter revolution a step)
+     * @throws IOException never, the bunch is kept on the heap
+     */
+    public static void main(String[] args) throws IOException {
+        int nProtons = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int revolutions = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        String integrator = (args.length > 2) ? args[2] : "helix";
+        double period = 2 * Math.PI * Proton.pMass / (Proton.pCharge * 1.0e-7);
+        double radius = Proton.pMass * 0.1 / (Proton.pCharge * 1.0e-7);
+        double timeStep = integrator.equals("helix") ? period / 4 : period / 1000;
+
+        System.out.println("bErr pSpreadX/radius dCentroid/radius dSdX/sd dSdY/sd bunch(s) envelope(s)");
+        for (double bErr : new double[]{0.0, 0.1}) {
+            for (double width : new double[]{0.001, 0.01, 0.1, 1, 10}) {
+                SimRecord parameters = new SimRecord().set("nProtons", nProtons).set("bErr", bErr)
+                    .set("pSpreadX", width * radius).set("pESpread", 0.01).set("seed", 1).set("integrator", integrator)
+                    .set("timeStep", timeStep).set("maxTime", (revolutions + 0.25 - 0.5 / 1000) * period)
+                    .set("maxRev", Integer.MAX_VALUE).set("checkSpread", false);
+
+                long start = System.nanoTime();
+                PhysicsVector position, sd;
+                BunchEnvelope envelope;
+                try (BunchSimulation bunch = new BunchSimulation(parameters)) {
+                    ParticleStore store = bunch.getBunch().getStore();
+                    envelope = BunchEnvelope.of(store, 0, store.size(), parameters);
+                    bunch.run();
+                    position = bunch.getBunch().getPosition();
+                    sd = bunch.getBunch().getSpreadSD();
+                }
+                double bunchTime = (System.nanoTime() - start) / 1e9;
+
+                start = System.nanoTime();
+                EnvelopeSimulation simulation = new EnvelopeSimulation(parameters, envelope);
+                simulation.run();
+                double envelopeTime = (System.nanoTime() - start) / 1e9;
+                PhysicsVector envelopeSD = envelope.getSpreadSD();
+                System.out.printf("%.1f %g %.2e %.2e %.2e %.3f %.4f%n", bErr, width,
+                    PhysicsVector.distance(position, envelope.getPosition()) / radius,
+                    Math.abs(envelopeSD.getX() - sd.getX()) / sd.magnitude(),
+                    Math.abs(envelopeSD.getY() - sd.getY()) / sd.magnitude(),
+                    bunchTime, envelopeTime);
+            }
+        }
+    }
+}
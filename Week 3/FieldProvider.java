@@ -0,0 +1,21 @@
+/**
+ * An AccelerationProvider that can also give the electric field and magnetic flux density at each particle, for
+ * integrators such as Boris that treat the magnetic force as a rotation of the velocity rather than as an acceleration.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public interface FieldProvider extends AccelerationProvider {
+
+    /**
+     * Put the fields at particles from (inclusive) to to (exclusive) into e and b, the field at particle i going in
+     * e[0][i - from] to e[2][i - from] for the x, y and z components of E and the same for B
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param time the time at which to take the field
+     * @param e the electric field strength, three arrays with room for to - from particles
+     * @param b the magnetic flux density, three arrays with room for to - from particles
+     */
+    void fields(ParticleStore store, int from, int to, double time, double[][] e, double[][] b);
+}
@@ -0,0 +1,315 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves particles by their guiding centres where the field hardly changes over a gyration, and by their full orbits
+ * where it does. A particle turning many times in a step is replaced by the centre of its gyration R, its velocity
+ * along B and its magnetic moment mu = m u^2 / (2|B|), u being its velocity of gyration. The centre moves along B and
+ * drifts across it with
+ *   E x B / B^2                       (E x B drift)
+ *   (mu / (q|B|)) b x grad|B|         (grad-B drift)
+ *   (m v||^2 / (q|B|)) b x (b.grad)b  (curvature drift)
+ *   (m / (q B^2)) dE/dt across B      (polarization drift)
+ * with b the direction of B, and is accelerated along B by qE.b/m - (mu/m) b.grad|B| (the mirror force). mu is kept as
+ * the field changes. The gyration is carried along, turning by q|B|/m times the step, so the particle is put back on
+ * its orbit at the end of each step and the store always holds its full position and velocity.
+ *
+ * The field is sampled at the centre and a gyro-radius either way along x, y and z, and the gradients are taken from
+ * the differences. The guiding centre is only used if |B| changes by less than the tolerance over these points and
+ * over the step, at the start and the middle of the step, and if E changes in a radian of gyration by less than the
+ * tolerance times |E| + |B| u, the size of the force on the gyration. Otherwise, as for orbits that reach the jump in
+ * B at x = 0 in BunchSim.cyclotronBField, the particle is moved through the step by the full orbit integrator, in
+ * steps of a gyration / gyroSteps. Step sizes can then be many gyrations for all the particles far from any change in
+ * the field.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class GuidingCentre implements Integrator {
+
+    private static final int nProbes = 7; // the centre, then a step either way along x, y and z
+
+    private final Integrator fullOrbit;
+    private final double tolerance;
+    private final int gyroSteps;
+    private final ThreadLocal<Probe> probes = ThreadLocal.withInitial(Probe::new);
+    private final AtomicLong centreSteps = new AtomicLong(), orbitSteps = new AtomicLong();
+
+    /**
+     * The field at the points around a guiding centre, with what is worked out from it
+     */
+    private static class Probe {
+        final ArrayParticleStore store = new ArrayParticleStore(nProbes);
+        final double[][] e = new double[3][nProbes], b = new double[3][nProbes];
+        final double[][] eLater = new double[3][1], bLater = new double[3][1];
+        final double[] bHat = new double[3], field = new double[3], electric = new double[3];
+        final double[] gradB = new double[3], curvature = new double[3], dEdt = new double[3];
+        double bMag, omega, speed; // the gyro-frequency and speed of gyration at the start of the step
+
+        Probe() {
+            store.resize(nProbes);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param fullOrbitIn the integrator used where the guiding centre cannot be
+     * @param toleranceIn the largest fractional change in the field over a gyration at which the centre is used
+     * @param gyroStepsIn the number of full orbit steps in a gyration
+     */
+    public GuidingCentre(Integrator fullOrbitIn, double toleranceIn, int gyroStepsIn) {
+        if (!(toleranceIn > 0) || gyroStepsIn < 1) {
+            throw new IllegalArgumentException("bad guiding centre tolerance=" + toleranceIn + " gyroSteps="
+                + gyroStepsIn);
+        }
+        fullOrbit = fullOrbitIn;
+        tolerance = toleranceIn;
+        gyroSteps = gyroStepsIn;
+    }
+
+    @Override
+    public void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field) {
+        FieldProvider provider = Boris.fieldProvider(field);
+        Probe p = probes.get();
+        long nCentre = 0, nOrbit = 0;
+        for (int i = from; i < to; i++) {
+            if (centreStep(store, i, time, timeStep, provider, p)) {
+                nCentre++;
+            }
+            else {
+                orbitStep(store, i, time, timeStep, field, p);
+                nOrbit++;
+            }
+        }
+        centreSteps.addAndGet(nCentre);
+        orbitSteps.addAndGet(nOrbit);
+    }
+
+    /**
+     * Move particle i through the step by its guiding centre, if the field allows
+     * @return false, with the particle untouched, if the guiding centre cannot be used
+     */
+    private boolean centreStep(ParticleStore store, int i, double time, double dt, FieldProvider provider, Probe p) {
+        double q = store.getCharge(i), m = store.getMass(i);
+        double[] x = {store.getX(i), store.getY(i), store.getZ(i)};
+        double[] v = {store.get(ParticleStore.VX, i), store.get(ParticleStore.VY, i), store.get(ParticleStore.VZ, i)};
+        double start = time - dt;
+
+        // the guiding centre of the particle: take off the parallel velocity and the E x B drift to leave the gyration.
+        // The field is taken at the particle, then twice at the centre found, to match how the particle is put back
+        double qOverM = q / m;
+        sample(provider, p, x, 0.0, start, 1, qOverM);
+        p.omega = Math.abs(qOverM * p.bMag);
+        if (q == 0 || p.bMag == 0) {
+            return false;
+        }
+        double vPar = 0.0, mu = 0.0;
+        double[] u = new double[3], centre = x;
+        for (int pass = 0; pass < 3; pass++) {
+            if (pass > 0 && !sample(provider, p, centre, 0.0, start, 1, qOverM)) {
+                return false;
+            }
+            vPar = dot(v, p.bHat);
+            double[] vE = cross(p.electric, p.field, 1 / (p.bMag * p.bMag));
+            for (int j = 0; j < 3; j++) {
+                u[j] = v[j] - vPar * p.bHat[j] - vE[j];
+            }
+            mu = m * dot(u, u) / (2 * p.bMag);
+            centre = cross(p.field, u, -m / (q * p.bMag * p.bMag));
+            for (int j = 0; j < 3; j++) {
+                centre[j] += x[j];
+            }
+        }
+        p.speed = Math.sqrt(dot(u, u));
+        double radius = p.speed / Math.abs(qOverM * p.bMag);
+        double spacing = (radius > 0) ? radius : 1e-9 * (1 + Math.sqrt(dot(centre, centre)));
+        double bStart = p.bMag;
+
+        // midpoint step of the centre and parallel velocity
+        if (!sample(provider, p, centre, spacing, start, nProbes, qOverM)) {
+            return false;
+        }
+        double[] drift = drift(p, q, m, mu, vPar);
+        double accel = (q * dot(p.electric, p.bHat) - mu * dot(p.bHat, p.gradB)) / m;
+        double[] middle = new double[3];
+        for (int j = 0; j < 3; j++) {
+            middle[j] = centre[j] + 0.5 * dt * drift[j];
+        }
+        double vParMiddle = vPar + 0.5 * dt * accel;
+        if (!sample(provider, p, middle, spacing, start + 0.5 * dt, nProbes, qOverM)) {
+            return false;
+        }
+        drift = drift(p, q, m, mu, vParMiddle);
+        accel = (q * dot(p.electric, p.bHat) - mu * dot(p.bHat, p.gradB)) / m;
+        double theta = -q * p.bMag / m * dt; // the gyration turns about b by this angle
+        double[] bMiddle = p.bHat.clone();
+        for (int j = 0; j < 3; j++) {
+            centre[j] += dt * drift[j];
+        }
+        vPar += dt * accel;
+
+        // put the particle back on its orbit about the new centre, with the same magnetic moment
+        sample(provider, p, centre, 0.0, time, 1, qOverM);
+        if (p.bMag == 0 || Math.abs(p.bMag - bStart) > tolerance * bStart) {
+            return false;
+        }
+        double[] turned = cross(bMiddle, u, Math.sin(theta));
+        double cos = Math.cos(theta);
+        for (int j = 0; j < 3; j++) {
+            turned[j] += u[j] * cos;
+        }
+        double along = dot(turned, p.bHat);
+        for (int j = 0; j < 3; j++) {
+            turned[j] -= along * p.bHat[j];
+        }
+        double size = Math.sqrt(dot(turned, turned));
+        double scale = (size > 0) ? Math.sqrt(2 * mu * p.bMag / m) / size : 0.0;
+        double[] vE = cross(p.electric, p.field, 1 / (p.bMag * p.bMag));
+        for (int j = 0; j < 3; j++) {
+            turned[j] *= scale;
+            v[j] = vPar * p.bHat[j] + vE[j] + turned[j];
+        }
+        double[] offset = cross(p.field, turned, m / (q * p.bMag * p.bMag));
+        for (int j = 0; j < 3; j++) {
+            store.set(ParticleStore.X + j, i, centre[j] + offset[j]);
+            store.set(ParticleStore.VX + j, i, v[j]);
+        }
+        double[] force = cross(v, p.field, 1.0);
+        store.setAcceleration(i, (p.electric[0] + force[0]) * q / m, (p.electric[1] + force[1]) * q / m,
+            (p.electric[2] + force[2]) * q / m);
+        return true;
+    }
+
+    /**
+     * Move particle i through the step by its full orbit, in steps of a gyration / gyroSteps
+     */
+    private void orbitStep(ParticleStore store, int i, double time, double dt, AccelerationProvider field, Probe p) {
+        int n = (int) Math.min(Integer.MAX_VALUE, Math.max(1, Math.ceil(dt * p.omega * gyroSteps / (2 * Math.PI))));
+        double h = dt / n;
+        double start = time - dt;
+        for (int s = 1; s <= n; s++) {
+            fullOrbit.step(store, i, i + 1, (s == n) ? time : start + s * h, h, field);
+        }
+    }
+
+    /**
+     * Take the field at a point and, if nPoints is 7, a spacing either way along x, y and z from it, and the gradient
+     * of |B|, the curvature of the field lines and the rate of change of E there
+     * @return true if |B| and its direction change by no more than the tolerance over the points, and E in a radian of
+     * gyration by no more than the tolerance times |E| + |B| u
+     */
+    private boolean sample(FieldProvider provider, Probe p, double[] point, double spacing, double t, int nPoints,
+        double qOverM) {
+        ArrayParticleStore probe = p.store;
+        for (int k = 0; k < nPoints; k++) {
+            for (int j = 0; j < 3; j++) {
+                double shift = (k > 0 && (k - 1) / 2 == j) ? ((k % 2 == 1) ? spacing : -spacing) : 0.0;
+                probe.set(ParticleStore.X + j, k, point[j] + shift);
+            }
+        }
+        provider.fields(probe, 0, nPoints, t, p.e, p.b);
+        for (int j = 0; j < 3; j++) {
+            p.field[j] = p.b[j][0];
+            p.electric[j] = p.e[j][0];
+        }
+        p.bMag = Math.sqrt(dot(p.field, p.field));
+        for (int j = 0; j < 3; j++) {
+            p.bHat[j] = (p.bMag > 0) ? p.field[j] / p.bMag : 0.0;
+        }
+        if (nPoints == 1 || p.bMag == 0) {
+            return p.bMag > 0;
+        }
+
+        double change = 0.0;
+        double[][] hats = new double[nPoints][3];
+        double[] mags = new double[nPoints];
+        for (int k = 0; k < nPoints; k++) {
+            mags[k] = Math.sqrt(p.b[0][k] * p.b[0][k] + p.b[1][k] * p.b[1][k] + p.b[2][k] * p.b[2][k]);
+            for (int j = 0; j < 3; j++) {
+                hats[k][j] = (mags[k] > 0) ? p.b[j][k] / mags[k] : 0.0;
+                change = Math.max(change, Math.abs(hats[k][j] - p.bHat[j]));
+            }
+            change = Math.max(change, Math.abs(mags[k] - p.bMag) / p.bMag);
+        }
+        for (int j = 0; j < 3; j++) {
+            p.gradB[j] = (mags[2 * j + 1] - mags[2 * j + 2]) / (2 * spacing);
+            p.curvature[j] = 0.0;
+        }
+        for (int d = 0; d < 3; d++) { // (b.grad)b
+            for (int j = 0; j < 3; j++) {
+                p.curvature[j] += p.bHat[d] * (hats[2 * d + 1][j] - hats[2 * d + 2][j]) / (2 * spacing);
+            }
+        }
+
+        // the rate of change of E, over a small fraction of a gyration
+        double omega = Math.abs(qOverM) * mags[0];
+        double eps = Math.max(1e-3 / omega, 1e-12 * Math.abs(t));
+        provider.fields(probe, 0, 1, t + eps, p.eLater, p.bLater);
+        double eSize = Math.sqrt(dot(p.electric, p.electric));
+        double rate = 0.0;
+        for (int j = 0; j < 3; j++) {
+            p.dEdt[j] = (p.eLater[j][0] - p.electric[j]) / eps;
+            rate += p.dEdt[j] * p.dEdt[j];
+        }
+        p.bMag = mags[0];
+        return change <= tolerance && Math.sqrt(rate) <= tolerance * omega * (eSize + mags[0] * p.speed);
+    }
+
+    /**
+     * Return the velocity of the guiding centre in the field sampled in p: along B and the four drifts
+     */
+    private static double[] drift(Probe p, double q, double m, double mu, double vPar) {
+        double b2 = p.bMag * p.bMag;
+        double[] drift = cross(p.electric, p.field, 1 / b2);
+        double[] gradB = cross(p.bHat, p.gradB, mu / (q * p.bMag));
+        double[] curvature = cross(p.bHat, p.curvature, m * vPar * vPar / (q * p.bMag));
+        double along = dot(p.dEdt, p.bHat);
+        for (int j = 0; j < 3; j++) {
+            double polarization = m / (q * b2) * (p.dEdt[j] - along * p.bHat[j]);
+            drift[j] += vPar * p.bHat[j] + gradB[j] + curvature[j] + polarization;
+        }
+        return drift;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    /**
+     * Return s (a x b)
+     */
+    private static double[] cross(double[] a, double[] b, double s) {
+        return new double[]{s * (a[1] * b[2] - a[2] * b[1]), s * (a[2] * b[0] - a[0] * b[2]),
+            s * (a[0] * b[1] - a[1] * b[0])};
+    }
+
+    /**
+     * Return whether the full orbit integrator keeps state for each particle, which it keeps in the store the
+     * particles are stepped in whichever way each is stepped
+     * @return true if it keeps any
+     */
+    @Override
+    public boolean keepsParticleState() {
+        return fullOrbit.keepsParticleState();
+    }
+
+    @Override
+    public double getParticleState(ParticleStore store, int i) {
+        return fullOrbit.getParticleState(store, i);
+    }
+
+    @Override
+    public void setParticleState(ParticleStore store, int i, double value) {
+        fullOrbit.setParticleState(store, i, value);
+    }
+
+    /**
+     * Return the numbers of particle steps taken by guiding centre and by full orbit
+     * @return centreSteps and orbitSteps
+     */
+    @Override
+    public SimRecord getStats() {
+        return new SimRecord()
+            .set("centreSteps", centreSteps.get())
+            .set("orbitSteps", orbitSteps.get());
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves particles exactly through a PiecewiseUniformField. On each side of the plane x = 0 a particle turns on a helix
+ * about z at its cyclotron frequency w = qB/m, so its velocity is just rotated by w t and its position follows from
+ * the rotation. The time at which the circle reaches x = 0, if it does, is found in closed form, the particle is moved
+ * there and put exactly on the plane, and it carries on in the field on the other side.
+ *
+ * The time step costs a few sines and cosines for each plane crossing, whatever its length, so it can be a whole
+ * revolution or more and is then just how often the particles are looked at. The only error is rounding. The
+ * acceleration left in the store is that at the end of the step.
+ *
+ * A particle on the plane (to within rounding) is taken to be on the side it is about to move into: the side its x
+ * velocity points to, or, moving along the plane, the side its x acceleration points to. An orbit just touching the
+ * plane, as one started on it moving along it does every turn, so stays on its own side.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class HelixPropagator implements Integrator {
+
+    private static final double twoPi = 2 * Math.PI;
+    // distances from the plane less than this times the radius of the orbit, and x velocities less than it times the
+    // speed, are taken to be rounding errors of 0
+    private static final double tolerance = 1e-12;
+
+    private final AtomicLong crossings = new AtomicLong();
+
+    @Override
+    public void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field) {
+        if (!(field instanceof PiecewiseUniformField) || !((PiecewiseUniformField) field).isMagnetostatic()) {
+            throw new IllegalArgumentException("the helix propagator needs a magnetic field uniform on each side of x = 0,"
+                + " with no electric field");
+        }
+        PiecewiseUniformField regions = (PiecewiseUniformField) field;
+        double bPositive = regions.regionB(true), bNegative = regions.regionB(false);
+        long nCrossings = 0;
+
+        for (int i = from; i < to; i++) {
+            double qOverM = store.getCharge(i) / store.getMass(i);
+            double onPlane = (bPositive != 0) ? tolerance / Math.abs(qOverM * bPositive) : 0.0; // radius per speed
+            double x = store.getX(i), y = store.getY(i), z = store.getZ(i);
+            double vx = store.get(ParticleStore.VX, i), vy = store.get(ParticleStore.VY, i);
+            double vz = store.get(ParticleStore.VZ, i);
+            double remaining = timeStep;
+            double w;
+            while (true) {
+                boolean positive;
+                if (Math.abs(x) > onPlane * Math.hypot(vx, vy)) {
+                    positive = x > 0;
+                }
+                else {
+                    x = 0.0; // on the plane, to rounding: take the side the particle is about to move into
+                    if (Math.abs(vx) > tolerance * Math.hypot(vx, vy)) {
+                        positive = vx > 0;
+                    }
+                    else {
+                        positive = qOverM * bPositive * vy > 0;
+                    }
+                }
+                w = qOverM * (positive ? bPositive : bNegative);
+                double t = crossingTime(x, vx, vy, w, positive);
+                boolean crosses = t < remaining;
+                if (!crosses) {
+                    t = remaining;
+                }
+                if (w == 0) {
+                    x += vx * t;
+                    y += vy * t;
+                }
+                else {
+                    double theta = w * t;
+                    double sin = Math.sin(theta);
+                    double half = Math.sin(0.5 * theta);
+                    double oneLessCos = 2 * half * half; // 1 - cos(theta) without losing it for small angles
+                    double cos = 1 - oneLessCos;
+                    x += (vx * sin + vy * oneLessCos) / w;
+                    y += (vy * sin - vx * oneLessCos) / w;
+                    double vxNew = vx * cos + vy * sin;
+                    vy = vy * cos - vx * sin;
+                    vx = vxNew;
+                }
+                z += vz * t;
+                if (!crosses) {
+                    break;
+                }
+                x = 0.0;
+                remaining -= t;
+                nCrossings++;
+            }
+            store.set(ParticleStore.X, i, x);
+            store.set(ParticleStore.Y, i, y);
+            store.set(ParticleStore.Z, i, z);
+            store.set(ParticleStore.VX, i, vx);
+            store.set(ParticleStore.VY, i, vy);
+            store.setAcceleration(i, w * vy, -w * vx, 0.0); // (q/m) v X B for B along z
+        }
+        crossings.addAndGet(nCrossings);
+    }
+
+    /**
+     * Return the time after which a particle leaves its side of the plane x = 0, turning at w (or going straight if w
+     * is 0) with velocity (vx, vy) from x
+     * @param positive true if the particle is on the x>0 side
+     * @return the time, infinite if the particle never crosses the plane
+     */
+    static double crossingTime(double x, double vx, double vy, double w, boolean positive) {
+        if (w == 0) {
+            return (positive == (vx < 0) && vx != 0) ? -x / vx : Double.POSITIVE_INFINITY;
+        }
+        // x(theta) = x + (vx sin(theta) + vy (1 - cos(theta))) / w for theta = w t; turning the other way (w<0) is the
+        // mirror image in y of turning this way, which does not change x
+        double speed = Math.abs(w);
+        double vyTurn = (w > 0) ? vy : -vy;
+        double vPerp = Math.hypot(vx, vyTurn);
+        if (vPerp == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        // x(theta) = centre + vPerp sin(theta - beta) / speed, with the centre of the circle at
+        double centre = x + vyTurn / speed;
+        double s = -centre * speed / vPerp;
+        if (!(Math.abs(s) < 1)) {
+            return Double.POSITIVE_INFINITY; // the circle does not reach the plane, or only touches it
+        }
+        double beta = Math.atan2(vyTurn, vx);
+        double asin = Math.asin(s);
+        // going down through the plane from x>0 the slope, cos(theta - beta), is negative; going up it is positive
+        double theta = (positive ? Math.PI - asin : asin) + beta;
+        theta -= twoPi * Math.floor(theta / twoPi);
+        if (twoPi - theta < 1e-12 && (positive ? vx < 0 : vx > 0)) {
+            theta = 0.0; // a crossing just ahead, put just behind by rounding
+        }
+        return theta / speed;
+    }
+
+    /**
+     * Return the number of times particles have crossed the plane x = 0 since the propagator was made
+     * @return the number of crossings
+     */
+    public long getCrossings() {
+        return crossings.get();
+    }
+
+    @Override
+    public SimRecord getStats() {
+        return new SimRecord().set("crossings", crossings.get());
+    }
+}
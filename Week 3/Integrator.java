@@ -0,0 +1,167 @@
+/**
+ * A method of advancing the particles in a ParticleStore by one time step in the field given by an
+ * AccelerationProvider. Methods with several stages ask the provider for the acceleration as many times as they need,
+ * with the particles in the store put at each stage's position and velocity in turn.
+ *
+ * As for BunchPusher, time is the time at the end of the step. Euler and Euler-Cromer take the field at that time, as
+ * the time loops of BunchSim and MainMethodWeek3 always have, so they give the same results as Particle.update and
+ * Particle.updateLPA; methods with stages in the step take them from time - timeStep.
+ *
+ * Implementations must only touch particles in the range they are given, so that separate ranges can be pushed by
+ * separate threads at the same time.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public interface Integrator {
+
+    /**
+     * Advance particles from (inclusive) to to (exclusive) by one time step
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param time the time at the end of the step
+     * @param timeStep the length of the step
+     * @param field gives the acceleration of the particles
+     */
+    void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field);
+
+    /**
+     * Return counts kept by the integrator of the work it has done, such as the steps an adaptive one has rejected
+     * @return the counts, none unless the integrator keeps any
+     */
+    default SimRecord getStats() {
+        return new SimRecord();
+    }
+
+    /**
+     * Return whether the integrator keeps state of its own for each particle from one time step to the next, such as
+     * the sub-step DormandPrince is to try next, which must be saved with the store for a run to carry on
+     * bit-identically (see getParticleState)
+     * @return true if it keeps any
+     */
+    default boolean keepsParticleState() {
+        return false;
+    }
+
+    /**
+     * Return the state the integrator keeps for a particle of a store
+     * @param store the particles
+     * @param i index of the particle
+     * @return the state, 0 if none is kept
+     */
+    default double getParticleState(ParticleStore store, int i) {
+        return 0.0;
+    }
+
+    /**
+     * Set the state the integrator keeps for a particle of a store, as given by getParticleState
+     * @param store the particles
+     * @param i index of the particle
+     * @param value the state
+     */
+    default void setParticleState(ParticleStore store, int i, double value) {
+    }
+
+    /** s = ut + 1/2 at**2, v = u + at, as Particle.update */
+    Integrator euler = (store, from, to, time, timeStep, field) -> {
+        field.accelerate(store, from, to, time);
+        if (LorentzKernel.isEnabled() && store instanceof ArrayParticleStore) {
+            LorentzKernel.updateEuler((ArrayParticleStore) store, from, to, timeStep);
+        }
+        else {
+            for (int i = from; i < to; i++) {
+                store.update(i, timeStep);
+            }
+        }
+    };
+
+    /** v = u + at, s = vt, as Particle.updateLPA */
+    Integrator eulerCromer = (store, from, to, time, timeStep, field) -> {
+        field.accelerate(store, from, to, time);
+        if (LorentzKernel.isEnabled() && store instanceof ArrayParticleStore) {
+            LorentzKernel.updateEulerLPA((ArrayParticleStore) store, from, to, timeStep);
+        }
+        else {
+            for (int i = from; i < to; i++) {
+                store.updateLPA(i, timeStep);
+            }
+        }
+    };
+
+    /**
+     * Return the integrator with the given name
+     * @param name euler (or E), eulerCromer (or C), rk4, rk45 (Dormand-Prince, with its default tolerances), boris,
+     *             leapfrog, yoshida4 (or forestRuth), yoshida6, helix (see HelixPropagator) or guidingCentre (see
+     *             GuidingCentre, with Boris for full orbits, tolerance 1e-2 and 32 steps a gyration)
+     * @return the integrator
+     * @throws IllegalArgumentException if there is no integrator of that name
+     */
+    static Integrator forName(String name) {
+        switch (name) {
+            case "euler":
+            case "E":
+                return euler;
+            case "eulerCromer":
+            case "C":
+                return eulerCromer;
+            case "rk4":
+                return new RungeKutta4();
+            case "rk45":
+                return new DormandPrince();
+            case "boris":
+                return new Boris();
+            case "leapfrog":
+                return new Yoshida(2);
+            case "yoshida4":
+            case "forestRuth":
+                return new Yoshida(4);
+            case "yoshida6":
+                return new Yoshida(6);
+            case "helix":
+                return new HelixPropagator();
+            case "guidingCentre":
+                return new GuidingCentre(new Boris(), 1e-2, 32);
+            default:
+                throw new IllegalArgumentException("no integrator called " + name);
+        }
+    }
+
+    /**
+     * Return the integrator named by the integrator parameter, with the tolerances atol and rtol of an adaptive one
+     * if given, the full orbit integrator fullOrbit, gcTolerance and gyroSteps of guidingCentre if given, and taking
+     * block time steps (see BlockTimeSteps) if levels is more than 0
+     * @param parameters the parameters of a simulation
+     * @return the integrator, euler if none is named
+     * @throws IllegalArgumentException if there is no integrator of that name
+     */
+    static Integrator fromParameters(SimRecord parameters) {
+        String name = parameters.getString("integrator", "euler");
+        Integrator integrator;
+        if (name.equals("rk45") && (parameters.has("atol") || parameters.has("rtol"))) {
+            integrator = new DormandPrince(parameters.getDouble("atol", 1e-12), parameters.getDouble("rtol", 1e-9));
+        }
+        else if (name.equals("guidingCentre")) {
+            integrator = new GuidingCentre(forName(parameters.getString("fullOrbit", "boris")),
+                parameters.getDouble("gcTolerance", 1e-2), parameters.getInt("gyroSteps", 32));
+        }
+        else {
+            integrator = forName(name);
+        }
+        int levels = parameters.getInt("levels", 0);
+        if (levels > 0) {
+            integrator = new BlockTimeSteps(integrator, levels, parameters.getDouble("maxAngle", 0.1));
+        }
+        return integrator;
+    }
+
+    /**
+     * Return a pusher that advances particles with an integrator in a field, for ParallelStepper
+     * @param integrator the integrator
+     * @param field the field
+     * @return the pusher
+     */
+    static BunchPusher pusher(Integrator integrator, AccelerationProvider field) {
+        return (store, from, to, time, timeStep) -> integrator.step(store, from, to, time, timeStep, field);
+    }
+}
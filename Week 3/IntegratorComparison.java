@@ -0,0 +1,187 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Advances one proton per Integrator in lock-step from the same start, in the field of OrbitSimulation,
+ * and writes how far each integrator has moved away from the first (the reference) as it goes.
+ *
+ * Each integrator steps its own one-row store, with the OrbitSimulation as the AccelerationProvider for all of them,
+ * so integrators that need the acceleration more than once a step (RK4, Dormand-Prince, Yoshida...) are compared
+ * the same way as Euler. Every pStep steps one line is written with, for each integrator, its position, the distance
+ * in position and velocity from the reference and its energy relative to the start, so no second pass over separate
+ * output files is needed.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class IntegratorComparison {
+
+    private final OrbitSimulation setup; // the field, and the start state shared by every integrator
+    private final List<String> names = new ArrayList<String>();
+    private final List<Integrator> methods = new ArrayList<Integrator>();
+
+    /**
+     * Constructor
+     * @param parameters the parameters of the simulation, as for OrbitSimulation (method and integrator are ignored)
+     */
+    public IntegratorComparison(SimRecord parameters) {
+        setup = new OrbitSimulation(parameters);
+    }
+
+    /**
+     * Add an integrator to compare. The first one added is the reference the others are measured against.
+     * Each needs its own instance, as integrators such as rk45 keep state between steps.
+     * @param name the name used in the output
+     * @param integrator the integrator
+     * @return this comparison, so calls can be chained
+     */
+    public IntegratorComparison addMethod(String name, Integrator integrator) {
+        if (methods.contains(integrator) && integrator.keepsParticleState()) {
+            throw new IllegalArgumentException(name + " shares its integrator with another method but keeps state");
+        }
+        names.add(name);
+        methods.add(integrator);
+        return this;
+    }
+
+    /**
+     * Run every integrator until each has completed maxRev revolutions or maxTime is reached
+     * @param out where to write the divergence of the methods, or null to write nothing
+     * @param pStep write on every pStep time steps
+     * @return for each integrator: nRev, meanPeriod, radius (from the final speed), energyRatio (final over start kinetic
+     *         energy) and, for all but the reference, maxDr and maxDv (the largest distance in position and velocity from
+     *         the reference), each named method.quantity
+     */
+    public SimRecord run(PrintWriter out, int pStep) {
+        int nMethods = methods.size();
+        double timeStep = setup.getTimeStep();
+        ArrayParticleStore[] stores = new ArrayParticleStore[nMethods];
+        Proton[] protons = new Proton[nMethods]; // views of the stores, for the trackers
+        ProtonOrbitTracker[] trackers = new ProtonOrbitTracker[nMethods];
+        int[] nRev = new int[nMethods];
+        double[] lastTime = new double[nMethods];
+        double[] maxDrSq = new double[nMethods]; // squared, so no square root is taken on steps that are not written
+        double[] maxDvSq = new double[nMethods];
+        for (int m = 0; m < nMethods; m++) {
+            stores[m] = new ArrayParticleStore(1);
+            stores[m].add(setup.getProton());
+            protons[m] = new Proton(setup.getProton());
+            trackers[m] = new ProtonOrbitTracker();
+        }
+        double startSpeedSq = PhysicsVector.dot(setup.getProton().getVelocityView(), setup.getProton().getVelocityView());
+
+        if (out != null) {
+            out.print("# time");
+            for (int m = 0; m < nMethods; m++) {
+                out.print(" " + names.get(m) + ".x " + names.get(m) + ".y");
+                if (m > 0) {
+                    out.print(" " + names.get(m) + ".dr " + names.get(m) + ".dv");
+                }
+                out.print(" " + names.get(m) + ".energyRatio");
+            }
+            out.println();
+        }
+
+        StringBuilder line = new StringBuilder();
+        double time = 0.0;
+        long nSteps = 0;
+        boolean finished = (nMethods == 0);
+        while (!finished) {
+            time += timeStep;
+            nSteps++;
+            for (int m = 0; m < nMethods; m++) {
+                methods.get(m).step(stores[m], 0, 1, time, timeStep, setup);
+                stores[m].copyTo(0, protons[m]);
+                if (trackers[m].hasOrbited(protons[m])) {
+                    nRev[m]++;
+                    lastTime[m] = time;
+                }
+            }
+
+            boolean write = out != null && nSteps % pStep == 1;
+            if (write) {
+                line.setLength(0);
+                line.append(time);
+            }
+            finished = time >= setup.getMaxTime();
+            boolean allDone = true;
+            PhysicsVector position0 = protons[0].getPositionView();
+            PhysicsVector velocity0 = protons[0].getVelocityView();
+            for (int m = 0; m < nMethods; m++) {
+                PhysicsVector position = protons[m].getPositionView();
+                PhysicsVector velocity = protons[m].getVelocityView();
+                double drSq = distanceSq(position, position0);
+                double dvSq = distanceSq(velocity, velocity0);
+                if (drSq > maxDrSq[m]) maxDrSq[m] = drSq;
+                if (dvSq > maxDvSq[m]) maxDvSq[m] = dvSq;
+                if (write) {
+                    line.append(' ').append(position.getX()).append(' ').append(position.getY());
+                    if (m > 0) {
+                        line.append(' ').append(Math.sqrt(drSq)).append(' ').append(Math.sqrt(dvSq));
+                    }
+                    line.append(' ').append(PhysicsVector.dot(velocity, velocity) / startSpeedSq);
+                }
+                allDone = allDone && nRev[m] >= setup.getMaxRev();
+            }
+            if (write) {
+                out.println(line);
+            }
+            finished = finished || allDone;
+        }
+
+        SimRecord results = new SimRecord().set("time", time);
+        for (int m = 0; m < nMethods; m++) {
+            String name = names.get(m);
+            double speed = protons[m].getVelocityView().magnitude();
+            results.set(name + ".nRev", nRev[m])
+                .set(name + ".meanPeriod", (nRev[m] > 0) ? lastTime[m] / nRev[m] : 0.0)
+                .set(name + ".radius", Proton.pMass * speed / (Proton.pCharge * setup.getParameters().getDouble("bMag", 1.0e-7)))
+                .set(name + ".energyRatio", speed * speed / startSpeedSq);
+            if (m > 0) {
+                results.set(name + ".maxDr", Math.sqrt(maxDrSq[m])).set(name + ".maxDv", Math.sqrt(maxDvSq[m]));
+            }
+        }
+        return results;
+    }
+
+    private static double distanceSq(PhysicsVector v, PhysicsVector u) {
+        double dx = v.getX() - u.getX();
+        double dy = v.getY() - u.getY();
+        double dz = v.getZ() - u.getZ();
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Compare integrators for the proton of MainMethodWeek3. The helix propagator needs eMag=0, so it is not one of
+     * the defaults.
+     *
+     * @param args optional output file name (default comparison.data), maximum number of revolutions (default 10)
+     *             and the names of the integrators, as for Integrator.forName (default euler, eulerCromer, rk4, rk45,
+     *             boris, leapfrog, yoshida4, yoshida6), the first being the reference
+     */
+    public static void main(String[] args) {
+        String outFileName = (args.length > 0) ? args[0] : "comparison.data";
+        SimRecord parameters = new SimRecord().set("maxRev", (args.length > 1) ? args[1] : "10");
+        String[] integrators = (args.length > 2) ? Arrays.copyOfRange(args, 2, args.length)
+            : new String[] {"euler", "eulerCromer", "rk4", "rk45", "boris", "leapfrog", "yoshida4", "yoshida6"};
+        IntegratorComparison comparison = new IntegratorComparison(parameters);
+        for (String name : integrators) {
+            comparison.addMethod(name, Integrator.forName(name));
+        }
+
+        long start = System.nanoTime();
+        SimRecord results = null;
+        try (PrintWriter out = new PrintWriter(outFileName)) {
+            results = comparison.run(out, 1000);
+        }
+        catch (FileNotFoundException e) {
+            System.out.println("Exception opening file: " + e.getMessage());
+            System.exit(4);
+        }
+        System.out.print(results);
+        System.out.printf("Compared in %.2f s, divergence in %s%n", (System.nanoTime() - start) / 1e9, outFileName);
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A work queue of simulation runs kept as files in a spool directory, which any number of worker JVMs on any number of
+ * machines sharing the directory can take jobs from.
+ *
+ * A job is a SimRecord of parameters in pending/NAME.job, with type=bunch (BunchSimulation, the default) or type=orbit
+ * (OrbitSimulation). A worker claims a job by renaming it to running/NAME.job; the rename is atomic, so exactly one
+ * worker gets each job. While it runs the job the worker touches the file every heartbeat interval. The results are
+ * written to done/NAME.result, with the trajectory every pStep steps in done/NAME.data, and then the job file is moved
+ * to done/NAME.job. A job whose file has not been touched for the stale timeout belongs to a worker that has died: any
+ * worker that notices moves it back to pending, with its attempts count increased, or to failed once it has used up
+ * maxAttempts. It does so by renaming it to running/NAME.job.requeue-WORKER, so only one worker takes it, writing the
+ * pending (or failed) file from that copy and only then deleting it; a copy left for the stale timeout by a worker that
+ * died in between is taken over and finished by another. A job that throws an exception goes to failed/NAME.job with
+ * the error in failed/NAME.error.
+ *
+ * Files are always written under a temporary name and renamed into place, so a crash never leaves a half written job
+ * or result where it would be read. The clocks of the machines sharing the spool must agree to well within the stale
+ * timeout. Every thread working on a queue has its own worker id, in its temporary file names and requeue copies.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class JobQueue {
+
+    public static final String jobSuffix = ".job";
+    public static final String requeueSuffix = ".requeue-";
+
+    private final Path pending, running, done, failed;
+    private final String queueId = UUID.randomUUID().toString().substring(0, 8); // with the thread, the worker id
+    private long heartbeatMillis = 10000; // how often a running job is touched
+    private long staleMillis = 60000; // how long after its last touch a running job is taken to be orphaned
+    private int maxAttempts = 3; // how many times a job may be started before it is failed
+    private ResultCache cache = null; // where runs done before are looked up, if anywhere
+
+    /**
+     * Constructor, makes the spool directories if they do not exist
+     * @param spool the spool directory
+     * @throws IOException if the directories cannot be made
+     */
+    public JobQueue(Path spool) throws IOException {
+        pending = Files.createDirectories(spool.resolve("pending"));
+        running = Files.createDirectories(spool.resolve("running"));
+        done = Files.createDirectories(spool.resolve("done"));
+        failed = Files.createDirectories(spool.resolve("failed"));
+    }
+
+    /**
+     * Set how often running jobs are touched and how long after the last touch they are requeued
+     * @param heartbeatIn the heartbeat interval in ms
+     * @param staleIn the stale timeout in ms, which should be several heartbeat intervals
+     * @param maxAttemptsIn the most times a job may be started
+     */
+    public void setTiming(long heartbeatIn, long staleIn, int maxAttemptsIn) {
+        heartbeatMillis = heartbeatIn;
+        staleMillis = staleIn;
+        maxAttempts = maxAttemptsIn;
+    }
+
+    /**
+     * Look runs up in a result cache before running them
+     * @param cacheIn the cache, or null to run every job
+     */
+    public void setCache(ResultCache cacheIn) {
+        cache = cacheIn;
+    }
+
+    /**
+     * Add a job to the queue
+     * @param name the name of the job, which must be unique in the spool
+     * @param parameters its parameters
+     * @throws IOException if the job cannot be written
+     */
+    public void submit(String name, SimRecord parameters) throws IOException {
+        writeAtomically(pending.resolve(name + jobSuffix), parameters.toString());
+    }
+
+    /**
+     * Claim the next pending job
+     * @return the job file in running, or null if there are no pending jobs
+     * @throws IOException if the spool cannot be read
+     */
+    public Path claim() throws IOException {
+        List<Path> jobs = list(pending, "*" + jobSuffix);
+        Collections.sort(jobs);
+        if (jobs.size() > 1) {
+            Collections.rotate(jobs, -(Math.abs(workerId().hashCode()) % jobs.size())); // workers start at different jobs
+        }
+        for (Path job : jobs) {
+            Path claimed = running.resolve(job.getFileName());
+            try {
+                Files.move(job, claimed, StandardCopyOption.ATOMIC_MOVE);
+                Files.setLastModifiedTime(claimed, FileTime.fromMillis(System.currentTimeMillis()));
+                return claimed;
+            }
+            catch (NoSuchFileException e) {
+                // another worker claimed it first
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Move every running job that has not been touched for the stale timeout back to pending (or to failed once it has
+     * used up its attempts), and finish the requeueing of any left half done by a worker that died
+     * @return the number of jobs requeued or failed
+     * @throws IOException if the spool cannot be read or written
+     */
+    public int requeueStale() throws IOException {
+        int n = 0;
+        long now = System.currentTimeMillis();
+        List<Path> orphans = list(running, "*" + jobSuffix);
+        orphans.addAll(list(running, "*" + jobSuffix + requeueSuffix + "*"));
+        for (Path orphan : orphans) {
+            try {
+                if (now - Files.getLastModifiedTime(orphan).toMillis() < staleMillis) continue;
+                String file = orphan.getFileName().toString();
+                boolean leftOver = !file.endsWith(jobSuffix);
+                Path job = running.resolve(leftOver ? file.substring(0, file.lastIndexOf(requeueSuffix)) : file);
+                Path held = running.resolve(job.getFileName() + requeueSuffix + workerId());
+                Files.move(orphan, held, StandardCopyOption.ATOMIC_MOVE); // only one worker can take the orphan
+                Files.setLastModifiedTime(held, FileTime.fromMillis(now)); // so no other worker takes it over from us
+                if (leftOver && filed(job.getFileName())) {
+                    Files.delete(held); // the worker that died had already requeued it
+                    continue;
+                }
+                SimRecord parameters = SimRecord.load(held.toFile());
+                int attempts = parameters.getInt("attempts", 0) + 1;
+                parameters.set("attempts", attempts);
+                if (attempts >= maxAttempts) {
+                    writeAtomically(failed.resolve(name(job) + ".error"), "worker stopped sending heartbeats " + attempts + " times\n");
+                    writeAtomically(failed.resolve(job.getFileName()), parameters.toString());
+                }
+                else {
+                    writeAtomically(pending.resolve(job.getFileName()), parameters.toString());
+                }
+                Files.delete(held); // only once the job is safely in pending or failed
+                n++;
+            }
+            catch (NoSuchFileException e) {
+                // the job finished, or another worker took it, while we looked
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Return whether a job is pending, running, done or failed under its own name
+     */
+    private boolean filed(Path jobFile) {
+        return Files.exists(pending.resolve(jobFile)) || Files.exists(running.resolve(jobFile))
+            || Files.exists(done.resolve(jobFile)) || Files.exists(failed.resolve(jobFile));
+    }
+
+    /**
+     * Run a claimed job, touching its file while it runs, and file it as done or failed
+     * @param job the claimed job file in running
+     * @throws IOException if the spool cannot be written
+     */
+    public void run(Path job) throws IOException {
+        String name = name(job);
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(ParallelStepper.daemonThreads());
+        heartbeat.scheduleAtFixedRate(() -> {
+            try {
+                Files.setLastModifiedTime(job, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            catch (IOException e) {
+                // the job has been requeued or finished, there is nothing to touch
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        try {
+            SimRecord parameters = SimRecord.load(job.toFile());
+            Path trajectory = done.resolve(name + ".data");
+            Path trajectoryTemp = temporary(trajectory);
+            SimRecord results;
+            try (PrintWriter out = new PrintWriter(trajectoryTemp.toFile())) {
+                results = (cache != null) ? cache.run(parameters, out) : runJob(parameters, out);
+            }
+            results.set("worker", workerId());
+            move(trajectoryTemp, trajectory);
+            writeAtomically(done.resolve(name + ".result"), results.toString());
+            move(job, done.resolve(job.getFileName()));
+        }
+        catch (NoSuchFileException e) {
+            // the job was taken to be orphaned and requeued while it ran; whoever reruns it writes the same results
+        }
+        catch (Exception e) {
+            writeAtomically(failed.resolve(name + ".error"), e + "\n");
+            try {
+                move(job, failed.resolve(job.getFileName()));
+            }
+            catch (NoSuchFileException gone) {
+                // requeued while it ran
+            }
+        }
+        finally {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the simulation a job describes
+     * @param parameters the parameters of the job
+     * @param out where to write its trajectory
+     * @return its results
+     * @throws IOException if the simulation cannot be set up
+     */
+    static SimRecord runJob(SimRecord parameters, PrintWriter out) throws IOException {
+        int pStep = parameters.getInt("pStep", 1000);
+        if (parameters.getString("type", "bunch").equals("orbit")) {
+            return runOrbit(new OrbitSimulation(parameters), out, pStep);
+        }
+        try (BunchSimulation simulation = new BunchSimulation(parameters)) {
+            simulation.setTrackOutput(out, pStep);
+            return simulation.run();
+        }
+    }
+
+    /**
+     * Run an orbit simulation on from wherever it is
+     * @param simulation the simulation
+     * @param out where to write its trajectory
+     * @param pStep write on every pStep time steps
+     * @return its results
+     */
+    static SimRecord runOrbit(OrbitSimulation simulation, PrintWriter out, int pStep) {
+        double timeStep = simulation.getTimeStep();
+        while (!simulation.isFinished()) {
+            simulation.step();
+            if (((int) (simulation.getTime() / timeStep)) % pStep == 1) {
+                out.println(simulation.getProton().getPositionView().returnSimpleString());
+            }
+        }
+        return simulation.getResults();
+    }
+
+    /**
+     * Take and run jobs until none are pending or running
+     * @return the number of jobs this worker ran
+     * @throws IOException if the spool cannot be read or written
+     * @throws InterruptedException if interrupted while waiting for running jobs of other workers
+     */
+    public int work() throws IOException, InterruptedException {
+        int n = 0;
+        while (true) {
+            requeueStale();
+            Path job = claim();
+            if (job != null) {
+                run(job);
+                n++;
+            }
+            else if (list(running, "*" + jobSuffix).isEmpty()
+                && list(running, "*" + jobSuffix + requeueSuffix + "*").isEmpty()) {
+                return n; // nothing left, and nothing that could come back
+            }
+            else {
+                Thread.sleep(Math.min(heartbeatMillis, 1000)); // other workers' jobs may yet be requeued
+            }
+        }
+    }
+
+    /**
+     * Return the number of jobs in each state
+     * @return pending, running, done and failed counts
+     * @throws IOException if the spool cannot be read
+     */
+    public String status() throws IOException {
+        return "pending " + list(pending, "*" + jobSuffix).size() + " running " + list(running, "*" + jobSuffix).size()
+            + " done " + list(done, "*" + jobSuffix).size() + " failed " + list(failed, "*" + jobSuffix).size();
+    }
+
+    /**
+     * Return the id of the worker this thread is, so threads working on one queue never share temporary files
+     * @return the worker id
+     */
+    public String workerId() {
+        return queueId + "-" + Thread.currentThread().getId();
+    }
+
+    private static String name(Path job) {
+        String file = job.getFileName().toString();
+        return file.substring(0, file.length() - jobSuffix.length());
+    }
+
+    private static List<Path> list(Path directory, String glob) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private Path temporary(Path target) {
+        return target.resolveSibling("." + target.getFileName() + "." + workerId() + ".tmp");
+    }
+
+    private void writeAtomically(Path target, String text) throws IOException {
+        Path temp = temporary(target);
+        Files.write(temp, text.getBytes("UTF-8"));
+        move(temp, target);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Submit jobs to, or work on, a spool directory
+     *
+     * @param args one of
+     *             submit SPOOL FILE... (copy parameter files in as jobs),
+     *             grid SPOOL AXIS... (submit one job per point of a ParameterGrid, see SweepRunner for the axes),
+     *             work SPOOL [THREADS] (run jobs until none are left),
+     *             status SPOOL.
+     *             Timing is set with -Dqueue.heartbeat and -Dqueue.stale (ms) and -Dqueue.attempts, and a ResultCache
+     *             is used if -Dcache.dir is given.
+     * @throws Exception if the spool cannot be used
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java JobQueue submit|grid|work|status SPOOL ...");
+            System.exit(4);
+        }
+        final JobQueue queue = new JobQueue(Paths.get(args[1]));
+        queue.setTiming(Long.getLong("queue.heartbeat", 10000), Long.getLong("queue.stale", 60000),
+            Integer.getInteger("queue.attempts", 3));
+        queue.setCache(ResultCache.fromProperties());
+        if (args[0].equals("submit")) {
+            for (int i = 2; i < args.length; i++) {
+                String file = Paths.get(args[i]).getFileName().toString();
+                queue.submit(file.replaceFirst("\\.[^.]*$", ""), SimRecord.load(Paths.get(args[i]).toFile()));
+            }
+        }
+        else if (args[0].equals("grid")) {
+            ParameterGrid grid = new ParameterGrid(new SimRecord().set("maxRev", 20).set("seed", 1).set("nThreads", 1));
+            for (int i = 2; i < args.length; i++) {
+                grid.addAxis(args[i]);
+            }
+            long index = 0;
+            for (SimRecord point : grid) {
+                queue.submit(String.format("point%06d", index++), point);
+            }
+        }
+        else if (args[0].equals("work")) {
+            int nThreads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < nThreads; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        System.out.println("worker " + queue.workerId() + " ran " + queue.work() + " jobs");
+                    }
+                    catch (Exception e) {
+                        System.out.println("worker " + queue.workerId() + " stopped: " + e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        System.out.println(queue.status());
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.Arrays;
+
+/**
+ * Batched Lorentz force and Euler push over the primitive arrays of an ArrayParticleStore.
+ * Rather than evaluating the field and updating one particle at a time, each step is done as a
+ * few straight, branch free loops over whole arrays which the JIT compiles to SIMD instructions,
+ * pushing several particles per instruction.
+ *
+ * The kernel can be switched off at run time (setEnabled(false) or -Dlorentz.scalar=true),
+ * in which case callers fall back to the scalar EMField.setAcceleration / ParticleStore.update path.
+ * Both paths perform the same floating point operations in the same order so their results agree.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class LorentzKernel {
+
+    private static boolean enabled = !Boolean.getBoolean("lorentz.scalar"); // runtime switch for the batched kernel
+
+    private double[] bx, by, bz; // magnetic flux density seen by each particle of the range last given
+
+    /**
+     * Constructor that reserves room for the field of a given number of particles. The room grows if a larger range
+     * is given, so it need only be the size of the ranges the kernel is used on, not of the whole store.
+     * @param capacity the number of particles
+     */
+    public LorentzKernel(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /**
+     * Return true if the batched kernel should be used
+     * @return true if enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Switch the batched kernel on or off
+     * @param enabledIn true to use the batched kernel, false to use the scalar path
+     */
+    public static void setEnabled(boolean enabledIn) {
+        enabled = enabledIn;
+    }
+
+    private void allocate(int capacity) {
+        bx = new double[capacity];
+        by = new double[capacity];
+        bz = new double[capacity];
+    }
+
+    private void ensureCapacity(int n) {
+        if (bx.length < n) {
+            allocate(n);
+        }
+    }
+
+    /**
+     * Set the magnetic field seen by every particle in the store to the same value
+     * @param store the particles
+     * @param magnetic the magnetic flux density
+     */
+    public void uniformField(ArrayParticleStore store, PhysicsVector magnetic) {
+        int n = store.size();
+        ensureCapacity(n);
+        Arrays.fill(bx, 0, n, magnetic.getX());
+        Arrays.fill(by, 0, n, magnetic.getY());
+        Arrays.fill(bz, 0, n, magnetic.getZ());
+    }
+
+    /**
+     * Set the magnetic field seen by each particle for a field that is uniform on either side of x = 0,
+     * as in BunchSim.cyclotronBField.
+     * @param store the particles
+     * @param bPositive the magnetic flux density in the region x>0
+     * @param bNegative the magnetic flux density in the region x=<0
+     */
+    public void piecewiseField(ArrayParticleStore store, PhysicsVector bPositive, PhysicsVector bNegative) {
+        ensureCapacity(store.size());
+        piecewiseField(store, 0, store.size(), bPositive, bNegative);
+    }
+
+    /**
+     * Set the magnetic field seen by particles from (inclusive) to to (exclusive) for a field that is uniform
+     * on either side of x = 0. The field is held for the range alone, from the start of the kernel's arrays,
+     * so a kernel works on one range at a time and threads working on different ranges each need their own.
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param bPositive the magnetic flux density in the region x>0
+     * @param bNegative the magnetic flux density in the region x=<0
+     */
+    public void piecewiseField(ArrayParticleStore store, int from, int to, PhysicsVector bPositive, PhysicsVector bNegative) {
+        ensureCapacity(to - from);
+        double[] x = store.column(ParticleStore.X);
+        for (int i = from; i < to; i++) {
+            PhysicsVector b = (x[i] > 0) ? bPositive : bNegative;
+            bx[i - from] = b.getX();
+            by[i - from] = b.getY();
+            bz[i - from] = b.getZ();
+        }
+    }
+
+    /**
+     * Set the acceleration of every particle from the Lorentz force law (q/m)(E + v X B),
+     * using the magnetic field set by uniformField or piecewiseField.
+     * @param store the particles
+     * @param electric the (uniform) electric field strength
+     */
+    public void accelerate(ArrayParticleStore store, PhysicsVector electric) {
+        accelerate(store, 0, store.size(), electric);
+    }
+
+    /**
+     * Set the acceleration of particles from (inclusive) to to (exclusive) from the Lorentz force law,
+     * using the magnetic field set by piecewiseField for the same range.
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param electric the (uniform) electric field strength
+     */
+    public void accelerate(ArrayParticleStore store, int from, int to, PhysicsVector electric) {
+        double ex = electric.getX(), ey = electric.getY(), ez = electric.getZ();
+        double[] vx = store.column(ParticleStore.VX), vy = store.column(ParticleStore.VY), vz = store.column(ParticleStore.VZ);
+        double[] ax = store.column(ParticleStore.AX), ay = store.column(ParticleStore.AY), az = store.column(ParticleStore.AZ);
+        double[] q = store.column(ParticleStore.CHARGE), m = store.column(ParticleStore.MASS);
+        double[] bx = this.bx, by = this.by, bz = this.bz;
+        for (int i = from, k = 0; i < to; i++, k++) {
+            double qOverM = q[i] / m[i];
+            ax[i] = ((vy[i] * bz[k] - vz[i] * by[k]) + ex) * qOverM;
+            ay[i] = ((vz[i] * bx[k] - vx[i] * bz[k]) + ey) * qOverM;
+            az[i] = ((vx[i] * by[k] - vy[i] * bx[k]) + ez) * qOverM;
+        }
+    }
+
+    /**
+     * Euler update of every particle with the acceleration held in the store, as ParticleStore.update.
+     * @param store the particles
+     * @param deltaTime the change in time
+     */
+    public static void updateEuler(ArrayParticleStore store, double deltaTime) {
+        updateEuler(store, 0, store.size(), deltaTime);
+    }
+
+    /**
+     * Euler update of particles from (inclusive) to to (exclusive) with the acceleration held in the store.
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param deltaTime the change in time
+     */
+    public static void updateEuler(ArrayParticleStore store, int from, int to, double deltaTime) {
+        double halfDt2 = 0.5 * deltaTime * deltaTime;
+        double[] x = store.column(ParticleStore.X), y = store.column(ParticleStore.Y), z = store.column(ParticleStore.Z);
+        double[] vx = store.column(ParticleStore.VX), vy = store.column(ParticleStore.VY), vz = store.column(ParticleStore.VZ);
+        double[] ax = store.column(ParticleStore.AX), ay = store.column(ParticleStore.AY), az = store.column(ParticleStore.AZ);
+        for (int i = from; i < to; i++) {
+            x[i] = (x[i] + deltaTime * vx[i]) + halfDt2 * ax[i];
+            y[i] = (y[i] + deltaTime * vy[i]) + halfDt2 * ay[i];
+            z[i] = (z[i] + deltaTime * vz[i]) + halfDt2 * az[i];
+            vx[i] += deltaTime * ax[i];
+            vy[i] += deltaTime * ay[i];
+            vz[i] += deltaTime * az[i];
+        }
+    }
+
+    /**
+     * Euler-Cromer update of every particle with the acceleration held in the store, as ParticleStore.updateLPA.
+     * @param store the particles
+     * @param deltaTime the change in time
+     */
+    public static void updateEulerLPA(ArrayParticleStore store, double deltaTime) {
+        updateEulerLPA(store, 0, store.size(), deltaTime);
+    }
+
+    /**
+     * Euler-Cromer update of particles from (inclusive) to to (exclusive) with the acceleration held in the store.
+     * @param store the particles
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param deltaTime the change in time
+     */
+    public static void updateEulerLPA(ArrayParticleStore store, int from, int to, double deltaTime) {
+        double[] x = store.column(ParticleStore.X), y = store.column(ParticleStore.Y), z = store.column(ParticleStore.Z);
+        double[] vx = store.column(ParticleStore.VX), vy = store.column(ParticleStore.VY), vz = store.column(ParticleStore.VZ);
+        double[] ax = store.column(ParticleStore.AX), ay = store.column(ParticleStore.AY), az = store.column(ParticleStore.AZ);
+        for (int i = from; i < to; i++) {
+            vx[i] += deltaTime * ax[i];
+            vy[i] += deltaTime * ay[i];
+            vz[i] += deltaTime * az[i];
+            x[i] += deltaTime * vx[i];
+            y[i] += deltaTime * vy[i];
+            z[i] += deltaTime * vz[i];
+        }
+    }
+}
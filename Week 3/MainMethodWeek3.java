@@ -5,6 +5,9 @@
  * @version - 1.4
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Scanner;
 
 public class MainMethodWeek3 {
@@ -24,50 +27,19 @@ public class MainMethodWeek3 {
         Scanner scanner = new Scanner(System.in);
 
         // Simulation controls
-        double timeStep = 0.00001; // time step in seconds
-        long maxTime = 3000; // maximum simulation time in seconds
-        int maxRev = 100; // maximum number of orbital revolutions for proton bunch
         int pStep = 1000; // print output on every pStep time steps
-        double orbitRadius = 0.00987775892621835;
-        double orbitalPeriod = 0.6559447185377681;
-        double orbitalFrequency = 1/orbitalPeriod;
-        double L = 0.05*orbitRadius;
-
-        double pSpeed = 0.1;
-
-
-        // E and B parameters
-        double bMag = 1.0e-7; // magnetic flux density in Tesla
-        double bErr = 0; // fractional difference in magnetic flux density between positive and negative x regions
-        EMField theField = new EMField(); // creation of the EMField object
-        double eMag = 1.0e-7;
-        double eFieldValue;
-
-
-        // Set the theoretical radius and frequency to compare at the end
-        double frequency = (Proton.pCharge * bMag / (2 * Math.PI * Proton.pMass)); // expected frequency of bunch orbit
-        double radius = Proton.pMass * pSpeed / (Proton.pCharge * bMag); // expected radius of bunch orbit
-
-
-        // original vectors for postion and velocity started
-        PhysicsVector pDirn = new PhysicsVector(0, 1, 0); // direction of velocity at start of simulation
-        PhysicsVector pOrigin = new PhysicsVector(); // the centre of the simulation
-        PhysicsVector pStart = new PhysicsVector(1, 0, 0); // the start position of the proton in a magnetic field
-
-        //Make a proton
-        Proton proton = new Proton();
-
-        //set the initial values for the proton
-        proton.setPosition(pOrigin); // initial position of the proton
-        proton.setVelocity(PhysicsVector.scale(pSpeed, pDirn)); // the initial velocity of the proton
-
-        // Set up the simulation
-        double time = 0.0; // initial time
-        int nRev = 0; // number of orbits the proton bunch completes
-        double lastTime = 0.0; // The time at which the last 'turn' ended
-
-        //set up a new tracker object to trak the proton radius
-        ProtonOrbitTracker protonOrbitTracker = new ProtonOrbitTracker();
+        String checkpointDir = "checkpoints"; // where to save checkpoints to restart an unfinished run from
+        double checkpointInterval = 300; // seconds between checkpoints
+        boolean restart = false; // carry on from the last checkpoint of an unfinished run, rather than starting afresh
+        SimRecord parameters = new SimRecord() // see OrbitSimulation for every parameter and its default
+                .set("timeStep", 0.00001) // time step in seconds
+                .set("maxTime", 3000) // maximum simulation time in seconds
+                .set("maxRev", 100) // maximum number of orbital revolutions for proton bunch
+                .set("orbitalPeriod", 0.6559447185377681)
+                .set("pSpeed", 0.1)
+                .set("bMag", 1.0e-7) // magnetic flux density in Tesla
+                .set("bErr", 0) // fractional difference in magnetic flux density between positive and negative x regions
+                .set("eMag", 1.0e-7);
 
         /**
          * The bellow block of code i wanted to move into a separate class as an interface, however ran out of time.
@@ -76,35 +48,68 @@ public class MainMethodWeek3 {
          * applied without changing it.
          */
         //Set up the outfile name and the method to be used
-        System.out.println("1= Euler, 2= Euler Cromer, 3= Quit");
+        System.out.println("1= Euler, 2= Euler Cromer, 3= Quit, 4= Other integrator");
         System.out.println("Enter method to use");
         int choice = scanner.nextInt();
+        if (choice == 3) {
+            System.exit(0);
+        }
+        parameters.set("method", (choice == 2) ? 'C' : 'E');
+        if (choice == 4) {
+            System.out.println("Enter integrator name (euler, eulerCromer, rk4, rk45, boris, leapfrog, yoshida4, yoshida6,"
+                + " helix, guidingCentre)");
+            parameters.set("integrator", scanner.next());
+        }
         System.out.println("Enter file name");
         String fileName = scanner.next();
 
-        //Switch statement to set the initial values of position for the different method so the electric field doesnt
-        // start at the origin.
-        while (nRev < maxRev && time < maxTime) {// Loop over time
+        // Make the proton at the centre of the simulation, moving in y, in the cyclotron fields, or if asked to
+        // carry on from the last checkpoint of an unfinished run with the same parameters writing to the same file
+        OrbitSimulation simulation = new OrbitSimulation(parameters);
+        Proton proton = simulation.getProton();
+        double timeStep = simulation.getTimeStep();
+        File dataFile = new File(fileName + ".data"); // as written by outFileWriter
+        Checkpointer checkpointer = null;
+        try {
+            checkpointer = new Checkpointer(new File(checkpointDir).toPath(),
+                    new SimRecord(parameters).set("checkpointName", fileName), checkpointInterval, 8);
+            SimRecord state = restart ? checkpointer.restore(null) : null;
+            if (!restart && checkpointer.discard()) {
+                System.out.println("Discarded the checkpoints of an unfinished run with these parameters"
+                        + " (set restart to carry on from them)");
+            }
+            if (state != null) {
+                simulation.setState(state);
+                try (RandomAccessFile data = new RandomAccessFile(dataFile, "rw")) {
+                    data.setLength(state.getLong("dataLength", 0)); // drop what was written after the checkpoint
+                }
+                System.out.println("Restarting from checkpoint at time " + simulation.getTime() + " s, revolution "
+                        + simulation.getRevolutions());
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Exception using checkpoints: " + e.getMessage());
+            System.exit(4);
+        }
 
-            time += timeStep;
-            eFieldValue = eMag*Math.sin((orbitalFrequency*time));
+        while (!simulation.isFinished()) {// Loop over time
 
-            theField.setElectric(new PhysicsVector(0,eFieldValue,0)); // Set up the cyclotron fields
-            theField.setMagnetic(new PhysicsVector(0,0,bMag));
-            proton.update(timeStep, theField.getAcceleration(proton));
+            boolean orbited = simulation.step();
+            double time = simulation.getTime();
             if (((int) (time / timeStep)) % pStep == 1) { // Write out the bunch position at intervals
                 //outFile.println((proton.getPosition()).returnSimpleString());
                 outFileWriter.writeFile(fileName, proton);
+                if (checkpointer.isDue()) { // looked at only when writing, so the time loop stays cheap
+                    checkpointer.save(simulation.getState().set("dataLength", dataFile.length()), null);
+                }
             }
 
-            if (protonOrbitTracker.hasOrbited(proton)) {
+            if (orbited) {
                 // bunch has completed an orbit
-                nRev += 1;
-                System.out.printf("Revolution number %3d at time %10.6f s\n", nRev, time);
-                System.out.printf("Period of this revolution is  %10.6f s\n",(time-lastTime));
+                System.out.printf("Revolution number %3d at time %10.6f s\n", simulation.getRevolutions(), time);
+                System.out.printf("Period of this revolution is  %10.6f s\n", simulation.getLastPeriod());
                 System.out.println(proton);
                 System.out.println();
-                lastTime = time;
             }
 
 
@@ -112,6 +117,12 @@ public class MainMethodWeek3 {
             //System.exit(0); // Exit (stopping the timer thread that would otherwise keep the process running)
 
         }
+        try {
+            checkpointer.close(true); // the run is finished, so will not be restarted
+        }
+        catch (IOException e) {
+            System.out.println("Exception removing checkpoints: " + e.getMessage());
+        }
         System.exit(0); // Exit (stopping the timer thread that would otherwise keep the process running)
         scanner.close();
 
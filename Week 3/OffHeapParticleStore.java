@@ -0,0 +1,131 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Particle store that keeps every column outside the Java heap, either in native memory
+ * or in a memory-mapped file. The heap only holds a few buffer objects whatever the number
+ * of particles, so very large bunches add nothing for the garbage collector to trace.
+ * A buffer holds at most 2 GB, so each column is split into segments of 2^27 values (1 GB)
+ * and particle i is value i % 2^27 of segment i / 2^27.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class OffHeapParticleStore extends ParticleStore implements Closeable {
+
+    private static final int bytesPerValue = Double.BYTES;
+    private static final int segmentShift = 27; // 2^27 values a segment
+    private static final int segmentMask = (1 << segmentShift) - 1;
+    private static final long segmentBytes = (long) bytesPerValue << segmentShift;
+
+    private DoubleBuffer[][] columns = new DoubleBuffer[nComponents][]; // the segments of each component
+    private int capacity;
+    private RandomAccessFile file = null; // backing file when the store is memory mapped
+
+    /**
+     * Constructor for a store held in native memory
+     * @param capacity the number of particles to reserve room for
+     */
+    public OffHeapParticleStore(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        for (int c = 0; c < nComponents; c++) {
+            columns[c] = allocateDirect(this.capacity);
+        }
+    }
+
+    /**
+     * Constructor for a store mapped to a file. Each column occupies its own region of the file,
+     * and the operating system pages the state in and out as it is used.
+     * A mapped store has a fixed capacity.
+     * @param capacity the number of particles the file has room for
+     * @param fileIn the file to map, created or extended if needed
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public OffHeapParticleStore(int capacity, File fileIn) throws IOException {
+        this.capacity = Math.max(capacity, 1);
+        long columnBytes = (long) this.capacity * bytesPerValue;
+        file = new RandomAccessFile(fileIn, "rw");
+        file.setLength(columnBytes * nComponents);
+        FileChannel channel = file.getChannel();
+        for (int c = 0; c < nComponents; c++) {
+            columns[c] = new DoubleBuffer[nSegments(this.capacity)];
+            for (int s = 0; s < columns[c].length; s++) {
+                long offset = s * segmentBytes;
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, c * columnBytes + offset,
+                    Math.min(segmentBytes, columnBytes - offset));
+                columns[c][s] = region.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        }
+    }
+
+    private static int nSegments(int capacity) {
+        return (int) (((long) capacity + segmentMask) >>> segmentShift);
+    }
+
+    private static DoubleBuffer[] allocateDirect(int capacity) {
+        DoubleBuffer[] segments = new DoubleBuffer[nSegments(capacity)];
+        for (int s = 0; s < segments.length; s++) {
+            long values = Math.min(1L << segmentShift, (long) capacity - ((long) s << segmentShift));
+            segments[s] = ByteBuffer.allocateDirect((int) (values * bytesPerValue))
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        return segments;
+    }
+
+    /**
+     * Return true if the store is mapped to a file
+     * @return true if memory mapped
+     */
+    public boolean isMapped() {
+        return file != null;
+    }
+
+    @Override
+    public double get(int component, int i) {
+        return columns[component][i >>> segmentShift].get(i & segmentMask);
+    }
+
+    @Override
+    public void set(int component, int i, double value) {
+        columns[component][i >>> segmentShift].put(i & segmentMask, value);
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    protected void grow(int capacityIn) {
+        if (isMapped()) {
+            throw new IllegalStateException("memory mapped particle store is full (capacity " + capacity + ")");
+        }
+        for (int c = 0; c < nComponents; c++) {
+            DoubleBuffer[] bigger = allocateDirect(capacityIn);
+            for (int i = 0; i < Math.min(capacity, capacityIn); i++) {
+                bigger[i >>> segmentShift].put(i & segmentMask, get(c, i));
+            }
+            columns[c] = bigger;
+        }
+        capacity = capacityIn;
+    }
+
+    /**
+     * Close the backing file of a memory-mapped store. The mapping itself is released when the
+     * buffers are garbage collected. Does nothing for a store held in native memory.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ * The simulation of a single proton orbiting in the magnetic and electric field of MainMethodWeek3,
+ * set up from a SimRecord of parameters so that it can be run many times in one JVM.
+ * The field is a uniform B field in z (with the optional error of BunchSim between the x>0 and x=<0
+ * regions) and an oscillating E field in y.
+ *
+ * Parameters, with their defaults:
+ *   timeStep=0.00001, maxTime=3000, maxRev=100, method=E (E => Euler, C => Euler-Cromer),
+ *   integrator (the name of any Integrator, see Integrator.forName, used instead of method if given),
+ *   atol=1e-12, rtol=1e-9 (tolerances of integrator=rk45, see DormandPrince),
+ *   levels=0, maxAngle=0.1 (block time steps if levels is more than 0, see BlockTimeSteps),
+ *   fullOrbit=boris, gcTolerance=1e-2, gyroSteps=32 (of integrator=guidingCentre, see GuidingCentre),
+ *   bMag=1.0e-7, bErr=0, eMag=1.0e-7, orbitalPeriod=0.6559447185377681, pSpeed=0.1,
+ *   x0=0, y0=0, z0=0 (start position), dirX=0, dirY=1, dirZ=0 (start direction).
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class OrbitSimulation implements PiecewiseUniformField {
+
+    private final SimRecord parameters;
+    private final double timeStep, maxTime, bMag, b2, eMag, orbitalFrequency, startRadius;
+    private final int maxRev;
+    private final Integrator integrator;
+    private final boolean direct, cromer; // Euler or Euler-Cromer, stepped on the proton itself
+    private final Proton proton = new Proton(); // the proton, kept in step with the store when that is stepped
+    private final ArrayParticleStore store = new ArrayParticleStore(1); // the proton the other integrators work on
+    private final EMField theField = new EMField();
+    private final PhysicsVector acceleration = new PhysicsVector(); // reused every step so the time loop creates no objects
+    private final ProtonOrbitTracker tracker = new ProtonOrbitTracker();
+
+    private double time = 0.0;
+    private int nRev = 0; // number of orbits the proton completes
+    private double lastTime = 0.0; // the time at which the last 'turn' ended
+    private double lastPeriod = 0.0; // the period of the last revolution
+    private double periodSum = 0.0, periodSumSq = 0.0; // of the periods of every revolution
+    private SimRecord statsBefore = new SimRecord(); // counts of the integrator up to the state set going from
+
+    /**
+     * Constructor, puts the proton at its start position
+     * @param parametersIn the parameters of the simulation, any not given take their default
+     */
+    public OrbitSimulation(SimRecord parametersIn) {
+        parameters = new SimRecord(parametersIn);
+        timeStep = parameters.getDouble("timeStep", 0.00001);
+        maxTime = parameters.getDouble("maxTime", 3000);
+        maxRev = parameters.getInt("maxRev", 100);
+        integrator = parameters.has("integrator") ? Integrator.fromParameters(parameters)
+            : (parameters.getChar("method", 'E') == 'C') ? Integrator.eulerCromer : Integrator.euler;
+        cromer = (integrator == Integrator.eulerCromer);
+        direct = cromer || integrator == Integrator.euler;
+        bMag = parameters.getDouble("bMag", 1.0e-7);
+        b2 = bMag * (1.0 - parameters.getDouble("bErr", 0));
+        eMag = parameters.getDouble("eMag", 1.0e-7);
+        orbitalFrequency = 1 / parameters.getDouble("orbitalPeriod", 0.6559447185377681);
+
+        double pSpeed = parameters.getDouble("pSpeed", 0.1);
+        PhysicsVector pDirn = new PhysicsVector(parameters.getDouble("dirX", 0), parameters.getDouble("dirY", 1),
+            parameters.getDouble("dirZ", 0));
+        proton.setPosition(new PhysicsVector(parameters.getDouble("x0", 0), parameters.getDouble("y0", 0),
+            parameters.getDouble("z0", 0)));
+        proton.setVelocity(PhysicsVector.scale(pSpeed, pDirn.getUnitVector()));
+        store.add(proton);
+        startRadius = radius();
+    }
+
+    /**
+     * Return the parameters the simulation was set up with
+     * @return a copy of the parameters
+     */
+    public SimRecord getParameters() {
+        return new SimRecord(parameters);
+    }
+
+    /**
+     * Advance the proton by one time step. Euler and Euler-Cromer step the proton itself, with no store in between;
+     * the other integrators step the store, which is copied back into the proton.
+     * @return true if the proton completed an orbit during the step
+     */
+    public boolean step() {
+        time += timeStep;
+        if (direct) {
+            theField.setElectric(0, electricY(time), 0);
+            theField.setMagnetic(0, 0, magneticZ(proton.getPositionView().getX(), time));
+            theField.getAcceleration(proton, acceleration);
+            if (cromer) {
+                proton.updateLPA(timeStep, acceleration);
+            }
+            else {
+                proton.update(timeStep, acceleration);
+            }
+        }
+        else {
+            integrator.step(store, 0, 1, time, timeStep, this);
+            proton.getPositionView().setVector(store.getX(0), store.getY(0), store.getZ(0));
+            proton.getVelocityView().setVector(store.get(ParticleStore.VX, 0), store.get(ParticleStore.VY, 0),
+                store.get(ParticleStore.VZ, 0));
+        }
+        if (tracker.hasOrbited(proton)) {
+            nRev += 1;
+            double period = time - lastTime;
+            periodSum += period;
+            periodSumSq += period * period;
+            lastPeriod = period;
+            lastTime = time;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set the Lorentz acceleration of the proton in the field of the simulation
+     * @param storeIn the proton
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param t the time
+     */
+    @Override
+    public void accelerate(ParticleStore storeIn, int from, int to, double t) {
+        theField.setElectric(0, electricY(t), 0);
+        for (int i = from; i < to; i++) {
+            theField.setMagnetic(0, 0, magneticZ(storeIn.getX(i), t));
+            theField.setAcceleration(storeIn, i);
+        }
+    }
+
+    /**
+     * Put the fields of the simulation at particles of a store into e and b, as FieldProvider
+     * @param storeIn the proton
+     * @param from index of the first particle
+     * @param to one past the index of the last particle
+     * @param t the time
+     * @param e the electric field strength at each particle
+     * @param b the magnetic flux density at each particle
+     */
+    @Override
+    public void fields(ParticleStore storeIn, int from, int to, double t, double[][] e, double[][] b) {
+        double eY = electricY(t);
+        for (int i = from; i < to; i++) {
+            int k = i - from;
+            e[0][k] = 0;
+            e[1][k] = eY;
+            e[2][k] = 0;
+            b[0][k] = 0;
+            b[1][k] = 0;
+            b[2][k] = magneticZ(storeIn.getX(i), t);
+        }
+    }
+
+    @Override
+    public double regionB(boolean positiveX) {
+        return positiveX ? bMag : b2;
+    }
+
+    /**
+     * Return whether there is no electric field, eMag=0, so that the proton can be moved by HelixPropagator
+     * @return true if eMag is 0
+     */
+    @Override
+    public boolean isMagnetostatic() {
+        return eMag == 0;
+    }
+
+    /**
+     * Return the electric field, which is along y and the same everywhere
+     * @param t the time
+     * @return the y component of the E field at that time
+     */
+    public double electricY(double t) {
+        return eMag * Math.sin((orbitalFrequency * t));
+    }
+
+    /**
+     * Return the magnetic field, which is along z and depends only on the sign of x
+     * @param x the x position
+     * @param t the time
+     * @return the z component of the B field there
+     */
+    public double magneticZ(double x, double t) {
+        return BunchSim.cyclotronBField(x, t, bMag, b2);
+    }
+
+    /**
+     * Return whether the simulation has reached maxRev revolutions or maxTime
+     * @return true if the simulation is over
+     */
+    public boolean isFinished() {
+        return nRev >= maxRev || time >= maxTime;
+    }
+
+    /**
+     * Step the proton until the simulation is over
+     * @return the results, as given by getResults
+     */
+    public SimRecord run() {
+        while (!isFinished()) {
+            step();
+        }
+        return getResults();
+    }
+
+    /**
+     * Radius of the orbit expected from the current speed of the proton, m|v|/(qB)
+     * @return the radius in m
+     */
+    public double radius() {
+        return Proton.pMass * proton.getVelocityView().magnitude() / (Proton.pCharge * bMag);
+    }
+
+    /**
+     * Return the results so far: time, nRev, the mean, sd and last of the revolution periods, the radius of the orbit
+     * at the start and now and its drift, and the final position and velocity of the proton, and any counts kept by
+     * the integrator (see Integrator.getStats)
+     * @return the results
+     */
+    public SimRecord getResults() {
+        double meanPeriod = (nRev > 0) ? periodSum / nRev : 0.0;
+        double periodVar = (nRev > 0) ? periodSumSq / nRev - meanPeriod * meanPeriod : 0.0;
+        double radius = radius();
+        PhysicsVector position = proton.getPositionView();
+        PhysicsVector velocity = proton.getVelocityView();
+        SimRecord results = new SimRecord()
+            .set("time", time)
+            .set("nRev", nRev)
+            .set("meanPeriod", meanPeriod)
+            .set("periodSD", Math.sqrt(Math.max(periodVar, 0.0)))
+            .set("lastPeriod", lastPeriod)
+            .set("startRadius", startRadius)
+            .set("radius", radius)
+            .set("radiusDrift", radius - startRadius)
+            .set("x", position.getX()).set("y", position.getY()).set("z", position.getZ())
+            .set("vx", velocity.getX()).set("vy", velocity.getY()).set("vz", velocity.getZ());
+        return results.setAll(getStats());
+    }
+
+    /**
+     * Return the counts kept by the integrator, with those of the run this one carries on from
+     */
+    private SimRecord getStats() {
+        SimRecord stats = integrator.getStats();
+        for (String name : stats.names()) {
+            stats.set(name, stats.getLong(name, 0) + statsBefore.getLong(name, 0));
+        }
+        return stats;
+    }
+
+    /**
+     * Return everything that changes as the simulation runs, exactly, so that a simulation set up from the same
+     * parameters and given this state with setState carries on bit-identically from this point, with the counts of
+     * its integrator carried on too
+     * @return the state
+     */
+    public SimRecord getState() {
+        PhysicsVector position = proton.getPositionView();
+        PhysicsVector velocity = proton.getVelocityView();
+        SimRecord state = new SimRecord()
+            .set("time", time).set("nRev", nRev).set("lastTime", lastTime).set("lastPeriod", lastPeriod)
+            .set("periodSum", periodSum).set("periodSumSq", periodSumSq)
+            .set("x", position.getX()).set("y", position.getY()).set("z", position.getZ())
+            .set("vx", velocity.getX()).set("vy", velocity.getY()).set("vz", velocity.getZ())
+            .set("converge", tracker.converge).set("displacement", tracker.displacement)
+            .set("particleState", integrator.getParticleState(store, 0));
+        SimRecord stats = getStats();
+        for (String name : stats.names()) {
+            state.set("stats." + name, stats.getLong(name, 0));
+        }
+        return state;
+    }
+
+    /**
+     * Carry on from a state given by getState
+     * @param state the state
+     */
+    public void setState(SimRecord state) {
+        time = state.getDouble("time", 0.0);
+        nRev = state.getInt("nRev", 0);
+        lastTime = state.getDouble("lastTime", 0.0);
+        lastPeriod = state.getDouble("lastPeriod", 0.0);
+        periodSum = state.getDouble("periodSum", 0.0);
+        periodSumSq = state.getDouble("periodSumSq", 0.0);
+        proton.setPosition(new PhysicsVector(state.getDouble("x", 0), state.getDouble("y", 0), state.getDouble("z", 0)));
+        proton.setVelocity(new PhysicsVector(state.getDouble("vx", 0), state.getDouble("vy", 0), state.getDouble("vz", 0)));
+        store.setPosition(0, proton.getPositionView());
+        store.setVelocity(0, proton.getVelocityView());
+        tracker.converge = state.getBoolean("converge", false);
+        tracker.displacement = state.getDouble("displacement", 0.0);
+        if (integrator.keepsParticleState()) {
+            integrator.setParticleState(store, 0, state.getDouble("particleState", 0.0));
+        }
+        statsBefore = new SimRecord();
+        for (String name : state.names()) {
+            if (name.startsWith("stats.")) {
+                statsBefore.set(name.substring(6), state.getLong(name, 0));
+            }
+        }
+    }
+
+    /**
+     * Return the period of the last revolution completed
+     * @return the period in s, 0 before the first revolution
+     */
+    public double getLastPeriod() {
+        return lastPeriod;
+    }
+
+    public Proton getProton() {
+        return proton;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public int getRevolutions() {
+        return nRev;
+    }
+
+    public int getMaxRev() {
+        return maxRev;
+    }
+
+    public double getMaxTime() {
+        return maxTime;
+    }
+
+    public double getTimeStep() {
+        return timeStep;
+    }
+}
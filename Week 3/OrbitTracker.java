@@ -31,7 +31,17 @@ public class OrbitTracker<T extends Particle>{
 	* @return true if the bunch has completed an orbit
 	*/
 	public boolean hasOrbited(Bunch<T> theBunch){
-	 	double currentDis=(PhysicsVector.subtract(theBunch.getPosition(),origin)).magnitude();
+	 	return hasOrbited(theBunch.getPosition());
+	}
+	
+	/** 
+	* Tests whether an orbit has been completed, given the current average position of the bunch
+	* (for example from BunchMoments).
+	* @param position the average position of the bunch
+	* @return true if the bunch has completed an orbit
+	*/
+	public boolean hasOrbited(PhysicsVector position){
+	 	double currentDis=PhysicsVector.distance(position,origin);
 	 	boolean anOrbit=false;
 	 	
 	 	if (currentDis>=displacement){
@@ -50,7 +60,7 @@ public class OrbitTracker<T extends Particle>{
 
 	public boolean hasOrbited(Proton proton){
 
-		double currentDis=(PhysicsVector.subtract(proton.getPosition(),origin)).magnitude();
+		double currentDis=PhysicsVector.distance(proton.getPositionView(),origin);
 		boolean anOrbit=false;
 
 		if (currentDis>=displacement){
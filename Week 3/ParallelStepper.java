@@ -0,0 +1,351 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Advances the particles of a ParticleStore on a fixed pool of worker threads.
+ * The store is cut into chunks of a fixed size which do not depend on the number of threads.
+ * Each chunk is pushed for one or more steps and then works out its own BunchMoments; all
+ * threads then meet at a barrier and the chunk moments are merged in chunk order.
+ * Because neither the chunks nor the order of the merge depend on the thread count, the
+ * centroid and spreads (and so the whole simulation) are bit-identical for any number of threads.
+ *
+ * Stepping a chunk several steps in a row keeps it in cache while it is advanced (temporal blocking),
+ * instead of streaming the whole bunch through memory every step. The centroid after every step of a
+ * block is still recorded, from per-chunk partial sums, so checks such as OrbitTracker.hasOrbited can be
+ * evaluated step by step once the block is done. If that finds the block should have stopped part way, as at
+ * a revolution, rewind puts the bunch back to that step by pushing it again from a copy kept at the start of the block
+ * (see keepBlockStart); each chunk copies itself before it is pushed, while it is in cache anyway.
+ *
+ * The chunks are handed to the threads as they come free, the ones that took longest last time first, so that when
+ * some particles cost far more than others (as with BlockTimeSteps) no thread is left with a slow chunk at the end.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class ParallelStepper implements BlockStepper {
+
+    public static final int defaultChunkSize = 2048; // particles per chunk, about 180 kB of state so a chunk stays in cache
+
+    private final ParticleStore store;
+    private final BunchPusher pusher;
+    private final int chunkSize;
+    private final ExecutorService pool; // null when running on the calling thread only
+    private BunchMoments[] chunkMoments;
+    private double[][] chunkTracks; // per chunk sums of x, y and z after each step of the last block
+    private double[] trackSums = new double[0]; // sums over the bunch of x, y and z after each step of the last block
+    private long[] chunkCosts = new long[0]; // nanoseconds each chunk took to push in the last block
+    private BunchMoments moments = new BunchMoments(); // merged moments after the last call to step
+    private boolean keepStart = false; // whether each chunk is copied at the start of a block, for rewind
+    private double[][] chunkStarts = new double[0][]; // per chunk copy of x to a_z, and the pusher's state, at the start
+    private double blockStart, blockTimeStep; // time and time step of the last block
+
+    /**
+     * Constructor using the default chunk size
+     * @param storeIn the particles to push
+     * @param pusherIn how to push a range of particles by one step
+     * @param nThreads the number of worker threads, 1 to run on the calling thread
+     */
+    public ParallelStepper(ParticleStore storeIn, BunchPusher pusherIn, int nThreads) {
+        this(storeIn, pusherIn, nThreads, defaultChunkSize);
+    }
+
+    /**
+     * Constructor
+     * @param storeIn the particles to push
+     * @param pusherIn how to push a range of particles by one step
+     * @param nThreads the number of worker threads, 1 to run on the calling thread
+     * @param chunkSizeIn the number of particles in each chunk
+     */
+    public ParallelStepper(ParticleStore storeIn, BunchPusher pusherIn, int nThreads, int chunkSizeIn) {
+        store = storeIn;
+        pusher = pusherIn;
+        chunkSize = Math.max(chunkSizeIn, 1);
+        pool = (nThreads > 1) ? Executors.newFixedThreadPool(nThreads, daemonThreads()) : null;
+    }
+
+    /**
+     * Return a thread factory for daemon worker threads, so an unclosed stepper never keeps the JVM alive
+     * @return the thread factory
+     */
+    static ThreadFactory daemonThreads() {
+        return runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Return the number of chunks the store is cut into
+     * @return number of chunks
+     */
+    public int nChunks() {
+        return (store.size() + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * Advance every particle by nSteps time steps. Threads only meet once, after the last step,
+     * so nSteps greater than one should be used whenever no collective quantity is needed in between.
+     * Time is advanced as time+=timeStep before each push, exactly as the serial BunchSim loop does.
+     * @param time the time before the first step
+     * @param timeStep the length of each step
+     * @param nSteps the number of steps
+     * @return the time after the last step
+     */
+    @Override
+    public double step(double time, double timeStep, int nSteps) {
+        blockStart = time;
+        blockTimeStep = timeStep;
+        return push(time, timeStep, nSteps, false);
+    }
+
+    /**
+     * Keep a copy of every particle at the start of each block from now on, so that rewind can be used.
+     * The copy holds x to a_z of every particle, and the state the pusher keeps for it if it keeps any.
+     */
+    @Override
+    public void keepBlockStart() {
+        keepStart = true;
+    }
+
+    /**
+     * Put the bunch back to where it was after step k of the last block, by pushing it again from the copy kept at
+     * the start of the block. The moments and track sums are then those of a block that ended at step k.
+     * @param k the step within the last block, from 0 to nSteps-1
+     * @return the time after step k
+     * @throws IllegalStateException if the start of the block was not kept
+     */
+    @Override
+    public double rewind(int k) {
+        if (!keepStart) {
+            throw new IllegalStateException("the start of the block was not kept, see keepBlockStart");
+        }
+        return push(blockStart, blockTimeStep, k + 1, true);
+    }
+
+    /**
+     * Push every chunk by nSteps steps, first putting it back to the start of the block if rewinding, or copying it
+     * there if the start is kept
+     */
+    private double push(final double time, final double timeStep, final int nSteps, final boolean fromStart) {
+        int nChunks = nChunks();
+        if (chunkMoments == null || chunkMoments.length != nChunks) {
+            chunkMoments = new BunchMoments[nChunks];
+            chunkTracks = new double[nChunks][];
+            chunkCosts = new long[nChunks];
+        }
+        if (keepStart && chunkStarts.length != nChunks) {
+            chunkStarts = new double[nChunks][];
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(nChunks);
+        for (int c : slowestFirst()) {
+            final int chunk = c;
+            tasks.add(() -> {
+                long start = System.nanoTime();
+                int from = chunk * chunkSize;
+                int to = Math.min(from + chunkSize, store.size());
+                if (fromStart) {
+                    restoreChunk(chunk, from, to);
+                }
+                else if (keepStart) {
+                    copyChunk(chunk, from, to);
+                }
+                if (chunkTracks[chunk] == null || chunkTracks[chunk].length != 3 * nSteps) {
+                    chunkTracks[chunk] = new double[3 * nSteps];
+                }
+                double[] track = chunkTracks[chunk];
+                double t = time;
+                for (int k = 0; k < nSteps; k++) {
+                    t += timeStep;
+                    pusher.push(store, from, to, t, timeStep);
+                    for (int q = ParticleStore.X; q <= ParticleStore.Z; q++) {
+                        double sum = 0.0;
+                        for (int i = from; i < to; i++) {
+                            sum += store.get(q, i);
+                        }
+                        track[3 * k + q] = sum;
+                    }
+                }
+                chunkMoments[chunk] = BunchMoments.of(store, from, to);
+                chunkCosts[chunk] = System.nanoTime() - start;
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        moments = new BunchMoments();
+        for (int c = 0; c < nChunks; c++) {
+            moments.add(chunkMoments[c]);
+        }
+        if (trackSums.length != 3 * nSteps) {
+            trackSums = new double[3 * nSteps];
+        }
+        for (int j = 0; j < 3 * nSteps; j++) {
+            double sum = 0.0;
+            for (int c = 0; c < nChunks; c++) {
+                sum += chunkTracks[c][j];
+            }
+            trackSums[j] = sum;
+        }
+        double t = time;
+        for (int k = 0; k < nSteps; k++) {
+            t += timeStep;
+        }
+        return t;
+    }
+
+    /**
+     * Copy x to a_z of the particles of a chunk, and the state the pusher keeps for them, column by column
+     */
+    private void copyChunk(int chunk, int from, int to) {
+        int n = to - from;
+        int nColumns = ParticleStore.AZ + 1 + (pusher.keepsParticleState() ? 1 : 0);
+        if (chunkStarts[chunk] == null || chunkStarts[chunk].length != nColumns * n) {
+            chunkStarts[chunk] = new double[nColumns * n];
+        }
+        double[] copy = chunkStarts[chunk];
+        for (int c = ParticleStore.X; c <= ParticleStore.AZ; c++) {
+            for (int i = from; i < to; i++) {
+                copy[c * n + i - from] = store.get(c, i);
+            }
+        }
+        if (pusher.keepsParticleState()) {
+            for (int i = from; i < to; i++) {
+                copy[(ParticleStore.AZ + 1) * n + i - from] = pusher.getParticleState(store, i);
+            }
+        }
+    }
+
+    /**
+     * Put the particles of a chunk back as copyChunk found them
+     */
+    private void restoreChunk(int chunk, int from, int to) {
+        int n = to - from;
+        double[] copy = chunkStarts[chunk];
+        for (int c = ParticleStore.X; c <= ParticleStore.AZ; c++) {
+            for (int i = from; i < to; i++) {
+                store.set(c, i, copy[c * n + i - from]);
+            }
+        }
+        if (pusher.keepsParticleState()) {
+            for (int i = from; i < to; i++) {
+                pusher.setParticleState(store, i, copy[(ParticleStore.AZ + 1) * n + i - from]);
+            }
+        }
+    }
+
+    /**
+     * Return the chunks in order of the time they took in the last block, longest first
+     * @return the chunk numbers
+     */
+    private Integer[] slowestFirst() {
+        Integer[] order = new Integer[chunkCosts.length];
+        for (int c = 0; c < order.length; c++) {
+            order[c] = c;
+        }
+        if (pool != null) {
+            Arrays.sort(order, Comparator.comparingLong((Integer c) -> chunkCosts[c]).reversed());
+        }
+        return order;
+    }
+
+    /**
+     * Run the tasks on the pool (or the calling thread) and wait for all of them to finish
+     * @param tasks the tasks to run
+     */
+    private void runAll(List<Callable<Void>> tasks) {
+        try {
+            if (pool == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> done : pool.invokeAll(tasks)) {
+                done.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while stepping the bunch", e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("error while stepping the bunch", e.getCause());
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("error while stepping the bunch", e);
+        }
+    }
+
+    @Override
+    public BunchMoments getMoments() {
+        return moments;
+    }
+
+    @Override
+    public double getTrackSum(int k, int q) {
+        return trackSums[3 * k + q];
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    @Override
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Strong scaling test: push bunches of 10^4 to 10^7 protons in the BunchSim field on 1 to N threads,
+     * print the particle pushes per second and check the centroid is identical for every thread count.
+     *
+     * @param args optional maximum number of threads (default: number of available processors)
+     */
+    public static void main(String[] args) {
+        int maxThreads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        double timeStep = 0.00001;
+        double bMag = 1.0e-7;
+        for (int nProtons = 10000; nProtons <= 10000000; nProtons *= 10) {
+            int nSteps = Math.max(10, 20000000 / nProtons);
+            PhysicsVector reference = null;
+            for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+                ArrayParticleStore store = new ArrayParticleStore(nProtons);
+                Proton aProton = new Proton();
+                for (int i = 0; i < nProtons; i++) {
+                    aProton.setPosition(new PhysicsVector(0.1 * Math.sin(i), 0, 0)); // same start for every run
+                    aProton.setVelocity(new PhysicsVector(0, 0.1, 0));
+                    store.add(aProton);
+                }
+                ParallelStepper stepper = new ParallelStepper(store, new BunchSim.CyclotronPusher(bMag, 1.0e-1, nProtons), nThreads);
+                stepper.step(0.0, timeStep, nSteps); // warm up
+                long start = System.nanoTime();
+                double time = 0.0;
+                for (int k = 0; k < nSteps; k++) {
+                    time = stepper.step(time, timeStep, 1);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                PhysicsVector centroid = stepper.getMoments().getPosition();
+                if (reference == null) reference = centroid;
+                System.out.printf("%9d protons %3d threads %8.1f Mpush/s  identical to 1 thread: %b%n", nProtons, nThreads,
+                    (double) nProtons * nSteps / seconds / 1e6,
+                    centroid.getX() == reference.getX() && centroid.getY() == reference.getY());
+                stepper.shutdown();
+            }
+        }
+    }
+}
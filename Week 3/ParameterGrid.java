@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A grid of simulation parameters: a base SimRecord and a list of values for each of a number of parameters (axes).
+ * Iterating over the grid gives every combination of the axis values, the last axis changing fastest.
+ * The points are made one at a time as they are asked for, so a grid of any size takes no more memory than its axes.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class ParameterGrid implements Iterable<SimRecord> {
+
+    private final SimRecord base;
+    private final List<String> names = new ArrayList<String>();
+    private final List<String[]> values = new ArrayList<String[]>();
+
+    /**
+     * Constructor
+     * @param baseIn the parameters shared by every point of the grid
+     */
+    public ParameterGrid(SimRecord baseIn) {
+        base = new SimRecord(baseIn);
+    }
+
+    /**
+     * Add an axis with a list of values
+     * @param name the name of the parameter
+     * @param axisValues its values
+     * @return this grid, so calls can be chained
+     */
+    public ParameterGrid addAxis(String name, String... axisValues) {
+        names.add(name);
+        values.add(axisValues.clone());
+        return this;
+    }
+
+    /**
+     * Add an axis of n values spaced evenly from first to last
+     * @param name the name of the parameter
+     * @param first the first value
+     * @param last the last value
+     * @param n the number of values
+     * @return this grid, so calls can be chained
+     */
+    public ParameterGrid addAxis(String name, double first, double last, int n) {
+        String[] axisValues = new String[n];
+        for (int i = 0; i < n; i++) {
+            axisValues[i] = String.valueOf((n > 1) ? first + (last - first) * i / (n - 1) : first);
+        }
+        return addAxis(name, axisValues);
+    }
+
+    /**
+     * Add an axis given as text, either a list "name=v1,v2,v3" or a range "name=first:last:n"
+     * @param spec the axis
+     * @return this grid, so calls can be chained
+     */
+    public ParameterGrid addAxis(String spec) {
+        int equals = spec.indexOf('=');
+        if (equals < 1) {
+            throw new IllegalArgumentException("expected name=v1,v2,... or name=first:last:n but found: " + spec);
+        }
+        String name = spec.substring(0, equals).trim();
+        String axis = spec.substring(equals + 1).trim();
+        String[] range = axis.split(":");
+        if (range.length == 3) {
+            return addAxis(name, Double.parseDouble(range[0]), Double.parseDouble(range[1]), Integer.parseInt(range[2]));
+        }
+        return addAxis(name, axis.split(","));
+    }
+
+    /**
+     * Return the names of the axes
+     * @return the parameter names, in the order the axes were added
+     */
+    public String[] getNames() {
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * Return the number of points in the grid
+     * @return the number of points
+     */
+    public long size() {
+        long n = 1;
+        for (String[] axis : values) {
+            n *= axis.length;
+        }
+        return n;
+    }
+
+    /**
+     * Return one point of the grid
+     * @param index the index of the point, from 0 to size()-1
+     * @return the parameters of that point
+     */
+    public SimRecord get(long index) {
+        SimRecord point = new SimRecord(base);
+        for (int a = names.size() - 1; a >= 0; a--) {
+            String[] axis = values.get(a);
+            point.set(names.get(a), axis[(int) (index % axis.length)]);
+            index /= axis.length;
+        }
+        return point;
+    }
+
+    @Override
+    public Iterator<SimRecord> iterator() {
+        return new Iterator<SimRecord>() {
+            private long next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public SimRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+}
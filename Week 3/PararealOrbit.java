@@ -0,0 +1,354 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel-in-time (Parareal) integration of the single proton of OrbitSimulation.
+ *
+ * The run from time 0 to maxTime is cut into time slices. A cheap coarse propagator G (Euler-Cromer with a step
+ * coarseFactor times longer) is run across the slices one after another, and the fine propagator F (the integrator of
+ * OrbitSimulation, chosen by the integrator or method parameter) is run over every slice at once on a pool of threads,
+ * starting each slice from the current guess at its start state. The guesses are then corrected,
+ * slice by slice, as U[n+1] = F(U[n]) + (G(U_new[n]) - G(U[n])), and the fine pass is repeated until no start state
+ * changes by more than the tolerance. The first k slices are exact after k iterations, so the result is always that of
+ * the serial fine run after at most nSlices iterations, and in practice well within the tolerance after far fewer.
+ * An integrator that keeps state between steps (rk45 keeps its step size) starts each slice afresh, so with it the
+ * result is that of a run restarted at every slice boundary instead.
+ *
+ * Revolutions are counted during the fine pass by the same rule as ProtonOrbitTracker. Each slice keeps the distance
+ * from the origin of its first and last two steps, so a closest approach that straddles the boundary between two
+ * slices is still found when the slices are joined up.
+ *
+ * Parameters are those of OrbitSimulation (the run always goes to maxTime, maxRev is not used) and:
+ *   nSlices (default 8 per thread), coarseFactor=100, pararealTol=1e-8 (largest change in a start state, relative to
+ *   its size), maxIterations (default nSlices), nThreads (default: available processors).
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class PararealOrbit {
+
+    private final OrbitSimulation setup; // the field, the start state and the fine time step
+    private final SimRecord parameters; // to set up an integrator and a field for each fine pass
+    private final boolean direct, cromer; // Euler or Euler-Cromer, stepped on the proton itself as OrbitSimulation does
+    private final double timeStep, tolerance, radiusScale, speedScale;
+    private final int nSlices, coarseFactor, maxIterations, nThreads;
+    private final PhysicsVector origin = new PhysicsVector();
+
+    private int iterations = 0;
+
+    /**
+     * One time slice: its start, the current guess at its start state, and what the fine pass found
+     */
+    private static class Slice {
+        long firstStep, nSteps; // the steps of the serial run the slice covers
+        double startTime; // the time before its first step, accumulated exactly as the serial run does
+        double[] start; // x, y, z, v_x, v_y, v_z at the start of the slice
+        double[] coarseEnd; // G applied to start
+        double[] fineEnd; // F applied to start
+        double[] firstDistance = new double[2]; // distance from the origin after the first two fine steps
+        double[] lastDistance = new double[2]; // and after the last two
+        List<Double> orbitTimes = new ArrayList<Double>(); // revolutions completed at the third step or later
+    }
+
+    /**
+     * Constructor
+     * @param parameters the parameters of the simulation
+     */
+    public PararealOrbit(SimRecord parameters) {
+        setup = new OrbitSimulation(parameters);
+        this.parameters = new SimRecord(parameters);
+        Integrator integrator = parameters.has("integrator") ? Integrator.fromParameters(parameters)
+            : (parameters.getChar("method", 'E') == 'C') ? Integrator.eulerCromer : Integrator.euler;
+        cromer = (integrator == Integrator.eulerCromer);
+        direct = cromer || integrator == Integrator.euler;
+        timeStep = setup.getTimeStep();
+        nThreads = Math.max(parameters.getInt("nThreads", Runtime.getRuntime().availableProcessors()), 1);
+        nSlices = Math.max(parameters.getInt("nSlices", 8 * nThreads), 1);
+        coarseFactor = Math.max(parameters.getInt("coarseFactor", 100), 1);
+        tolerance = parameters.getDouble("pararealTol", 1e-8);
+        maxIterations = parameters.getInt("maxIterations", nSlices);
+        radiusScale = setup.radius();
+        speedScale = setup.getProton().getVelocityView().magnitude();
+    }
+
+    /**
+     * Run to maxTime
+     * @return the results as OrbitSimulation.getResults gives them (without the spread of the periods), and the
+     *         number of Parareal iterations, nSlices and the number of fine steps
+     */
+    public SimRecord run() {
+        // Lay out the slices over the steps of the serial run, keeping the serial time at each boundary
+        long nTotal = 0;
+        double t = 0.0;
+        while (t < setup.getMaxTime()) {
+            t += timeStep;
+            nTotal++;
+        }
+        int n = (int) Math.max(Math.min(nSlices, nTotal / 2), 1); // every slice needs at least two steps
+        Slice[] slices = new Slice[n];
+        t = 0.0;
+        long step = 0;
+        for (int s = 0; s < n; s++) {
+            slices[s] = new Slice();
+            slices[s].firstStep = nTotal * s / n;
+            slices[s].nSteps = nTotal * (s + 1) / n - slices[s].firstStep;
+            while (step < slices[s].firstStep) {
+                t += timeStep;
+                step++;
+            }
+            slices[s].startTime = t;
+        }
+        double endTime = t;
+        while (step < nTotal) {
+            endTime += timeStep;
+            step++;
+        }
+
+        // First guess from the coarse propagator alone
+        slices[0].start = state(setup.getProton());
+        for (int s = 0; s < n; s++) {
+            slices[s].coarseEnd = coarse(slices[s].start, slices[s].startTime, slices[s].nSteps);
+            if (s + 1 < n) slices[s + 1].start = slices[s].coarseEnd;
+        }
+
+        ExecutorService pool = (nThreads > 1) ? Executors.newFixedThreadPool(nThreads, ParallelStepper.daemonThreads()) : null;
+        double[] end = slices[n - 1].coarseEnd;
+        try {
+            iterations = 0;
+            for (int first = 0; first < n && iterations < maxIterations; first++) { // slices before first are exact
+                iterations++;
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (int s = first; s < n; s++) {
+                    final Slice slice = slices[s];
+                    tasks.add(() -> {
+                        fine(slice);
+                        return null;
+                    });
+                }
+                runAll(pool, tasks);
+
+                // Correct the start states in order, the coarse propagator carrying each correction forward.
+                // Slice first starts from an exact state, so its coarse end is unchanged and the next start is exactly F.
+                double change = 0.0;
+                double[] corrected = slices[first].start;
+                for (int s = first; s < n; s++) {
+                    double[] coarseNew = (s == first) ? slices[s].coarseEnd : coarse(corrected, slices[s].startTime, slices[s].nSteps);
+                    double[] next = new double[6];
+                    for (int q = 0; q < 6; q++) {
+                        next[q] = slices[s].fineEnd[q] + (coarseNew[q] - slices[s].coarseEnd[q]);
+                    }
+                    slices[s].coarseEnd = coarseNew;
+                    change = Math.max(change, difference(next, (s + 1 < n) ? slices[s + 1].start : end));
+                    if (s + 1 < n) {
+                        slices[s + 1].start = next;
+                    }
+                    corrected = next;
+                }
+                end = corrected;
+                if (change <= tolerance) {
+                    break;
+                }
+            }
+        }
+        finally {
+            if (pool != null) pool.shutdown();
+        }
+        return results(slices, end, endTime, nTotal);
+    }
+
+    /**
+     * Join up the slices to count the revolutions and make the results
+     */
+    private SimRecord results(Slice[] slices, double[] end, double endTime, long nTotal) {
+        int nRev = 0;
+        double lastTime = 0.0, lastPeriod = 0.0;
+        double before2 = Double.NEGATIVE_INFINITY, before1 = 0.0; // distance two steps and one step back (tracker start)
+        for (Slice slice : slices) {
+            double time = slice.startTime;
+            for (int j = 0; j < Math.min(2, slice.nSteps); j++) {
+                time += timeStep;
+                double d = slice.firstDistance[j];
+                if (d >= before1 && before1 < before2) {
+                    nRev++;
+                    lastPeriod = time - lastTime;
+                    lastTime = time;
+                }
+                before2 = before1;
+                before1 = d;
+            }
+            for (double orbitTime : slice.orbitTimes) {
+                nRev++;
+                lastPeriod = orbitTime - lastTime;
+                lastTime = orbitTime;
+            }
+            before2 = slice.lastDistance[0];
+            before1 = slice.lastDistance[1];
+        }
+        double speed = Math.sqrt(end[3] * end[3] + end[4] * end[4] + end[5] * end[5]);
+        double radius = radiusScale * speed / speedScale;
+        return new SimRecord()
+            .set("time", endTime)
+            .set("nRev", nRev)
+            .set("meanPeriod", (nRev > 0) ? lastTime / nRev : 0.0)
+            .set("lastPeriod", lastPeriod)
+            .set("startRadius", radiusScale)
+            .set("radius", radius)
+            .set("radiusDrift", radius - radiusScale)
+            .set("x", end[0]).set("y", end[1]).set("z", end[2])
+            .set("vx", end[3]).set("vy", end[4]).set("vz", end[5])
+            .set("iterations", iterations)
+            .set("nSlices", slices.length)
+            .set("nSteps", nTotal);
+    }
+
+    /**
+     * Run the fine propagator over a slice from its current start state, noting the revolutions completed in it
+     */
+    private void fine(Slice slice) {
+        Proton proton = proton(slice.start);
+        EMField theField = new EMField();
+        PhysicsVector acceleration = new PhysicsVector();
+        // Any other integrator steps a store of its own, with its own integrator and field as slices run at once
+        Integrator integrator = direct ? null : Integrator.fromParameters(parameters);
+        OrbitSimulation field = direct ? null : new OrbitSimulation(parameters);
+        ArrayParticleStore store = new ArrayParticleStore(1);
+        store.add(proton);
+        slice.orbitTimes.clear();
+        double time = slice.startTime;
+        double before2 = 0.0, before1 = 0.0;
+        for (long j = 0; j < slice.nSteps; j++) {
+            time += timeStep;
+            if (direct) {
+                theField.setElectric(0, setup.electricY(time), 0);
+                theField.setMagnetic(0, 0, setup.magneticZ(proton.getPositionView().getX(), time));
+                theField.getAcceleration(proton, acceleration);
+                if (cromer) {
+                    proton.updateLPA(timeStep, acceleration);
+                }
+                else {
+                    proton.update(timeStep, acceleration);
+                }
+            }
+            else {
+                integrator.step(store, 0, 1, time, timeStep, field);
+                store.copyTo(0, proton);
+            }
+            double d = PhysicsVector.distance(proton.getPositionView(), origin);
+            if (j < 2) {
+                slice.firstDistance[(int) j] = d;
+            }
+            else if (d >= before1 && before1 < before2) { // passed through closest approach, as ProtonOrbitTracker
+                slice.orbitTimes.add(time);
+            }
+            before2 = before1;
+            before1 = d;
+        }
+        slice.lastDistance[0] = before2;
+        slice.lastDistance[1] = before1;
+        slice.fineEnd = state(proton);
+    }
+
+    /**
+     * Run the coarse propagator, Euler-Cromer with a step coarseFactor times the fine one, over nSteps fine steps
+     */
+    private double[] coarse(double[] start, double startTime, long nSteps) {
+        long nCoarse = Math.max(nSteps / coarseFactor, 1);
+        double coarseStep = nSteps * timeStep / nCoarse;
+        Proton proton = proton(start);
+        EMField theField = new EMField();
+        PhysicsVector acceleration = new PhysicsVector();
+        double time = startTime;
+        for (long j = 0; j < nCoarse; j++) {
+            time += coarseStep;
+            theField.setElectric(0, setup.electricY(time), 0);
+            theField.setMagnetic(0, 0, setup.magneticZ(proton.getPositionView().getX(), time));
+            theField.getAcceleration(proton, acceleration);
+            proton.updateLPA(coarseStep, acceleration);
+        }
+        return state(proton);
+    }
+
+    /**
+     * Largest change between two states, relative to the size of the position and velocity (at least the start
+     * radius and speed), since the orbit can grow a long way from its start size
+     */
+    private double difference(double[] u, double[] w) {
+        double positionScale = Math.max(radiusScale, Math.sqrt(w[0] * w[0] + w[1] * w[1] + w[2] * w[2]));
+        double velocityScale = Math.max(speedScale, Math.sqrt(w[3] * w[3] + w[4] * w[4] + w[5] * w[5]));
+        double change = 0.0;
+        for (int q = 0; q < 6; q++) {
+            change = Math.max(change, Math.abs(u[q] - w[q]) / ((q < 3) ? positionScale : velocityScale));
+        }
+        return change;
+    }
+
+    private static double[] state(Proton proton) {
+        PhysicsVector position = proton.getPositionView();
+        PhysicsVector velocity = proton.getVelocityView();
+        return new double[] {position.getX(), position.getY(), position.getZ(), velocity.getX(), velocity.getY(), velocity.getZ()};
+    }
+
+    private static Proton proton(double[] state) {
+        Proton proton = new Proton();
+        proton.setPosition(new PhysicsVector(state[0], state[1], state[2]));
+        proton.setVelocity(new PhysicsVector(state[3], state[4], state[5]));
+        return proton;
+    }
+
+    private static void runAll(ExecutorService pool, List<Callable<Void>> tasks) {
+        try {
+            if (pool == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> done : pool.invokeAll(tasks)) {
+                done.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted during the fine pass", e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("error during the fine pass", e.getCause());
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("error during the fine pass", e);
+        }
+    }
+
+    /**
+     * Run the proton of MainMethodWeek3 both serially and with Parareal, and compare
+     *
+     * @param args optional maxTime in s (default 100), number of threads (default: available processors),
+     *             number of slices (default 8 per thread) and integrator (default Euler)
+     */
+    public static void main(String[] args) {
+        SimRecord parameters = new SimRecord()
+            .set("maxTime", (args.length > 0) ? args[0] : "100")
+            .set("maxRev", Integer.MAX_VALUE);
+        if (args.length > 1) parameters.set("nThreads", args[1]);
+        if (args.length > 2) parameters.set("nSlices", args[2]);
+        if (args.length > 3) parameters.set("integrator", args[3]);
+
+        long start = System.nanoTime();
+        SimRecord serial = new OrbitSimulation(parameters).run();
+        double serialSeconds = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        SimRecord parallel = new PararealOrbit(parameters).run();
+        double pararealSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("serial:   " + serial.getString("nRev", "") + " revolutions, x=" + serial.getString("x", "")
+            + " y=" + serial.getString("y", "") + String.format(" in %.2f s", serialSeconds));
+        System.out.println("parareal: " + parallel.getString("nRev", "") + " revolutions, x=" + parallel.getString("x", "")
+            + " y=" + parallel.getString("y", "") + String.format(" in %.2f s", pararealSeconds) + ", "
+            + parallel.getString("iterations", "") + " iterations over " + parallel.getString("nSlices", "") + " slices");
+    }
+}
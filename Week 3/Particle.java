@@ -91,6 +91,28 @@ public class Particle implements Comparable {
 		return new PhysicsVector(velocity);
 	}
 	
+	/**
+	* Return the position held by the particle without copying it.
+	* The vector must be treated as read only.
+	*
+	* @return position
+	*/
+	public PhysicsVector getPositionView()
+	{
+		return position;
+	}
+	
+	/**
+	* Return the velocity held by the particle without copying it.
+	* The vector must be treated as read only.
+	*
+	* @return velocity
+	*/
+	public PhysicsVector getVelocityView()
+	{
+		return velocity;
+	}
+	
 	/**
 	* Return the acceleration
 	*
@@ -162,6 +184,7 @@ public class Particle implements Comparable {
 	/**
 	* Update the position and velocity of the particle subject to a constant acceleration for a time.
 	* After the time has passed the acceleration reverts to its previous value.
+	* The applied acceleration is only read, so no copy of it is made.
 	*                                      
 	* @param deltaTime  The change in time
 	* @param accelIn    The applied acceleration
@@ -171,7 +194,7 @@ public class Particle implements Comparable {
 		PhysicsVector savedAcceleration = acceleration;
 		
 		// apply the new acceleration for a short time
-		acceleration = new PhysicsVector(accelIn);
+		acceleration = accelIn;
 		update(deltaTime);
 		
 		// revert acceleration to previous value 
@@ -183,7 +206,7 @@ public class Particle implements Comparable {
 	public void updateLPA(double deltaTime, PhysicsVector accelIn){
 		PhysicsVector savedAcceleration = acceleration;
 
-		acceleration = new PhysicsVector(accelIn);
+		acceleration = accelIn;
 		updateLPA(deltaTime);
 
 		acceleration = savedAcceleration;
@@ -230,10 +253,10 @@ public class Particle implements Comparable {
 	*/
 	private void updateEuler1(double deltaTime)
 	{
-		position.increaseBy(PhysicsVector.scale(deltaTime, velocity)); // old position + ut
-		position.increaseBy(PhysicsVector.scale(0.5*deltaTime*deltaTime, acceleration)); // + 1/2 at**2
+		position.increaseByScaled(deltaTime, velocity); // old position + ut
+		position.increaseByScaled(0.5*deltaTime*deltaTime, acceleration); // + 1/2 at**2
 		
-		velocity.increaseBy(PhysicsVector.scale(deltaTime, acceleration)); // v = u + at
+		velocity.increaseByScaled(deltaTime, acceleration); // v = u + at
 		return;
 		
 	}
@@ -247,9 +270,9 @@ public class Particle implements Comparable {
 
 	private void updateEulerLPA(double deltaTime){
 
-		velocity.increaseBy(PhysicsVector.scale(deltaTime, acceleration));
+		velocity.increaseByScaled(deltaTime, acceleration);
 
-		position.increaseBy(PhysicsVector.scale(deltaTime, velocity));
+		position.increaseByScaled(deltaTime, velocity);
 		return;
 
 	}
@@ -0,0 +1,338 @@
+/**
+ * Structure-of-arrays storage for the state of a bunch of particles.
+ * Each component of position, velocity and acceleration is kept in its own contiguous
+ * column (x, y, z, vx, vy, vz, ax, ay, az) together with the mass and charge
+ * of every particle, so a time step sweeps a handful of flat columns rather than
+ * following references to millions of small PhysicsVector objects.
+ *
+ * Subclasses decide where the columns live: ArrayParticleStore keeps them in double[] arrays
+ * on the heap and OffHeapParticleStore keeps them in native memory or a memory-mapped file.
+ *
+ * @author Adam Shelbourne
+ * @version 1.1
+ */
+public abstract class ParticleStore {
+
+    // indices of the columns held for every particle
+    public static final int X = 0, Y = 1, Z = 2;
+    public static final int VX = 3, VY = 4, VZ = 5;
+    public static final int AX = 6, AY = 7, AZ = 8;
+    public static final int MASS = 9, CHARGE = 10;
+    public static final int nComponents = 11;
+
+    private int size = 0; // number of particles held
+
+    /**
+     * Return one component of the state of particle i
+     * @param component the column to read, e.g. ParticleStore.X
+     * @param i index of the particle
+     * @return the value held
+     */
+    public abstract double get(int component, int i);
+
+    /**
+     * Set one component of the state of particle i
+     * @param component the column to write, e.g. ParticleStore.VX
+     * @param i index of the particle
+     * @param value the new value
+     */
+    public abstract void set(int component, int i, double value);
+
+    /**
+     * Return the number of particles the store can hold without growing
+     * @return the capacity
+     */
+    public abstract int capacity();
+
+    /**
+     * Make room for at least the given number of particles, keeping the current contents
+     * @param capacity the number of particles to make room for
+     */
+    protected abstract void grow(int capacity);
+
+    /**
+     * Return the number of particles in the store
+     * @return number of particles
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append the state of a particle to the store. The charge is taken from the particle
+     * if it is a ChargedParticle and set to zero otherwise.
+     * @param particle the particle to copy into the store
+     * @return the index of the new particle
+     */
+    public int add(Particle particle) {
+        if (size == capacity()) {
+            grow((int) Math.min(2L * capacity(), Integer.MAX_VALUE));
+        }
+        int i = size++;
+        copyFrom(i, particle);
+        return i;
+    }
+
+    /**
+     * Copy mass, charge, position, velocity and acceleration of a particle into slot i
+     * @param i index of the particle in the store
+     * @param particle the particle to copy from
+     */
+    public void copyFrom(int i, Particle particle) {
+        set(MASS, i, particle.mass);
+        set(CHARGE, i, (particle instanceof ChargedParticle) ? ((ChargedParticle) particle).charge : 0.0);
+        setPosition(i, particle.position);
+        setVelocity(i, particle.velocity);
+        setAcceleration(i, particle.acceleration.getX(), particle.acceleration.getY(), particle.acceleration.getZ());
+    }
+
+    /**
+     * Write the position, velocity and acceleration held in slot i back into a particle.
+     * Mass and charge are not copied, the particle keeps its own.
+     * @param i index of the particle in the store
+     * @param particle the particle view to update
+     */
+    public void copyTo(int i, Particle particle) {
+        particle.position.setVector(get(X, i), get(Y, i), get(Z, i));
+        particle.velocity.setVector(get(VX, i), get(VY, i), get(VZ, i));
+        particle.acceleration.setVector(get(AX, i), get(AY, i), get(AZ, i));
+    }
+
+    /**
+     * Copy the state of every particle, including mass and charge, into another store.
+     * The other store is resized to hold the same number of particles.
+     * @param target the store to copy into
+     */
+    public void copyTo(ParticleStore target) {
+        target.resize(size);
+        for (int c = 0; c < nComponents; c++) {
+            for (int i = 0; i < size; i++) {
+                target.set(c, i, get(c, i));
+            }
+        }
+    }
+
+    /**
+     * Make the store hold n particles. Particles beyond the old size start with all components zero,
+     * which is used when filling a store column by column rather than from Particle objects.
+     * @param n the number of particles
+     */
+    public void resize(int n) {
+        if (n > capacity()) {
+            grow(n);
+        }
+        for (int i = size; i < n; i++) {
+            for (int c = 0; c < nComponents; c++) {
+                set(c, i, 0.0);
+            }
+        }
+        size = n;
+    }
+
+    /**
+     * Return the position of particle i
+     * @param i index of the particle
+     * @return a new vector holding the position
+     */
+    public PhysicsVector getPosition(int i) {
+        return new PhysicsVector(get(X, i), get(Y, i), get(Z, i));
+    }
+
+    /**
+     * Return the velocity of particle i
+     * @param i index of the particle
+     * @return a new vector holding the velocity
+     */
+    public PhysicsVector getVelocity(int i) {
+        return new PhysicsVector(get(VX, i), get(VY, i), get(VZ, i));
+    }
+
+    /**
+     * Set the position of particle i
+     * @param i index of the particle
+     * @param pIn the new position
+     */
+    public void setPosition(int i, PhysicsVector pIn) {
+        set(X, i, pIn.getX());
+        set(Y, i, pIn.getY());
+        set(Z, i, pIn.getZ());
+    }
+
+    /**
+     * Set the velocity of particle i
+     * @param i index of the particle
+     * @param vIn the new velocity
+     */
+    public void setVelocity(int i, PhysicsVector vIn) {
+        set(VX, i, vIn.getX());
+        set(VY, i, vIn.getY());
+        set(VZ, i, vIn.getZ());
+    }
+
+    /**
+     * Set the acceleration of particle i
+     * @param i index of the particle
+     * @param aX x-component of the acceleration
+     * @param aY y-component of the acceleration
+     * @param aZ z-component of the acceleration
+     */
+    public void setAcceleration(int i, double aX, double aY, double aZ) {
+        set(AX, i, aX);
+        set(AY, i, aY);
+        set(AZ, i, aZ);
+    }
+
+    public double getX(int i) {
+        return get(X, i);
+    }
+
+    public double getY(int i) {
+        return get(Y, i);
+    }
+
+    public double getZ(int i) {
+        return get(Z, i);
+    }
+
+    public double getMass(int i) {
+        return get(MASS, i);
+    }
+
+    public double getCharge(int i) {
+        return get(CHARGE, i);
+    }
+
+    /**
+     * Euler update of particle i with the acceleration held in the store,
+     * the same scheme as Particle.update(deltaTime).
+     * Applies s = ut + 1/2 at**2 to the position and v = u + at to the velocity
+     * @param i index of the particle
+     * @param deltaTime the change in time
+     */
+    public void update(int i, double deltaTime) {
+        double halfDt2 = 0.5 * deltaTime * deltaTime;
+        for (int c = X; c <= Z; c++) {
+            double v = get(VX + c, i);
+            double a = get(AX + c, i);
+            set(X + c, i, (get(X + c, i) + deltaTime * v) + halfDt2 * a); // old position + ut + 1/2 at**2
+            set(VX + c, i, v + deltaTime * a); // v = u + at
+        }
+    }
+
+    /**
+     * Euler-Cromer update of particle i with the acceleration held in the store,
+     * the same scheme as Particle.updateLPA(deltaTime).
+     * Applies v = u + at to the velocity and then s = vt to the position
+     * @param i index of the particle
+     * @param deltaTime the change in time
+     */
+    public void updateLPA(int i, double deltaTime) {
+        for (int c = X; c <= Z; c++) {
+            double v = get(VX + c, i) + deltaTime * get(AX + c, i);
+            set(VX + c, i, v);
+            set(X + c, i, get(X + c, i) + deltaTime * v);
+        }
+    }
+
+    /**
+     * Find the average position of the particles in the store
+     * @return the average position
+     */
+    public PhysicsVector getPosition() {
+        return new PhysicsVector(mean(X), mean(Y), mean(Z));
+    }
+
+    /**
+     * Find the average velocity of the particles in the store
+     * @return the average velocity
+     */
+    public PhysicsVector getVelocity() {
+        return new PhysicsVector(mean(VX), mean(VY), mean(VZ));
+    }
+
+    /**
+     * Find the standard deviation of the particle positions in x, y and z
+     * @return the standard deviation in x, y and z
+     */
+    public PhysicsVector getSpreadSD() {
+        return new PhysicsVector(sd(X), sd(Y), sd(Z));
+    }
+
+    /**
+     * Find the difference between the largest and smallest position in x, y and z
+     * @return the full spread in x, y and z
+     */
+    public PhysicsVector getFullSpread() {
+        return new PhysicsVector(fullSpread(X), fullSpread(Y), fullSpread(Z));
+    }
+
+    /**
+     * Find the furthest deviation of any particle from the average position in x, y and z
+     * @return the maximum spread in x, y and z
+     */
+    public PhysicsVector getSpreadMax() {
+        return new PhysicsVector(maxDeviation(X), maxDeviation(Y), maxDeviation(Z));
+    }
+
+    /**
+     * Find the furthest deviation of any particle from the average velocity in v_x, v_y and v_z
+     * @return the maximum spread in v_x, v_y and v_z
+     */
+    public PhysicsVector getVSpreadMax() {
+        return new PhysicsVector(maxDeviation(VX), maxDeviation(VY), maxDeviation(VZ));
+    }
+
+    /**
+     * Find the y position of the particle furthest from the y axis (largest |y|)
+     * @return the y position of that particle
+     */
+    public double getSpreadY() {
+        int furthest = 0;
+        for (int i = 1; i < size; i++) {
+            if (Math.abs(get(Y, i)) > Math.abs(get(Y, furthest))) furthest = i;
+        }
+        return get(Y, furthest);
+    }
+
+    private double mean(int c) {
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            sum += get(c, i);
+        }
+        return sum * (1.0 / size);
+    }
+
+    private double sd(int c) {
+        double sum = 0.0;
+        double sqSum = 0.0;
+        for (int i = 0; i < size; i++) {
+            double a = get(c, i);
+            sum += a;
+            sqSum += a * a;
+        }
+        double average = sum * (1.0 / size);
+        return Math.sqrt(sqSum * (1.0 / size) - average * average);
+    }
+
+    private double fullSpread(int c) {
+        double average = mean(c);
+        double max = average;
+        double min = average;
+        for (int i = 0; i < size; i++) {
+            double a = get(c, i);
+            if (a > max) max = a;
+            if (a < min) min = a;
+        }
+        return max - min;
+    }
+
+    private double maxDeviation(int c) {
+        double average = mean(c);
+        double max = 0.0;
+        for (int i = 0; i < size; i++) {
+            double diff = Math.abs(get(c, i) - average);
+            if (diff > max) max = diff;
+        }
+        return max;
+    }
+}
@@ -11,20 +11,22 @@
  * @version 1.2
  **/
 public class PhysicsVector {
-	// Fix the dimension of the array representing the vectors 
+	// Fix the dimension of the vectors 
 	private static final int  vectorSize=3;
 	
-	// In this case we have a three dimensional vector, the x component is [0] with y[1] and z [2]
-	private double[]  vectorComponents = new double[vectorSize];
+	// In this case we have a three dimensional vector. The components are held as plain fields
+	// rather than in an array so that a vector is a single small object that the JIT can
+	// scalar replace when it does not escape.
+	private double x, y, z;
 	
     /**
      * Default contructor that creates a PhysicsVector with zero
      * magnitude
      **/
     public PhysicsVector(){
-	for (int i=0; i<vectorComponents.length; i++) {
-		vectorComponents[i] =0.;
-	}
+	x = 0.;
+	y = 0.;
+	z = 0.;
     }
 	
 
@@ -35,16 +37,16 @@ public class PhysicsVector {
      * <b>j</b> direction, the z component is set to zero.
      **/
     public PhysicsVector(double x, double y){
-	vectorComponents[0] = x;
-	vectorComponents[1] = y;
-	vectorComponents[2] = 0.;
+	this.x = x;
+	this.y = y;
+	this.z = 0.;
     }
 
 
     public PhysicsVector(double x, double y, double z) {
-        vectorComponents[0] = x;
-        vectorComponents[1] = y;
-        vectorComponents[2] = z;
+        this.x = x;
+        this.y = y;
+        this.z = z;
     }
 	
 	
@@ -56,15 +58,10 @@ public class PhysicsVector {
      **/
     public PhysicsVector(double [] x){
     	    if (x.length == vectorSize ) {
-		for (int i=0; i<vectorComponents.length; i++) {
-			vectorComponents[i] = x[i];			
-		}
+		this.setVector(x[0], x[1], x[2]);
 	    }
 	    else if (x.length == vectorSize-1 ) {
-	    	for (int i=0; i<x.length; i++) {
-	    		vectorComponents[i] = x[i];
-		}
-		vectorComponents[vectorComponents.length-1] = 0.;
+		this.setVector(x[0], x[1]);
 	    }
 	    else {
 	    	this.setVector(new PhysicsVector());
@@ -78,10 +75,9 @@ public class PhysicsVector {
      * PhysicsVector passed as an argument.
      **/
     public PhysicsVector(PhysicsVector v){
-    // Note: need to copy values not the array itself. 
-    	for (int i=0; i<vectorComponents.length; i++) {
-    	    vectorComponents[i] = v.vectorComponents[i];
-    	}
+    	x = v.x;
+    	y = v.y;
+    	z = v.z;
 		
     }
     
@@ -92,7 +88,7 @@ public class PhysicsVector {
     * @return x-component
     **/
     public double getX(){
-    	    return vectorComponents[0];
+    	    return x;
     }
 
     /**
@@ -101,7 +97,7 @@ public class PhysicsVector {
     * @param x  x-component
     **/
     public void setX(double x) {
-    	    vectorComponents[0] = x;
+    	    this.x = x;
     }
 	
 	
@@ -111,7 +107,7 @@ public class PhysicsVector {
      * @return y-component
      **/
     public double getY(){
-    	    return vectorComponents[1];
+    	    return y;
     }
 
     /**
@@ -120,7 +116,7 @@ public class PhysicsVector {
     * @param y  y-component
     **/ 
     public void setY(double y) {
-        vectorComponents[1] = y;
+        this.y = y;
     }
 	
     /**
@@ -129,7 +125,7 @@ public class PhysicsVector {
      * @return z-component
      **/
     public double getZ(){
-	return vectorComponents[2];
+	return z;
     }
 
     /**
@@ -138,7 +134,7 @@ public class PhysicsVector {
     * @param z  z-component
     **/
     public void setZ(double z) {
-        vectorComponents[2] = z;
+        this.z = z;
     }
 	
     /**
@@ -147,11 +143,11 @@ public class PhysicsVector {
      * @return String <b> xi + yj</b>
      **/
     public String return2DString(){
-	String text = ""+vectorComponents[0]+"i ";
-	if (vectorComponents[1] < 0){
-		text += " -"+(-1*vectorComponents[1]);
+	String text = ""+x+"i ";
+	if (y < 0){
+		text += " -"+(-1*y);
 	}else{
-		text += " +"+(vectorComponents[1]);
+		text += " +"+(y);
 	}
 	text+="j ";
 	return text;
@@ -164,8 +160,8 @@ public class PhysicsVector {
      **/
     public String returnSimple2DString(){
 	String text = "";
-	text += vectorComponents[0] +" ";
-	text += vectorComponents[1] +" ";
+	text += x +" ";
+	text += y +" ";
 	return text;
     }
 	
@@ -176,17 +172,17 @@ public class PhysicsVector {
      * @return String <b> xi + yj + zk</b>
      **/
     public String returnString(){
-	String text = ""+vectorComponents[0]+"i ";
-	if (vectorComponents[1] < 0){
-		text += " -"+(-1*vectorComponents[1]);
+	String text = ""+x+"i ";
+	if (y < 0){
+		text += " -"+(-1*y);
 	}else{
-		text += " +"+(vectorComponents[1]);
+		text += " +"+(y);
 	}
 	text+="j ";
-	if (vectorComponents[2] < 0){
-		text += " -"+(-1*vectorComponents[2]);
+	if (z < 0){
+		text += " -"+(-1*z);
 	}else{
-		text += " +"+(vectorComponents[2]);
+		text += " +"+(z);
 	}
 		
 	text+="k ";
@@ -200,9 +196,9 @@ public class PhysicsVector {
      **/
     public String returnSimpleString(){
 	String text = "";
-	for (int i=0; i<vectorComponents.length; i++) {
-		text+=vectorComponents[i]+" ";
-	}
+	text += x +" ";
+	text += y +" ";
+	text += z +" ";
 	return text;
     }
 	
@@ -237,9 +233,9 @@ public class PhysicsVector {
      **/
     public String formatString(){
         String text = "";
-        for (int i=0; i<vectorComponents.length; i++) {
-            text+=String.format("%10.6f ", vectorComponents[i]);
-        }
+        text+=String.format("%10.6f ", x);
+        text+=String.format("%10.6f ", y);
+        text+=String.format("%10.6f ", z);
         return new String(text);
     }
 	
@@ -251,9 +247,9 @@ public class PhysicsVector {
      * @param z <code>z-component</code> of the vector	
      **/
     public void setVector(double x, double y, double z){
-	vectorComponents[0] = x;
-	vectorComponents[1] = y;
-	vectorComponents[2] = z;
+	this.x = x;
+	this.y = y;
+	this.z = z;
 		
     }
 	
@@ -264,9 +260,9 @@ public class PhysicsVector {
      * @param y <code>y-component</code> of the vector
      **/
     public void setVector(double x, double y){
-	vectorComponents[0] = x;
-	vectorComponents[1] = y;
-	vectorComponents[2] = 0.;
+	this.x = x;
+	this.y = y;
+	this.z = 0.;
 		
     }
 	
@@ -278,10 +274,9 @@ public class PhysicsVector {
      * modified vector.
      **/
     public void setVector(PhysicsVector v){
-	// Note: need to copy values not the array itself. 
-	for (int i=0; i<vectorComponents.length; i++) {
-		vectorComponents[i] = v.vectorComponents[i];
-	}
+	x = v.x;
+	y = v.y;
+	z = v.z;
 		
     }
 	
@@ -293,9 +288,23 @@ public class PhysicsVector {
      * @param v vector to be added to original vector. 
      **/
     public void increaseBy(PhysicsVector v) {
-	for (int i=0; i<vectorComponents.length; i++) {
-		vectorComponents[i] += v.vectorComponents[i];
-	}
+	x += v.x;
+	y += v.y;
+	z += v.z;
+    }
+    
+    /**
+     * Add the vector <b>v</b> scaled by <b>s</b> to the original vector,
+     * i.e. the same as <code>increaseBy(PhysicsVector.scale(s,v))</code> but
+     * without creating a temporary vector.
+     *
+     * @param s the factor to scale <b>v</b> by
+     * @param v vector to be scaled and added to original vector.
+     **/
+    public void increaseByScaled(double s, PhysicsVector v) {
+	x += s*v.x;
+	y += s*v.y;
+	z += s*v.z;
     }
     
    /**
@@ -303,9 +312,9 @@ public class PhysicsVector {
      * @param v vector to be subtracted from original vector. 
      **/
     public void decreaseBy(PhysicsVector v) {
-        for (int i = 0; i < vectorComponents.length; i++) {
-            vectorComponents[i] -= v.vectorComponents[i];
-        }
+        x -= v.x;
+        y -= v.y;
+        z -= v.z;
     }
     
     /**
@@ -348,9 +357,9 @@ public class PhysicsVector {
      * @param x the factor to scale the vector by.  
      **/
     public void scale(double x){
-	for (int i=0; i<vectorComponents.length; i++) {
-		vectorComponents[i] *= x;
-	}	
+	this.x *= x;
+	this.y *= x;
+	this.z *= x;
     }
 	
 	
@@ -363,11 +372,7 @@ public class PhysicsVector {
      * @param v the vector to scale
      **/
     public static PhysicsVector scale(double x, PhysicsVector v){
-	PhysicsVector scaled = new PhysicsVector(v);
-	for (int i=0; i<scaled.vectorComponents.length; i++) {
-		scaled.vectorComponents[i] *=x;
-	}
-	return scaled;
+	return new PhysicsVector(v.x*x, v.y*x, v.z*x);
     }
 	
 	
@@ -381,11 +386,7 @@ public class PhysicsVector {
      * @return return scalar product
      **/
     public static double dot(PhysicsVector v, PhysicsVector u){
-	double product = 0d;
-        for (int i = 0; i < v.vectorComponents.length; i++) {
-            product += v.vectorComponents[i] * u.vectorComponents[i];
-        }
-        return product;
+        return v.x * u.x + v.y * u.y + v.z * u.z;
     }
    /**
      * cross performs a standard vector cross product.
@@ -397,11 +398,42 @@ public class PhysicsVector {
     
     public static PhysicsVector cross(PhysicsVector v, PhysicsVector u) {
         return new PhysicsVector(
-            v.vectorComponents[1] * u.vectorComponents[2] - v.vectorComponents[2] * u.vectorComponents[1],
-            v.vectorComponents[2] * u.vectorComponents[0] - v.vectorComponents[0] * u.vectorComponents[2],
-            v.vectorComponents[0] * u.vectorComponents[1] - v.vectorComponents[1] * u.vectorComponents[0]);
+            v.y * u.z - v.z * u.y,
+            v.z * u.x - v.x * u.z,
+            v.x * u.y - v.y * u.x);
   
     }
+    
+   /**
+     * cross performs a standard vector cross product and stores the
+     * answer in <b>result</b> rather than creating a new vector.
+     * <b>result</b> may be the same object as <b>v</b> or <b>u</b>.
+     *
+     * @param v first vector in product
+     * @param u second vector in product
+     * @param result vector to hold the cross product
+     **/
+    public static void cross(PhysicsVector v, PhysicsVector u, PhysicsVector result) {
+        result.setVector(
+            v.y * u.z - v.z * u.y,
+            v.z * u.x - v.x * u.z,
+            v.x * u.y - v.y * u.x);
+    }
+    
+   /**
+     * returns the distance between the points <b>v</b> and <b>u</b>, i.e. the
+     * magnitude of <b>v-u</b>, without creating a temporary vector.
+     *
+     * @param v first point
+     * @param u second point
+     * @return magnitude of v-u
+     **/
+    public static double distance(PhysicsVector v, PhysicsVector u) {
+        double dx = v.x - u.x;
+        double dy = v.y - u.y;
+        double dz = v.z - u.z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
 	
     /**
      * standard vector addition. If <b> v = xi + yj</b>
@@ -413,9 +445,7 @@ public class PhysicsVector {
      * @return return summed vector
      **/
     public static PhysicsVector add(PhysicsVector v, PhysicsVector u){
-	PhysicsVector sum = new PhysicsVector(v);
-	sum.increaseBy(u);
-	return sum;
+	return new PhysicsVector(v.x + u.x, v.y + u.y, v.z + u.z);
     }
 	
     /**
@@ -428,9 +458,7 @@ public class PhysicsVector {
      * @return return v-u vector
      **/
     public static PhysicsVector subtract(PhysicsVector v, PhysicsVector u){
-	PhysicsVector diff = new PhysicsVector(v);
-	diff.decreaseBy(u);
-	return diff;
+	return new PhysicsVector(v.x - u.x, v.y - u.y, v.z - u.z);
     }
 	
      /**
@@ -462,11 +490,7 @@ public class PhysicsVector {
      * 
      **/
     public static boolean equals(PhysicsVector v, PhysicsVector u){
-	boolean equal = true;
-	for (int i=0; i<v.vectorComponents.length; i++) {
-		if (Math.abs(v.vectorComponents[i]-u.vectorComponents[i]) >=1.e-34) equal = false;
-	}
-	return equal;
+	return Math.abs(v.x-u.x) < 1.e-34 && Math.abs(v.y-u.y) < 1.e-34 && Math.abs(v.z-u.z) < 1.e-34;
     }
     
     /**
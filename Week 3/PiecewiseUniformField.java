@@ -0,0 +1,22 @@
+/**
+ * A magnetic field along z that is uniform on each side of the plane x = 0, as BunchSim.cyclotronBField, in which
+ * particles move on exact helices between crossings of the plane, so that HelixPropagator can move them analytically.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public interface PiecewiseUniformField extends FieldProvider {
+
+    /**
+     * Return the magnetic flux density on one side of the plane x = 0
+     * @param positiveX true for the region x>0, false for x=<0
+     * @return the z component of B there
+     */
+    double regionB(boolean positiveX);
+
+    /**
+     * Return whether the field is magnetic only, with no electric field; otherwise the motion is not a helix
+     * @return true if there is no electric field
+     */
+    boolean isMagnetostatic();
+}
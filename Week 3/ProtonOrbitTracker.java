@@ -27,7 +27,7 @@ public class ProtonOrbitTracker extends Particle {
      */
         public boolean hasOrbited(Proton proton){
 
-            double currentDis=(PhysicsVector.subtract(proton.getPosition(),origin)).magnitude();
+            double currentDis=PhysicsVector.distance(proton.getPositionView(),origin);
             boolean anOrbit=false;
 
             if (currentDis>=displacement){
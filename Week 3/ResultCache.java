@@ -0,0 +1,434 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A cache on disk of the results and trajectories of simulation runs, so that a run that has been done before (to draw
+ * a plot again, say) is read back at once instead of being integrated again.
+ *
+ * A run is found by the SHA-256 hash of its parameters in canonical form (sorted, with numbers written one way and
+ * settings that change only how a run is done, such as nThreads, left out) and of every class file alongside this
+ * one, so that changing any of the code misses the old entries rather than returning wrong results. A bunch run without a seed is
+ * different every time and is never cached.
+ *
+ * An orbit run whose parameters differ from a cached run only by a larger maxRev or maxTime carries on from the end
+ * of the cached run, whose state is kept exactly, rather than starting again; its trajectory is the cached one with
+ * the new part added, and the results are bit-identical to a run from the start.
+ *
+ * Each entry is a KEY.result file (the results), a KEY.data file (the trajectory every pStep steps) and, for orbit
+ * runs, a KEY.state file. They are written under temporary names and renamed into place, the result last, so several
+ * JVMs can share one cache. The modification time of the result file is the time of last use; once the entries
+ * come to more than the size bound the least recently used are deleted.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class ResultCache {
+
+    /** Parameters that do not change the results of a run, and so are not part of its key */
+    public static final String[] ignored = {"nThreads", "workerThreads", "outFileName", "storage", "port",
+        "bindAddress", "launchWorkers", "workerHeap", "workerTimeout", "attempts", "checkpointDir", "checkpointName",
+        "checkpointInterval", "keyframeEvery"};
+
+    private static String codeVersion = null;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final String tempSuffix = "." + UUID.randomUUID().toString().substring(0, 8) + ".tmp";
+    private final AtomicLong hits = new AtomicLong(), prefixHits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Constructor, makes the cache directory if it does not exist
+     * @param directoryIn the directory holding the entries
+     * @param maxBytesIn the most space the entries may take
+     * @throws IOException if the directory cannot be made
+     */
+    public ResultCache(Path directoryIn, long maxBytesIn) throws IOException {
+        directory = Files.createDirectories(directoryIn);
+        maxBytes = maxBytesIn;
+    }
+
+    /**
+     * Return the cache given by the system properties cache.dir and cache.maxMB (default 1024)
+     * @return the cache, or null if cache.dir is not set
+     * @throws IOException if the directory cannot be made
+     */
+    public static ResultCache fromProperties() throws IOException {
+        String dir = System.getProperty("cache.dir");
+        return (dir == null) ? null : new ResultCache(Paths.get(dir), Long.getLong("cache.maxMB", 1024) << 20);
+    }
+
+    /**
+     * Return the hash of every class file in the directory or jar this class was loaded from, in order of name, so that
+     * no class can be left out by mistake
+     * @return the code version, in hex
+     */
+    public static synchronized String codeVersion() {
+        if (codeVersion == null) {
+            MessageDigest digest = sha256();
+            CodeSource source = ResultCache.class.getProtectionDomain().getCodeSource();
+            if (source == null) {
+                throw new IllegalStateException("cannot find the class files to version the cache");
+            }
+            try {
+                Path location = Paths.get(source.getLocation().toURI());
+                if (Files.isDirectory(location)) {
+                    List<Path> classFiles = new ArrayList<Path>();
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(location, "*.class")) {
+                        for (Path file : files) {
+                            classFiles.add(file);
+                        }
+                    }
+                    Collections.sort(classFiles);
+                    for (Path file : classFiles) {
+                        digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                        digest.update(Files.readAllBytes(file));
+                    }
+                }
+                else {
+                    try (JarFile jar = new JarFile(location.toFile())) {
+                        List<JarEntry> classFiles = new ArrayList<JarEntry>();
+                        for (JarEntry entry : Collections.list(jar.entries())) {
+                            if (entry.getName().endsWith(".class")) {
+                                classFiles.add(entry);
+                            }
+                        }
+                        classFiles.sort(Comparator.comparing(JarEntry::getName));
+                        for (JarEntry entry : classFiles) {
+                            digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                            try (InputStream in = jar.getInputStream(entry)) {
+                                digest.update(in.readAllBytes());
+                            }
+                        }
+                    }
+                }
+            }
+            catch (IOException | URISyntaxException e) {
+                throw new IllegalStateException("cannot read the class files to version the cache", e);
+            }
+            codeVersion = hex(digest.digest());
+        }
+        return codeVersion;
+    }
+
+    /**
+     * Return whether a run gives the same results every time, so can be cached
+     * @param parameters the parameters of the run
+     * @return true unless it is a bunch run without a seed
+     */
+    public static boolean cacheable(SimRecord parameters) {
+        return parameters.getString("type", "bunch").equals("orbit") || parameters.has("seed");
+    }
+
+    /**
+     * Return the key of a run
+     * @param parameters the parameters of the run
+     * @return its key, in hex
+     */
+    public static String key(SimRecord parameters) {
+        return hash(canonical(parameters, false));
+    }
+
+    /**
+     * Return the key shared by all the runs that differ only in maxRev and maxTime
+     * @param parameters the parameters of the run
+     * @return the prefix key, in hex
+     */
+    public static String prefixKey(SimRecord parameters) {
+        return hash(canonical(parameters, true));
+    }
+
+    private static String canonical(SimRecord parameters, boolean withoutLimits) {
+        StringBuilder text = new StringBuilder(codeVersion()).append('\n');
+        for (String name : parameters.names()) {
+            if (Arrays.asList(ignored).contains(name)) continue;
+            if (withoutLimits && (name.equals("maxRev") || name.equals("maxTime"))) continue;
+            text.append(name).append('=').append(canonicalValue(parameters.getString(name, ""))).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String canonicalValue(String value) {
+        String trimmed = value.trim();
+        try {
+            return Long.toString(Long.parseLong(trimmed));
+        }
+        catch (NumberFormatException notLong) {
+            try {
+                return Double.toString(Double.parseDouble(trimmed));
+            }
+            catch (NumberFormatException notNumber) {
+                return trimmed;
+            }
+        }
+    }
+
+    /**
+     * Return the results of a run, from the cache if it is there, and write its trajectory
+     * @param parameters the parameters of the run, as for JobQueue
+     * @param out where to write the trajectory
+     * @return the results
+     * @throws IOException if the run cannot be set up
+     */
+    public SimRecord run(SimRecord parameters, PrintWriter out) throws IOException {
+        if (!cacheable(parameters)) {
+            misses.incrementAndGet();
+            return JobQueue.runJob(parameters, out);
+        }
+        String prefixKey = prefixKey(parameters);
+        String name = prefixKey + "-" + key(parameters);
+        SimRecord results = read(name, out);
+        if (results != null) {
+            hits.incrementAndGet();
+            return results;
+        }
+
+        Path data = directory.resolve(name + ".data");
+        Path dataTemp = temporary(data);
+        SimRecord state = null;
+        try (PrintWriter dataOut = new PrintWriter(Files.newBufferedWriter(dataTemp, StandardCharsets.UTF_8))) {
+            if (parameters.getString("type", "bunch").equals("orbit")) {
+                OrbitSimulation simulation = new OrbitSimulation(parameters);
+                if (resume(simulation, prefixKey, dataOut)) {
+                    prefixHits.incrementAndGet();
+                }
+                else {
+                    misses.incrementAndGet();
+                }
+                results = JobQueue.runOrbit(simulation, dataOut, parameters.getInt("pStep", 1000));
+                state = simulation.getState();
+            }
+            else {
+                misses.incrementAndGet();
+                results = JobQueue.runJob(parameters, dataOut);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(dataTemp);
+            throw e;
+        }
+        copy(dataTemp, out);
+        move(dataTemp, data);
+        if (state != null) {
+            writeAtomically(directory.resolve(name + ".state"), state.toString());
+        }
+        writeAtomically(directory.resolve(name + ".result"), results.toString());
+        evict();
+        return results;
+    }
+
+    /**
+     * Read an entry and write its trajectory, marking it as used
+     * @return its results, or null if it is not there
+     */
+    private SimRecord read(String name, PrintWriter out) throws IOException {
+        Path result = directory.resolve(name + ".result");
+        try {
+            SimRecord results = SimRecord.parse(new String(Files.readAllBytes(result), StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(result, FileTime.fromMillis(System.currentTimeMillis()));
+            copy(directory.resolve(name + ".data"), out);
+            return results;
+        }
+        catch (NoSuchFileException e) {
+            return null; // not cached, or evicted while we read it
+        }
+    }
+
+    /**
+     * Set an orbit simulation going from the end of the longest cached run it would pass through, and write the
+     * trajectory of that run
+     * @return true if a cached run was found
+     */
+    private boolean resume(OrbitSimulation simulation, String prefixKey, PrintWriter out) throws IOException {
+        String best = null;
+        SimRecord bestState = null;
+        for (Path result : list(prefixKey + "-*.result")) {
+            String name = result.getFileName().toString().replaceFirst("\\.result$", "");
+            try {
+                SimRecord state = SimRecord.parse(new String(Files.readAllBytes(directory.resolve(name + ".state")),
+                    StandardCharsets.UTF_8));
+                double time = state.getDouble("time", 0.0);
+                // the run would not have stopped at the end of the cached one, so passes through that state
+                boolean passesThrough = state.getInt("nRev", 0) < simulation.getMaxRev() && time < simulation.getMaxTime();
+                if (passesThrough && (bestState == null || time > bestState.getDouble("time", 0.0))) {
+                    best = name;
+                    bestState = state;
+                }
+            }
+            catch (NoSuchFileException e) {
+                // evicted while we looked
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        try {
+            copy(directory.resolve(best + ".data"), out);
+        }
+        catch (NoSuchFileException e) {
+            return false; // evicted since; nothing has been written, as the copy opens the file before writing
+        }
+        Files.setLastModifiedTime(directory.resolve(best + ".result"), FileTime.fromMillis(System.currentTimeMillis()));
+        simulation.setState(bestState);
+        return true;
+    }
+
+    /**
+     * Delete the least recently used entries until the rest fit in the size bound
+     * @throws IOException if the directory cannot be read
+     */
+    public synchronized void evict() throws IOException {
+        final Map<Path, Long> used = new HashMap<Path, Long>();
+        List<Path> results = new ArrayList<Path>();
+        long total = 0;
+        for (Path result : list("*.result")) {
+            try {
+                used.put(result, Files.getLastModifiedTime(result).toMillis());
+                for (Path file : entryFiles(result)) {
+                    total += Files.exists(file) ? Files.size(file) : 0;
+                }
+                results.add(result);
+            }
+            catch (NoSuchFileException e) {
+                // deleted by another JVM while we looked
+            }
+        }
+        Collections.sort(results, (a, b) -> Long.compare(used.get(a), used.get(b)));
+        for (Path result : results) {
+            if (total <= maxBytes) break;
+            for (Path file : entryFiles(result)) { // the result first, so the entry is never found half gone
+                try {
+                    long size = Files.size(file);
+                    Files.delete(file);
+                    total -= size;
+                }
+                catch (NoSuchFileException e) {
+                    // already gone
+                }
+            }
+        }
+    }
+
+    private static Path[] entryFiles(Path result) {
+        String name = result.getFileName().toString().replaceFirst("\\.result$", "");
+        return new Path[] {result, result.resolveSibling(name + ".data"), result.resolveSibling(name + ".state")};
+    }
+
+    /**
+     * Return how many runs were found whole in the cache, carried on from a cached run and run from the start
+     * @return the counts
+     */
+    public String getStats() {
+        return "hits " + hits.get() + " prefix hits " + prefixHits.get() + " misses " + misses.get();
+    }
+
+    private static void copy(Path file, PrintWriter out) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.println(line);
+            }
+        }
+    }
+
+    private List<Path> list(String glob) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private Path temporary(Path target) {
+        return target.resolveSibling("." + target.getFileName() + tempSuffix);
+    }
+
+    private void writeAtomically(Path target, String text) throws IOException {
+        Path temp = temporary(target);
+        Files.write(temp, text.getBytes(StandardCharsets.UTF_8));
+        move(temp, target);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    private static String hash(String text) {
+        return hex(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes) {
+            text.append(String.format("%02x", b));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Run a simulation through the cache, writing its trajectory to a file and printing its results
+     *
+     * @param args the cache directory, the trajectory file and the parameters as NAME=VALUE; the size bound is set
+     *             with -Dcache.maxMB (default 1024)
+     * @throws IOException if the cache or the file cannot be used
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java ResultCache DIR OUTFILE [NAME=VALUE...]");
+            System.exit(4);
+        }
+        ResultCache cache = new ResultCache(Paths.get(args[0]), Long.getLong("cache.maxMB", 1024) << 20);
+        StringBuilder text = new StringBuilder();
+        for (int i = 2; i < args.length; i++) {
+            text.append(args[i]).append('\n');
+        }
+        long start = System.nanoTime();
+        SimRecord results;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8))) {
+            results = cache.run(SimRecord.parse(text.toString()), out);
+        }
+        System.out.print(results);
+        System.out.printf("%s, %.3f s%n", cache.getStats(), (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * The classical fourth order Runge-Kutta method, taking the field four times a step: at the start, twice at the
+ * middle and at the end. Its error per step falls as the fifth power of the time step against the second power for
+ * Euler, so it can take far longer steps for the same accuracy.
+ *
+ * The start state and the running sum of the stages are kept for each particle in scratch arrays owned by the thread
+ * doing the step, so one RungeKutta4 can be shared by every thread of a ParallelStepper.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class RungeKutta4 implements Integrator {
+
+    private static final int nState = 6; // x, y, z, vx, vy, vz: the columns ParticleStore.X to VZ
+
+    private final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[2 * nState][0]);
+
+    @Override
+    public void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field) {
+        int n = to - from;
+        double[][] s = scratch.get();
+        if (s[0].length < n) {
+            for (int j = 0; j < s.length; j++) {
+                s[j] = new double[n];
+            }
+        }
+        double start = time - timeStep;
+        double half = 0.5 * timeStep;
+
+        for (int c = 0; c < nState; c++) { // keep the start state
+            double[] start0 = s[c];
+            for (int i = 0; i < n; i++) {
+                start0[i] = store.get(ParticleStore.X + c, from + i);
+            }
+        }
+        field.accelerate(store, from, to, start);
+        stage(store, from, n, s, 1.0, half, true);
+        field.accelerate(store, from, to, start + half);
+        stage(store, from, n, s, 2.0, half, false);
+        field.accelerate(store, from, to, start + half);
+        stage(store, from, n, s, 2.0, timeStep, false);
+        field.accelerate(store, from, to, time);
+
+        double sixth = timeStep / 6.0;
+        for (int c = 0; c < nState; c++) { // y = y0 + dt/6 (k1 + 2 k2 + 2 k3 + k4), positions first as in stage
+            double[] y0 = s[c], sum = s[nState + c];
+            int rate = rateColumn(c);
+            for (int i = 0; i < n; i++) {
+                store.set(ParticleStore.X + c, from + i, y0[i] + sixth * (sum[i] + store.get(rate, from + i)));
+            }
+        }
+    }
+
+    /**
+     * Add the rates (velocity and acceleration) held in the store, times weight, to the running sum and put the
+     * particles at the start state plus dt times those rates, ready for the next stage. The positions are done first,
+     * so they are moved with the velocities of this stage before these are changed.
+     */
+    private static void stage(ParticleStore store, int from, int n, double[][] s, double weight, double dt, boolean first) {
+        for (int c = 0; c < nState; c++) {
+            int rate = rateColumn(c);
+            double[] y0 = s[c], sum = s[nState + c];
+            for (int i = 0; i < n; i++) {
+                double r = store.get(rate, from + i);
+                sum[i] = first ? r : sum[i] + weight * r;
+                store.set(ParticleStore.X + c, from + i, y0[i] + dt * r);
+            }
+        }
+    }
+
+    /**
+     * Return the column holding the rate of change of state column c: the velocity for a position, the acceleration
+     * for a velocity
+     */
+    static int rateColumn(int c) {
+        return (c < 3) ? ParticleStore.VX + c : ParticleStore.AX + c - 3;
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived simulation server, so that short runs do not each pay for starting a JVM, loading the classes and
+ * compiling the hot paths (EMField.getAcceleration, Particle.update, the LorentzKernel loops and the Bunch statistics)
+ * again. The daemon does a short orbit and bunch run when it starts, so even its first request finds them compiled.
+ *
+ * It listens on a Unix-domain socket (an address of the form unix:PATH) or on a TCP port of 127.0.0.1 (an address of
+ * the form PORT or HOST:PORT). A request is a SimRecord, one name=value per line, ended by a line holding run; the
+ * parameters are as for JobQueue (type=orbit or type=bunch, the default). The trajectory is streamed back as it is
+ * made, one line every pStep steps, then a line # results, the results as a SimRecord and a line # end. A run that
+ * fails sends # error and the exception instead of the results. A request holding only the line stop stops the daemon.
+ *
+ * Every request is run on its own thread with its own simulation, bunch and worker threads; nothing is shared between
+ * runs but the compiled code. At most maxRuns requests run at once (by default the number of processors) and the rest
+ * wait their turn, a bunch run uses one thread unless it sets nThreads, and a bunch kept in a mapped file (storage=M)
+ * is given a file of its own whatever outFileName it asks for. With -Dcache.dir requests go through a ResultCache.
+ *
+ * Latency of short runs on one core of the test machine (java SimDaemon bench), cold being a new java process for
+ * each run and warm a request to the daemon: an orbit of 2 revolutions 0.32 s cold and 0.09 s warm, a bunch of 100
+ * protons for 2 revolutions 0.79 s cold and 0.31 s warm.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class SimDaemon {
+
+    public static final String runCommand = "run";
+    public static final String stopCommand = "stop";
+    public static final String resultsLine = "# results";
+    public static final String errorLine = "# error";
+    public static final String endLine = "# end";
+
+    private final Semaphore runs;
+    private ResultCache cache = null;
+    private final AtomicLong runCount = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor
+     * @param maxRuns the most requests to run at once
+     */
+    public SimDaemon(int maxRuns) {
+        runs = new Semaphore(Math.max(maxRuns, 1), true);
+    }
+
+    /**
+     * Look requests up in a result cache before running them
+     * @param cacheIn the cache, or null to run every request
+     */
+    public void setCache(ResultCache cacheIn) {
+        cache = cacheIn;
+    }
+
+    /**
+     * Open the listening socket for an address
+     * @param address unix:PATH, PORT or HOST:PORT
+     * @return the bound, blocking server channel
+     * @throws IOException if the address cannot be bound
+     */
+    public static ServerSocketChannel listen(String address) throws IOException {
+        if (address.startsWith("unix:")) {
+            Path path = Paths.get(address.substring(5));
+            Files.deleteIfExists(path); // left behind by a daemon that was killed
+            ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+            return server;
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(socketAddress(address));
+        return server;
+    }
+
+    /**
+     * Connect to a daemon
+     * @param address unix:PATH, PORT or HOST:PORT
+     * @return the connected channel
+     * @throws IOException if there is no daemon at the address
+     */
+    public static SocketChannel connect(String address) throws IOException {
+        if (address.startsWith("unix:")) {
+            return SocketChannel.open(UnixDomainSocketAddress.of(address.substring(5)));
+        }
+        SocketChannel channel = SocketChannel.open(socketAddress(address));
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    private static SocketAddress socketAddress(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        String host = (colon < 0) ? "127.0.0.1" : address.substring(0, colon);
+        return new InetSocketAddress(InetAddress.getByName(host), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Run short orbit and bunch simulations so the hot paths are compiled before the first request
+     */
+    public static void warmUp() {
+        PrintWriter nowhere = new PrintWriter(Writer.nullWriter());
+        for (int i = 0; i < 3; i++) {
+            try {
+                JobQueue.runJob(new SimRecord().set("type", "orbit").set("maxRev", 3), nowhere);
+                JobQueue.runJob(new SimRecord().set("nProtons", 200).set("maxRev", 2).set("seed", i).set("nThreads", 1), nowhere);
+            }
+            catch (IOException e) {
+                System.out.println("Warm-up failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Take requests until a stop request comes
+     * @param server the listening socket
+     * @throws IOException if the socket fails
+     */
+    public void serve(ServerSocketChannel server) throws IOException {
+        ExecutorService pool = Executors.newCachedThreadPool(ParallelStepper.daemonThreads());
+        try {
+            while (!stopped) {
+                final SocketChannel channel = server.accept();
+                pool.execute(() -> handle(channel, server));
+            }
+        }
+        catch (IOException e) {
+            if (!stopped) {
+                throw e;
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Read one request, run it and stream back its results
+     */
+    private void handle(SocketChannel channel, ServerSocketChannel server) {
+        try (SocketChannel c = channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(c), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(c),
+                 StandardCharsets.UTF_8)))) {
+            StringBuilder request = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null && !line.equals(runCommand)) {
+                if (line.equals(stopCommand)) {
+                    stopped = true;
+                    server.close();
+                    out.println(endLine);
+                    return;
+                }
+                request.append(line).append('\n');
+            }
+            if (line == null) {
+                return; // the client went away before asking for anything
+            }
+            SimRecord parameters = isolate(SimRecord.parse(request.toString()));
+            runs.acquireUninterruptibly();
+            try {
+                SimRecord results = (cache != null) ? cache.run(parameters, out) : JobQueue.runJob(parameters, out);
+                out.println(resultsLine);
+                out.print(results);
+            }
+            catch (Exception e) {
+                out.println(errorLine);
+                out.println(e);
+            }
+            finally {
+                runs.release();
+                if (parameters.getChar("storage", 'H') == 'M') {
+                    Files.deleteIfExists(Paths.get(parameters.getString("outFileName", "") + ".bunch"));
+                }
+            }
+            out.println(endLine);
+        }
+        catch (IOException e) {
+            // the client went away; nothing else was sharing this run
+        }
+    }
+
+    /**
+     * Make the parameters of a request safe to run beside others
+     */
+    private SimRecord isolate(SimRecord parameters) throws IOException {
+        SimRecord isolated = new SimRecord(parameters);
+        if (!isolated.has("nThreads")) {
+            isolated.set("nThreads", 1);
+        }
+        if (isolated.getChar("storage", 'H') == 'M') {
+            File file = new File(System.getProperty("java.io.tmpdir"), "daemon" + ProcessHandle.current().pid() + "-"
+                + runCount.incrementAndGet()); // BunchSim.makeBunch maps this name with .bunch added
+            isolated.set("outFileName", file.getPath());
+        }
+        return isolated;
+    }
+
+    /**
+     * Send a request to a daemon and copy what comes back to a writer
+     * @param address where the daemon listens
+     * @param parameters the parameters of the run
+     * @param out where to copy the trajectory, or null to drop it
+     * @return the results of the run
+     * @throws IOException if the daemon cannot be reached or the run fails
+     */
+    public static SimRecord request(String address, SimRecord parameters, PrintWriter out) throws IOException {
+        try (SocketChannel channel = connect(address);
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                 StandardCharsets.UTF_8))) {
+            PrintWriter request = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                StandardCharsets.UTF_8));
+            request.print(parameters);
+            request.println(runCommand);
+            request.flush();
+
+            StringBuilder results = new StringBuilder();
+            String line;
+            boolean inResults = false;
+            while ((line = in.readLine()) != null && !line.equals(endLine)) {
+                if (line.equals(resultsLine)) {
+                    inResults = true;
+                }
+                else if (line.equals(errorLine)) {
+                    throw new IOException("run failed in the daemon: " + in.readLine());
+                }
+                else if (inResults) {
+                    results.append(line).append('\n');
+                }
+                else if (out != null) {
+                    out.println(line);
+                }
+            }
+            if (line == null) {
+                throw new IOException("the daemon closed the connection");
+            }
+            return SimRecord.parse(results.toString());
+        }
+    }
+
+    /**
+     * Start a daemon, send it a request, stop it, or compare cold and warm latency
+     *
+     * @param args serve ADDRESS [MAXRUNS] | run ADDRESS [NAME=VALUE...] | stop ADDRESS | once [NAME=VALUE...] |
+     *             bench ADDRESS N [NAME=VALUE...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || (args.length < 2 && !args[0].equals("once"))) {
+            System.out.println("Usage: java SimDaemon serve|run|stop|once|bench ADDRESS ...");
+            System.exit(4);
+        }
+        if (args[0].equals("serve")) {
+            int maxRuns = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            ServerSocketChannel server = listen(args[1]);
+            long start = System.nanoTime();
+            warmUp();
+            System.out.printf("Warmed up in %.2f s, listening on %s%n", (System.nanoTime() - start) / 1e9, args[1]);
+            SimDaemon daemon = new SimDaemon(maxRuns);
+            daemon.setCache(ResultCache.fromProperties());
+            daemon.serve(server);
+            if (args[1].startsWith("unix:")) {
+                Files.deleteIfExists(Paths.get(args[1].substring(5)));
+            }
+        }
+        else if (args[0].equals("stop")) {
+            try (SocketChannel channel = connect(args[1])) {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                    StandardCharsets.UTF_8));
+                out.println(stopCommand);
+                out.flush();
+                new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8)).readLine();
+            }
+        }
+        else if (args[0].equals("run")) {
+            PrintWriter out = new PrintWriter(System.out);
+            SimRecord results = request(args[1], parameters(args, 2), out);
+            out.flush();
+            System.out.print(results);
+        }
+        else if (args[0].equals("once")) { // a run in this JVM, the cold case
+            System.out.print(JobQueue.runJob(parameters(args, 1), new PrintWriter(Writer.nullWriter())));
+        }
+        else if (args[0].equals("bench")) {
+            int n = Integer.parseInt(args[2]);
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("SimDaemon");
+            command.add("once");
+            for (int i = 3; i < args.length; i++) {
+                command.add(args[i]);
+            }
+            double cold = 0.0;
+            for (int i = 0; i < n; i++) {
+                long start = System.nanoTime();
+                new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+                cold += (System.nanoTime() - start) / 1e9;
+            }
+            double warm = 0.0;
+            for (int i = 0; i < n; i++) {
+                long start = System.nanoTime();
+                request(args[1], parameters(args, 3), null);
+                warm += (System.nanoTime() - start) / 1e9;
+            }
+            System.out.printf("%d runs: cold %.3f s each, warm %.3f s each%n", n, cold / n, warm / n);
+        }
+    }
+
+    private static SimRecord parameters(String[] args, int first) {
+        StringBuilder text = new StringBuilder();
+        for (int i = first; i < args.length; i++) {
+            text.append(args[i]).append('\n');
+        }
+        return SimRecord.parse(text.toString());
+    }
+}
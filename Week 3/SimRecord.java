@@ -0,0 +1,161 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of named values describing a simulation run, either its parameters or its results.
+ * Values are kept as text, sorted by name, and written one "name=value" per line, so two records
+ * with the same contents always have the same text form.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class SimRecord {
+
+    private final TreeMap<String, String> values = new TreeMap<String, String>();
+
+    /**
+     * Default constructor, an empty record
+     */
+    public SimRecord() {
+    }
+
+    /**
+     * Copy constructor
+     * @param other the record to copy
+     */
+    public SimRecord(SimRecord other) {
+        values.putAll(other.values);
+    }
+
+    /**
+     * Set a value
+     * @param name the name of the value
+     * @param value the value, stored as text
+     * @return this record, so calls can be chained
+     */
+    public SimRecord set(String name, Object value) {
+        values.put(name, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Copy every value of another record into this one, replacing values with the same name
+     * @param other the record to copy from
+     * @return this record
+     */
+    public SimRecord setAll(SimRecord other) {
+        values.putAll(other.values);
+        return this;
+    }
+
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    public String getString(String name, String defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : Double.parseDouble(value);
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : Long.parseLong(value);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    public char getChar(String name, char defaultValue) {
+        String value = values.get(name);
+        return (value == null || value.isEmpty()) ? defaultValue : value.charAt(0);
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Return the names of all the values, in sorted order
+     * @return the names
+     */
+    public Iterable<String> names() {
+        return values.keySet();
+    }
+
+    /**
+     * Return the record in its text form: one "name=value" per line, sorted by name
+     * @return the text form
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof SimRecord) && values.equals(((SimRecord) other).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    /**
+     * Read a record from its text form. Blank lines and lines starting with # are ignored.
+     * @param text the text form
+     * @return the record
+     */
+    public static SimRecord parse(String text) {
+        try {
+            return read(new BufferedReader(new StringReader(text)));
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e); // cannot happen reading a string
+        }
+    }
+
+    /**
+     * Read a record from a file holding its text form
+     * @param file the file
+     * @return the record
+     * @throws IOException if the file cannot be read
+     */
+    public static SimRecord load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return read(reader);
+        }
+    }
+
+    private static SimRecord read(BufferedReader reader) throws IOException {
+        SimRecord record = new SimRecord();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int equals = line.indexOf('=');
+            if (equals < 0) {
+                throw new IOException("expected name=value but found: " + line);
+            }
+            record.values.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+        }
+        return record;
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Something that works on published snapshots of a bunch, such as printing diagnostics or writing files.
+ * Each consumer runs on its own thread. The snapshot's state is recycled once every consumer has
+ * returned, so a consumer must not keep a reference to it.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public interface SnapshotConsumer {
+
+    /**
+     * Work on a snapshot
+     * @param snapshot the state of the bunch at some time
+     */
+    void accept(BunchSnapshot snapshot);
+}
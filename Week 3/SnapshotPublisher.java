@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Hands copies of the bunch state to diagnostics and output consumers running on their own threads,
+ * so that the integrator does not stop while the bunch is printed or written out.
+ *
+ * A fixed number of state buffers is allocated up front (two gives double buffering). Publishing copies
+ * the bunch into a free buffer; the buffer is recycled once every consumer has finished with it. If the
+ * consumers fall behind and no buffer is free, publish waits, so memory use is bounded and the
+ * integrator is slowed down to the pace of the consumers rather than queueing without limit.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class SnapshotPublisher implements AutoCloseable {
+
+    private static final BunchSnapshot endOfStream = new BunchSnapshot(0, 0, 0, null, 0);
+
+    private final BlockingQueue<ArrayParticleStore> free; // buffers ready to be filled
+    private final List<BlockingQueue<BunchSnapshot>> queues = new ArrayList<BlockingQueue<BunchSnapshot>>(); // one per consumer
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile Throwable failure = null; // first exception thrown by a consumer
+
+    /**
+     * Constructor
+     * @param nBuffers the number of state buffers, i.e. the most snapshots alive at once
+     * @param consumers the consumers, each run on its own thread and shown every snapshot in order
+     */
+    public SnapshotPublisher(int nBuffers, SnapshotConsumer... consumers) {
+        free = new ArrayBlockingQueue<ArrayParticleStore>(Math.max(nBuffers, 1));
+        for (int b = 0; b < Math.max(nBuffers, 1); b++) {
+            free.add(new ArrayParticleStore());
+        }
+        for (final SnapshotConsumer consumer : consumers) {
+            final BlockingQueue<BunchSnapshot> queue = new LinkedBlockingQueue<BunchSnapshot>(); // never holds more than nBuffers
+            queues.add(queue);
+            Thread worker = new Thread(() -> consume(consumer, queue), "snapshot-consumer-" + workers.size());
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    private void consume(SnapshotConsumer consumer, BlockingQueue<BunchSnapshot> queue) {
+        try {
+            while (true) {
+                BunchSnapshot snapshot = queue.take();
+                if (snapshot == endOfStream) {
+                    return;
+                }
+                try {
+                    consumer.accept(snapshot);
+                }
+                catch (RuntimeException e) {
+                    if (failure == null) failure = e;
+                }
+                finally {
+                    if (snapshot.release()) {
+                        free.add(snapshot.buffer());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copy the state of a bunch into a free buffer and hand it to every consumer.
+     * Waits for a buffer if all of them are still in use.
+     * @param state the particle states to copy
+     * @param time simulation time of the snapshot
+     * @param nRev number of revolutions completed
+     * @param period period of the last revolution
+     */
+    public void publish(ParticleStore state, double time, int nRev, double period) {
+        if (failure != null) {
+            throw new IllegalStateException("snapshot consumer failed", failure);
+        }
+        if (queues.isEmpty()) {
+            return;
+        }
+        try {
+            ArrayParticleStore buffer = free.take();
+            state.copyTo(buffer);
+            BunchSnapshot snapshot = new BunchSnapshot(time, nRev, period, buffer, queues.size());
+            for (BlockingQueue<BunchSnapshot> queue : queues) {
+                queue.put(snapshot);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while publishing a snapshot", e);
+        }
+    }
+
+    /**
+     * Wait for the consumers to finish every published snapshot and stop their threads
+     */
+    @Override
+    public void close() {
+        try {
+            for (BlockingQueue<BunchSnapshot> queue : queues) {
+                queue.put(endOfStream);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while closing the snapshot publisher", e);
+        }
+        if (failure != null) {
+            throw new IllegalStateException("snapshot consumer failed", failure);
+        }
+    }
+}
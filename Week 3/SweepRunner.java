@@ -0,0 +1,179 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a BunchSimulation for every point of a sweep (for example a ParameterGrid) on a fixed pool of compute threads,
+ * and streams one line of results per point to a single file as each run finishes.
+ *
+ * Memory is bounded whatever the number of points: the points are taken from the sweep only when a run can be
+ * started, a run is only started once its estimated memory (BunchSimulation.memoryEstimate) fits in what is left of
+ * the memory budget, and results are written out rather than kept. A run bigger than the whole budget waits until
+ * it can run on its own. Lines are written in the order runs finish; the index column gives the point of each line.
+ * With storage=M each point maps a file of its own, outFileName with the index of the point added, which is deleted
+ * when the run is over.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class SweepRunner {
+
+    /** Results written for each run, after the index and the swept parameters */
+    public static final String[] resultColumns = {"nRev", "time", "simPeriod", "periodError", "radius", "finalRadius",
+        "spreadX", "spreadY", "spreadsEqual"};
+
+    private final int nThreads;
+    private final int budgetKB; // memory budget in kB, the unit of the budget semaphore
+
+    /**
+     * Constructor
+     * @param nThreadsIn the number of runs at once
+     * @param memoryBudget the most memory, in bytes, that runs in progress may hold between them
+     */
+    public SweepRunner(int nThreadsIn, long memoryBudget) {
+        nThreads = Math.max(nThreadsIn, 1);
+        budgetKB = (int) Math.max(Math.min(memoryBudget / 1024, Integer.MAX_VALUE), 1);
+    }
+
+    /**
+     * Run every point of a sweep and write the results. Each run pushes its bunch on one thread unless the point
+     * sets nThreads, since the sweep itself keeps every core busy.
+     * @param points the parameters of each run, taken one at a time
+     * @param columns the parameters to write for each run (normally those that change over the sweep)
+     * @param out where to write the results
+     * @return the number of runs
+     */
+    public long run(Iterable<SimRecord> points, String[] columns, final PrintWriter out) {
+        final Semaphore budget = new Semaphore(budgetKB);
+        final Semaphore slots = new Semaphore(2 * nThreads); // runs started or waiting for a thread
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads, ParallelStepper.daemonThreads());
+
+        out.print("# index");
+        for (String column : columns) {
+            out.print(" " + column);
+        }
+        for (String column : resultColumns) {
+            out.print(" " + column);
+        }
+        out.println();
+        out.flush();
+
+        long index = 0;
+        try {
+            for (SimRecord point : points) {
+                final SimRecord parameters = new SimRecord(point);
+                if (!parameters.has("nThreads")) {
+                    parameters.set("nThreads", 1);
+                }
+                final int cost = (int) Math.min(BunchSimulation.memoryEstimate(parameters) / 1024 + 1, budgetKB);
+                final long pointIndex = index++;
+                if (parameters.getChar("storage", 'H') == 'M') {
+                    // runs go on at once, so each maps a file of its own (BunchSim.makeBunch adds .bunch)
+                    parameters.set("outFileName", parameters.getString("outFileName", "week2.data") + "." + pointIndex);
+                }
+                slots.acquire();
+                budget.acquire(cost);
+                pool.execute(() -> {
+                    try {
+                        SimRecord results = runPoint(parameters);
+                        writeLine(out, pointIndex, parameters, columns, results);
+                    }
+                    finally {
+                        budget.release(cost);
+                        slots.release();
+                    }
+                });
+            }
+            slots.acquire(2 * nThreads); // wait for the last runs
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while running the sweep", e);
+        }
+        finally {
+            pool.shutdown();
+        }
+        return index;
+    }
+
+    /**
+     * Run one point of the sweep
+     * @param parameters the parameters of the run
+     * @return the results, or a record holding only the error if the run failed
+     */
+    private static SimRecord runPoint(SimRecord parameters) {
+        try (BunchSimulation simulation = new BunchSimulation(parameters)) {
+            return simulation.run();
+        }
+        catch (Exception e) {
+            return new SimRecord().set("error", e);
+        }
+        finally {
+            if (parameters.getChar("storage", 'H') == 'M') {
+                try {
+                    Files.deleteIfExists(Paths.get(parameters.getString("outFileName", "week2.data") + ".bunch"));
+                }
+                catch (IOException e) {
+                    // the file is left behind; the results are not affected
+                }
+            }
+        }
+    }
+
+    private static void writeLine(PrintWriter out, long index, SimRecord parameters, String[] columns, SimRecord results) {
+        StringBuilder line = new StringBuilder().append(index);
+        for (String column : columns) {
+            line.append(' ').append(parameters.getString(column, "-"));
+        }
+        for (String column : resultColumns) {
+            line.append(' ').append(results.getString(column, "NaN"));
+        }
+        if (results.has("error")) {
+            line.append(" # ").append(results.getString("error", ""));
+        }
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+    /**
+     * Run a sweep over a grid of BunchSim parameters
+     *
+     * @param args the axes of the grid, each either "name=v1,v2,..." or "name=first:last:n", e.g.
+     *             bMag=1e-7,2e-7 bErr=0:0.2:5 nProtons=100,1000. Parameters not swept take the values of BunchSim,
+     *             except maxRev=20 and seed=1. Set the number of threads, the memory budget and the output file with
+     *             -Dsweep.threads (default: available processors), -Dsweep.memoryMB (default: half the maximum heap)
+     *             and -Dsweep.out (default sweep.data).
+     */
+    public static void main(String[] args) {
+        int nThreads = Integer.getInteger("sweep.threads", Runtime.getRuntime().availableProcessors());
+        long memoryBudget = Long.getLong("sweep.memoryMB", Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)) * 1024 * 1024;
+        String outFileName = System.getProperty("sweep.out", "sweep.data");
+
+        ParameterGrid grid = new ParameterGrid(new SimRecord().set("maxRev", 20).set("seed", 1));
+        if (args.length == 0) {
+            grid.addAxis("bMag=1e-7,2e-7").addAxis("bErr=0:0.2:5").addAxis("nProtons=100,1000");
+        }
+        for (String axis : args) {
+            grid.addAxis(axis);
+        }
+
+        long start = System.nanoTime();
+        long nRuns = 0;
+        try (PrintWriter out = new PrintWriter(outFileName)) {
+            nRuns = new SweepRunner(nThreads, memoryBudget).run(grid, grid.getNames(), out);
+        }
+        catch (FileNotFoundException e) {
+            System.out.println("Exception opening file: " + e.getMessage());
+            System.exit(4);
+        }
+        System.out.printf("%d runs on %d threads in %.2f s, results in %s%n", nRuns, nThreads,
+            (System.nanoTime() - start) / 1e9, outFileName);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Symplectic splitting integrators of second, fourth and sixth order. The second order one is the leapfrog: a drift
+ * of half a step, a kick in the field at the middle of the step, and another half drift. For the Lorentz force the
+ * kick is that of Boris, which is time-reversible as the drifts are, so the leapfrog step is symmetric. Yoshida's
+ * compositions of symmetric steps, leapfrogs of lengths w1 dt, w2 dt, ... in turn, then cancel the error terms up to
+ * fourth order (three leapfrogs, the same as the method of Forest and Ruth) or sixth order (seven). Being symmetric
+ * and volume-preserving, none of them has a secular drift in energy: the error stays bounded however many turns are
+ * made, where Euler's grows with every turn.
+ *
+ * Each leapfrog of the composition takes the field once, so a step costs 1, 3 or 7 field evaluations. Between them the
+ * particles are left at the positions where the field is next wanted. Particles not in an ArrayParticleStore are
+ * worked on in copies as in Boris, with their positions put back into the store before each field evaluation.
+ *
+ * @author Adam Shelbourne
+ * @version 1.0
+ */
+public class Yoshida implements Integrator {
+
+    private static final double cbrt2 = Math.cbrt(2.0);
+    private static final double[] leapfrog = {1.0};
+    private static final double[] fourth = {1 / (2 - cbrt2), -cbrt2 / (2 - cbrt2), 1 / (2 - cbrt2)};
+    private static final double[] sixth = composition(-1.17767998417887, 0.235573213359357, 0.784513610477560);
+
+    private final int order;
+    private final double[] weights; // the lengths of the leapfrogs as fractions of the time step
+    private final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[0][0]);
+
+    /**
+     * Constructor
+     * @param orderIn the order: 2 (leapfrog), 4 or 6
+     * @throws IllegalArgumentException for any other order
+     */
+    public Yoshida(int orderIn) {
+        order = orderIn;
+        if (order == 2) {
+            weights = leapfrog;
+        }
+        else if (order == 4) {
+            weights = fourth;
+        }
+        else if (order == 6) {
+            weights = sixth;
+        }
+        else {
+            throw new IllegalArgumentException("no Yoshida integrator of order " + orderIn);
+        }
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    @Override
+    public void step(ParticleStore store, int from, int to, double time, double timeStep, AccelerationProvider field) {
+        FieldProvider provider = Boris.fieldProvider(field);
+        int n = to - from;
+        double[][] s = Boris.scratch(scratch, n);
+        double[][] e = {s[0], s[1], s[2]}, b = {s[3], s[4], s[5]};
+        double[][] columns = Boris.columns(store, from, to, s);
+        int base = Boris.base(store, from);
+
+        double t = time - timeStep;
+        for (int j = 0; j < weights.length; j++) {
+            double h = weights[j] * timeStep;
+            Boris.drift(columns, base, base + n, 0.5 * h);
+            Boris.copyBack(store, from, to, columns, ParticleStore.X, ParticleStore.Z);
+            provider.fields(store, from, to, t + 0.5 * h, e, b);
+            Boris.kick(columns, base, base + n, base, e, b, h);
+            Boris.drift(columns, base, base + n, 0.5 * h);
+            t += h;
+        }
+        Boris.copyBack(store, from, to, columns, ParticleStore.X, ParticleStore.AZ);
+    }
+
+    /**
+     * Return the weights of the seven leapfrogs of Yoshida's sixth order composition (his solution A) from w1 to w3,
+     * the middle one making them add up to one
+     */
+    private static double[] composition(double w1, double w2, double w3) {
+        double w0 = 1 - 2 * (w1 + w2 + w3);
+        return new double[]{w3, w2, w1, w0, w1, w2, w3};
+    }
+}